@@ -0,0 +1,298 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.io.BaseEncoding;
+import org.embulk.config.ConfigLoader;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ModelManager;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Builds schemas, encrypted input pages and plugin tasks shared by the benchmarks.
+ */
+final class BenchmarkPages
+{
+    static final String KEY_HEX = "098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05";
+    static final String IV_HEX = "C9DD4BB33B827EB1FBA1B16A0074D460";
+
+    // Heap buffers are never pooled, so releasing a page does not recycle its memory.
+    // PageReader releases every page it has read, and the benchmarks feed the same input pages repeatedly.
+    static final BufferAllocator ALLOCATOR = new BufferAllocator()
+    {
+        private static final int PAGE_SIZE = 32 * 1024;
+
+        @Override
+        public Buffer allocate()
+        {
+            return allocate(PAGE_SIZE);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Buffer allocate(int minimumCapacity)
+        {
+            return Buffer.allocate(Math.max(PAGE_SIZE, minimumCapacity));
+        }
+    };
+
+    private BenchmarkPages()
+    {
+    }
+
+    /**
+     * Returns a schema whose first {@code targets} columns are encrypted strings named "t0", "t1", ...
+     * followed by {@code passthroughs} columns alternating between strings and longs.
+     */
+    static Schema schema(int targets, int passthroughs)
+    {
+        Schema.Builder builder = Schema.builder();
+        for (int i = 0; i < targets; i++) {
+            builder.add("t" + i, Types.STRING);
+        }
+        for (int i = 0; i < passthroughs; i++) {
+            builder.add("p" + i, i % 2 == 0 ? Types.STRING : Types.LONG);
+        }
+        return builder.build();
+    }
+
+    static String columnNames(int targets)
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < targets; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("t").append(i);
+        }
+        return sb.append("]").toString();
+    }
+
+    static String keyHex(DecryptFilterPlugin.Algorithm algorithm)
+    {
+        return KEY_HEX.substring(0, algorithm.getKeyLength() / 4);
+    }
+
+    static DecryptFilterPlugin.PluginTask task(String yaml)
+    {
+        ObjectMapper mapper = new ObjectMapper().registerModule(new Jdk8Module());
+        ConfigSource config = new ConfigLoader(new ModelManager(null, mapper)).fromYamlString(yaml);
+        return DecryptFilterPlugin.loadTask(config);
+    }
+
+    /**
+     * Returns a task decrypting the first {@code targets} columns, with {@code options} appended as extra YAML lines.
+     */
+    static DecryptFilterPlugin.PluginTask task(DecryptFilterPlugin.Algorithm algorithm, DecryptFilterPlugin.Encoder encoder, int targets,
+                                               String options)
+    {
+        return task("algorithm: " + algorithm + "\n"
+                + "input_encoding: " + encoder + "\n"
+                + "key_hex: " + keyHex(algorithm) + "\n"
+                + (algorithm.useIv() ? "iv_hex: " + IV_HEX + "\n" : "")
+                + "column_names: " + columnNames(targets) + "\n"
+                + options);
+    }
+
+    static Cipher cipher(int mode, DecryptFilterPlugin.Algorithm algorithm)
+    {
+        try {
+            SecretKeySpec key = key(algorithm);
+            Cipher cipher = Cipher.getInstance(algorithm.getJavaName());
+            if (algorithm.useIv()) {
+                cipher.init(mode, key, new IvParameterSpec(BaseEncoding.base16().decode(IV_HEX)));
+            }
+            else if (algorithm.getNonceLength() > 0) {
+                cipher.init(mode, key, algorithm.newParameterSpec(new byte[algorithm.getNonceLength()], 0, algorithm.getNonceLength()));
+            }
+            else {
+                cipher.init(mode, key);
+            }
+            return cipher;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static SecretKeySpec key(DecryptFilterPlugin.Algorithm algorithm)
+    {
+        return new SecretKeySpec(BaseEncoding.base16().decode(keyHex(algorithm)), algorithm.getJavaKeySpecName());
+    }
+
+    /**
+     * Encrypts {@code plaintext}. Values of an algorithm with a nonce are prefixed with a random nonce.
+     */
+    static String encrypt(DecryptFilterPlugin.Algorithm algorithm, DecryptFilterPlugin.Encoder encoder, byte[] plaintext)
+    {
+        try {
+            byte[] encrypted;
+            final int nonceLength = algorithm.getNonceLength();
+            if (nonceLength > 0) {
+                byte[] nonce = new byte[nonceLength];
+                ThreadLocalRandom.current().nextBytes(nonce);
+                Cipher cipher = Cipher.getInstance(algorithm.getJavaName());
+                cipher.init(Cipher.ENCRYPT_MODE, key(algorithm), algorithm.newParameterSpec(nonce, 0, nonceLength));
+                byte[] ciphertext = cipher.doFinal(plaintext);
+                encrypted = Arrays.copyOf(nonce, nonceLength + ciphertext.length);
+                System.arraycopy(ciphertext, 0, encrypted, nonceLength, ciphertext.length);
+            }
+            else {
+                encrypted = cipher(Cipher.ENCRYPT_MODE, algorithm).doFinal(plaintext);
+            }
+            return encoder == DecryptFilterPlugin.Encoder.HEX
+                    ? BaseEncoding.base16().encode(encrypted)
+                    : BaseEncoding.base64().encode(encrypted);
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns {@code length} printable ASCII bytes, so that the plaintext byte length equals its character length.
+     */
+    static byte[] plaintext(Random random, int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('!' + random.nextInt('~' - '!' + 1));
+        }
+        return bytes;
+    }
+
+    /**
+     * Builds pages of {@code records} records for {@link #schema(int, int)}.
+     * Each target value is null with probability {@code nullRatio}, and otherwise holds one of {@code distinct}
+     * encrypted plaintexts of {@code valueLength} bytes.
+     */
+    @SuppressWarnings("deprecation")
+    static Input pages(Schema schema, int targets, int records, int valueLength, double nullRatio, int distinct,
+                       DecryptFilterPlugin.Algorithm algorithm, DecryptFilterPlugin.Encoder encoder)
+    {
+        Random random = new Random(records * 31L + valueLength);
+        String[] values = new String[distinct];
+        for (int i = 0; i < distinct; i++) {
+            values[i] = encrypt(algorithm, encoder, plaintext(random, valueLength));
+        }
+
+        long plaintextBytes = 0;
+        CollectingOutput collected = new CollectingOutput();
+        PageBuilder builder = new PageBuilder(ALLOCATOR, schema, collected);
+        for (int r = 0; r < records; r++) {
+            for (int c = 0; c < schema.getColumnCount(); c++) {
+                if (c < targets) {
+                    if (random.nextDouble() < nullRatio) {
+                        builder.setNull(schema.getColumn(c));
+                    }
+                    else {
+                        builder.setString(schema.getColumn(c), values[random.nextInt(distinct)]);
+                        plaintextBytes += valueLength;
+                    }
+                }
+                else if ((c - targets) % 2 == 0) {
+                    builder.setString(schema.getColumn(c), "passthrough-" + r);
+                }
+                else {
+                    builder.setLong(schema.getColumn(c), r);
+                }
+            }
+            builder.addRecord();
+        }
+        builder.finish();
+        builder.close();
+        return new Input(collected.pages, plaintextBytes);
+    }
+
+    static final class Input
+    {
+        final List<Page> pages;
+        final long plaintextBytes;
+
+        Input(List<Page> pages, long plaintextBytes)
+        {
+            this.pages = pages;
+            this.plaintextBytes = plaintextBytes;
+        }
+    }
+
+    static final class CollectingOutput
+            implements PageOutput
+    {
+        final List<Page> pages = new ArrayList<>();
+
+        @Override
+        public void add(Page page)
+        {
+            pages.add(page);
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Counts and discards the pages that the filter emits.
+     */
+    static final class DiscardingOutput
+            implements PageOutput
+    {
+        long pages;
+
+        @Override
+        public void add(Page page)
+        {
+            pages++;
+            page.release();
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PageOutput#add(Page)} of the PageOutput built by {@link DecryptFilterPlugin}.
+ *
+ * <p>One operation is one record, so the primary score is records per second and
+ * {@code gc.alloc.rate.norm} from the "gc" profiler is bytes allocated per record.
+ * The {@code megabytes} secondary score is decrypted plaintext in MiB per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class DecryptPageBenchmark
+{
+    static final int RECORDS = 128;
+
+    // ChaCha20-Poly1305 needs Java 11 or later.
+    @Param({"AES-256-CBC", "AES-192-CBC", "AES-128-CBC", "AES-256-ECB", "AES-192-ECB", "AES-128-ECB",
+            "AES-256-CTR", "AES-128-CTR", "AES-256-GCM", "AES-128-GCM", "ChaCha20-Poly1305"})
+    public String algorithm;
+
+    @Param({"base64", "hex"})
+    public String encoding;
+
+    @Param({"16", "256", "4096", "65536"})
+    public int valueLength;
+
+    @Param({"1", "10"})
+    public int targetColumns;
+
+    @Param({"0", "10", "200"})
+    public int passthroughColumns;
+
+    @Param({"0.0", "0.5"})
+    public double nullRatio;
+
+    // Distinct plaintexts per page and the decryption cache size. Lower them with -p to measure the cache.
+    @Param({"128"})
+    public int distinctValues;
+
+    @Param({"0"})
+    public int cacheSize;
+
+    @Param({"1"})
+    public int parallelism;
+
+    private List<Page> pages;
+    private long plaintextBytes;
+    private PageOutput output;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput
+    {
+        public double megabytes;
+    }
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("deprecation")
+    public void setup()
+    {
+        DecryptFilterPlugin.Algorithm algo = DecryptFilterPlugin.Algorithm.fromName(algorithm);
+        DecryptFilterPlugin.Encoder encoder = DecryptFilterPlugin.Encoder.fromName(encoding);
+        Schema schema = BenchmarkPages.schema(targetColumns, passthroughColumns);
+
+        BenchmarkPages.Input input = BenchmarkPages.pages(schema, targetColumns, RECORDS, valueLength, nullRatio, distinctValues, algo, encoder);
+        pages = input.pages;
+        plaintextBytes = input.plaintextBytes;
+
+        output = new DecryptFilterPlugin().open(
+                BenchmarkPages.task(algo, encoder, targetColumns, "cache_size: " + cacheSize + "\nparallelism: " + parallelism + "\n"),
+                schema,
+                () -> new PageReader(schema),
+                new PageBuilder(BenchmarkPages.ALLOCATOR, schema, new BenchmarkPages.DiscardingOutput()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        output.finish();
+        output.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void add(Throughput throughput)
+    {
+        for (Page page : pages) {
+            output.add(page);
+        }
+        throughput.megabytes += plaintextBytes / (1024.0 * 1024.0);
+    }
+}
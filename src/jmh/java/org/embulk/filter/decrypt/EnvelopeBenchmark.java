@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decrypting values headed by wrapped data keys, with {@code wrapped_data_key}.
+ *
+ * <p>Values are encrypted with one of {@code dataKeys} data keys, wrapped by the master key {@link BenchmarkPages#KEY_HEX}.
+ * {@code data_key_max_uses: 1} unwraps the data key of every value, as without the data key cache.
+ * One operation is one record, as in {@link DecryptPageBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class EnvelopeBenchmark
+{
+    static final int RECORDS = 128;
+
+    @Param({"AES-256-CBC", "AES-256-GCM"})
+    public String algorithm;
+
+    @Param({"1", "16"})
+    public int dataKeys;
+
+    @Param({"0", "1"})
+    public long dataKeyMaxUses;
+
+    @Param({"16", "256", "4096"})
+    public int valueLength;
+
+    private List<Page> pages;
+    private PageOutput output;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("deprecation")
+    public void setup() throws Exception
+    {
+        DecryptFilterPlugin.Algorithm algo = DecryptFilterPlugin.Algorithm.fromName(algorithm);
+        Schema schema = Schema.builder().add("t0", Types.STRING).build();
+
+        Random random = new Random(0);
+        Cipher wrapper = Cipher.getInstance("AESWrap");
+        wrapper.init(Cipher.WRAP_MODE, new SecretKeySpec(BaseEncoding.base16().decode(BenchmarkPages.KEY_HEX), "AES"));
+        SecretKeySpec[] keys = new SecretKeySpec[dataKeys];
+        byte[][] wrappedKeys = new byte[dataKeys][];
+        for (int i = 0; i < dataKeys; i++) {
+            byte[] key = new byte[algo.getKeyLength() / 8];
+            random.nextBytes(key);
+            keys[i] = new SecretKeySpec(key, algo.getJavaKeySpecName());
+            wrappedKeys[i] = wrapper.wrap(keys[i]);
+        }
+
+        Cipher cipher = Cipher.getInstance(algo.getJavaName());
+        BenchmarkPages.CollectingOutput collected = new BenchmarkPages.CollectingOutput();
+        PageBuilder builder = new PageBuilder(BenchmarkPages.ALLOCATOR, schema, collected);
+        for (int r = 0; r < RECORDS; r++) {
+            int k = random.nextInt(dataKeys);
+            byte[] nonce;
+            if (algo.useIv()) {
+                nonce = new byte[0];
+                cipher.init(Cipher.ENCRYPT_MODE, keys[k], new IvParameterSpec(BaseEncoding.base16().decode(BenchmarkPages.IV_HEX)));
+            }
+            else {
+                nonce = new byte[algo.getNonceLength()];
+                random.nextBytes(nonce);
+                cipher.init(Cipher.ENCRYPT_MODE, keys[k], algo.newParameterSpec(nonce, 0, nonce.length));
+            }
+            byte[] ciphertext = cipher.doFinal(BenchmarkPages.plaintext(random, valueLength));
+            builder.setString(schema.getColumn(0), BaseEncoding.base64().encode(concat(wrappedKeys[k], nonce, ciphertext)));
+            builder.addRecord();
+        }
+        builder.finish();
+        builder.close();
+        pages = collected.pages;
+
+        output = new DecryptFilterPlugin().open(
+                BenchmarkPages.task("algorithm: " + algo + "\n"
+                        + "key_hex: " + BenchmarkPages.KEY_HEX + "\n"
+                        + (algo.useIv() ? "iv_hex: " + BenchmarkPages.IV_HEX + "\n" : "")
+                        + "wrapped_data_key: true\n"
+                        + "data_key_max_uses: " + dataKeyMaxUses + "\n"
+                        + "column_names: [t0]\n"),
+                schema,
+                () -> new PageReader(schema),
+                new PageBuilder(BenchmarkPages.ALLOCATOR, schema, new BenchmarkPages.DiscardingOutput()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        output.finish();
+        output.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void add()
+    {
+        for (Page page : pages) {
+            output.add(page);
+        }
+    }
+
+    private static byte[] concat(byte[]... arrays)
+    {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decrypting with a fixed {@code iv_hex} against a per-value IV from {@code iv_prefix} or {@code iv_column}.
+ *
+ * <p>The schema has an encrypted column "t0" and a column "iv" holding the base64 IV of each record.
+ * One operation is one record, as in {@link DecryptPageBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class IvSourceBenchmark
+{
+    static final int RECORDS = 128;
+
+    @Param({"AES-256-CBC", "AES-256-CTR"})
+    public String algorithm;
+
+    @Param({"fixed", "prefix", "column"})
+    public String ivSource;
+
+    @Param({"16", "256", "4096"})
+    public int valueLength;
+
+    private List<Page> pages;
+    private PageOutput output;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("deprecation")
+    public void setup() throws Exception
+    {
+        DecryptFilterPlugin.Algorithm algo = DecryptFilterPlugin.Algorithm.fromName(algorithm);
+        Schema schema = Schema.builder()
+                .add("t0", Types.STRING)
+                .add("iv", Types.STRING)
+                .build();
+
+        Random random = new Random(0);
+        Cipher cipher = Cipher.getInstance(algo.getJavaName());
+        BenchmarkPages.CollectingOutput collected = new BenchmarkPages.CollectingOutput();
+        PageBuilder builder = new PageBuilder(BenchmarkPages.ALLOCATOR, schema, collected);
+        for (int r = 0; r < RECORDS; r++) {
+            byte[] iv = BaseEncoding.base16().decode(BenchmarkPages.IV_HEX);
+            if (!ivSource.equals("fixed")) {
+                random.nextBytes(iv);
+            }
+            cipher.init(Cipher.ENCRYPT_MODE, BenchmarkPages.key(algo), new IvParameterSpec(iv));
+            byte[] ciphertext = cipher.doFinal(BenchmarkPages.plaintext(random, valueLength));
+            String value = BaseEncoding.base64().encode(ciphertext);
+            if (ivSource.equals("prefix")) {
+                value = BaseEncoding.base64().encode(concat(iv, ciphertext));
+            }
+            builder.setString(schema.getColumn(0), value);
+            builder.setString(schema.getColumn(1), BaseEncoding.base64().encode(iv));
+            builder.addRecord();
+        }
+        builder.finish();
+        builder.close();
+        pages = collected.pages;
+
+        final String options;
+        switch (ivSource) {
+            case "prefix":
+                options = "iv_prefix: true\n";
+                break;
+            case "column":
+                options = "iv_column: iv\n";
+                break;
+            default:
+                options = "";
+        }
+        output = new DecryptFilterPlugin().open(
+                BenchmarkPages.task(algo, DecryptFilterPlugin.Encoder.BASE64, 1, options),
+                schema,
+                () -> new PageReader(schema),
+                new PageBuilder(BenchmarkPages.ALLOCATOR, schema, new BenchmarkPages.DiscardingOutput()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        output.finish();
+        output.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void add()
+    {
+        for (Page page : pages) {
+            output.add(page);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
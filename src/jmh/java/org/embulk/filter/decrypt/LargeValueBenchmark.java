@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decrypting one large value as a whole and in chunks of {@code streaming_threshold}.
+ *
+ * <p>Each iteration decrypts one value with a new decryptor, so that the buffers it grows for the value are counted.
+ * {@code peakHeapBytes} is how much the peak usage of the heap pools rose over the value, above the heap used after
+ * a GC before it. The JVM samples the peaks at each GC and when they are read, so it includes garbage not collected yet
+ * and is an upper bound of the memory the value needs.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@State(Scope.Thread)
+public class LargeValueBenchmark
+{
+    @Param({"AES-256-CBC", "AES-256-CTR"})
+    public String algorithm;
+
+    @Param({"base64"})
+    public String encoding;
+
+    @Param({"1048576", "16777216"})
+    public int valueLength;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private DecryptFilterPlugin.Algorithm algo;
+    private DecryptFilterPlugin.Encoder encoder;
+    private String value;
+    private ValueDecryptor decryptor;
+    private long heapUsedBefore;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Memory
+    {
+        public long peakHeapBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        algo = DecryptFilterPlugin.Algorithm.fromName(algorithm);
+        encoder = DecryptFilterPlugin.Encoder.fromName(encoding);
+        value = BenchmarkPages.encrypt(algo, encoder, BenchmarkPages.plaintext(new Random(0), valueLength));
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration()
+    {
+        decryptor = new ValueDecryptor(BenchmarkPages.cipher(Cipher.DECRYPT_MODE, algo), BenchmarkPages.key(algo), algo,
+                algo.getNonceLength(), encoder);
+        decryptor.setStreamingThreshold(streaming ? 0 : Integer.MAX_VALUE);
+
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        heapUsedBefore = used;
+    }
+
+    @Benchmark
+    public String decrypt(Memory memory)
+    {
+        String decrypted = decryptor.decrypt(value);
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        memory.peakHeapBytes += peak - heapUsedBefore;
+        return decrypted;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the columns which are not decrypted, by the ratio of decrypted columns to all the columns.
+ *
+ * <p>The values are short, so that copying the other columns is a large part of a record.
+ * One operation is one record, as in {@link DecryptPageBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class PassthroughBenchmark
+{
+    static final int RECORDS = 128;
+
+    @Param({"20", "100"})
+    public int totalColumns;
+
+    @Param({"0.05", "0.25", "0.5", "1.0"})
+    public double targetRatio;
+
+    @Param({"16"})
+    public int valueLength;
+
+    private List<Page> pages;
+    private PageOutput output;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("deprecation")
+    public void setup()
+    {
+        DecryptFilterPlugin.Algorithm algo = DecryptFilterPlugin.Algorithm.AES_256_CBC;
+        DecryptFilterPlugin.Encoder encoder = DecryptFilterPlugin.Encoder.BASE64;
+        int targetColumns = Math.max(1, (int) Math.round(totalColumns * targetRatio));
+        Schema schema = BenchmarkPages.schema(targetColumns, totalColumns - targetColumns);
+
+        pages = BenchmarkPages.pages(schema, targetColumns, RECORDS, valueLength, 0.0, RECORDS, algo, encoder).pages;
+        output = new DecryptFilterPlugin().open(
+                BenchmarkPages.task(algo, encoder, targetColumns, ""),
+                schema,
+                () -> new PageReader(schema),
+                new PageBuilder(BenchmarkPages.ALLOCATOR, schema, new BenchmarkPages.DiscardingOutput()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        output.finish();
+        output.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void add()
+    {
+        for (Page page : pages) {
+            output.add(page);
+        }
+    }
+}
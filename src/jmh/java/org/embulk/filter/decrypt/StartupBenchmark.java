@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import org.embulk.config.ConfigLoader;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ModelManager;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Measures the first {@code transaction} of the plugin in a fresh JVM, which is the startup cost paid by every job.
+ *
+ * <p>"inline" sets {@code key_hex}, and "s3_cached" reads the key file from a fresh {@code key_cache_dir}
+ * without connecting to S3. The {@code loadedClasses} secondary score is the number of classes loaded by the transaction.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+@State(Scope.Thread)
+public class StartupBenchmark
+{
+    private static final String REGION = "us-east-2";
+    private static final String BUCKET = "a_bucket";
+    private static final String PATH = "a_path";
+
+    @Param({"inline", "s3_cached"})
+    public String keySource;
+
+    private Path cacheDir;
+    private String yaml;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class LoadedClasses
+    {
+        public long loadedClasses;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        final String common = "algorithm: AES-256-CBC\n"
+                + "column_names: [t0]\n";
+        if (keySource.equals("s3_cached")) {
+            cacheDir = Files.createTempDirectory("embulk-filter-decrypt-startup");
+            Files.write(cacheDir.resolve(S3KeyCache.id("", REGION, BUCKET, PATH) + ".yml"),
+                    ("key_hex: " + BenchmarkPages.KEY_HEX + "\niv_hex: " + BenchmarkPages.IV_HEX + "\n").getBytes(UTF_8));
+            yaml = common
+                    + "key_type: s3\n"
+                    + "aws_params:\n"
+                    + "  region: " + REGION + "\n"
+                    + "  access_key: a_access_key\n"
+                    + "  secret_key: a_secret_key\n"
+                    + "  bucket: " + BUCKET + "\n"
+                    + "  path: " + PATH + "\n"
+                    + "  key_cache_dir: " + cacheDir + "\n";
+        }
+        else {
+            yaml = common
+                    + "key_hex: " + BenchmarkPages.KEY_HEX + "\n"
+                    + "iv_hex: " + BenchmarkPages.IV_HEX + "\n";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        if (cacheDir != null) {
+            try (Stream<Path> files = Files.walk(cacheDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public void transaction(LoadedClasses classes)
+    {
+        final long before = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+
+        ObjectMapper mapper = new ObjectMapper().registerModule(new Jdk8Module());
+        ConfigSource config = new ConfigLoader(new ModelManager(null, mapper)).fromYamlString(yaml);
+        Schema schema = BenchmarkPages.schema(1, 0);
+        new DecryptFilterPlugin().transaction(config, schema, (taskSource, outputSchema) -> {});
+
+        classes.loadedClasses += ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() - before;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole task over a small input, from {@code open} to {@code close}, as a job with many small input files
+ * runs one after another in each thread. The tasks after the first reuse the ciphers of the earlier ones, as the trial
+ * holds the scope of the cipher cache which a transaction holds while its tasks run.
+ *
+ * <p>One operation is one task of {@link #RECORDS} records.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class TaskOpenBenchmark
+{
+    static final int RECORDS = 16;
+
+    @Param({"AES-256-CBC", "AES-256-GCM"})
+    public String algorithm;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Schema schema;
+    private DecryptFilterPlugin.PluginTask task;
+    private List<Page> pages;
+    private CipherCache.Scope cipherScope;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        DecryptFilterPlugin.Algorithm algo = DecryptFilterPlugin.Algorithm.fromName(algorithm);
+        DecryptFilterPlugin.Encoder encoder = DecryptFilterPlugin.Encoder.BASE64;
+        schema = BenchmarkPages.schema(1, 1);
+        pages = BenchmarkPages.pages(schema, 1, RECORDS, 16, 0.0, RECORDS, algo, encoder).pages;
+        task = BenchmarkPages.task(algo, encoder, 1, "parallelism: " + parallelism + "\n");
+        cipherScope = CipherCache.openScope();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        cipherScope.close();
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public void task()
+    {
+        PageOutput output = new DecryptFilterPlugin().open(
+                task,
+                schema,
+                () -> new PageReader(schema),
+                new PageBuilder(BenchmarkPages.ALLOCATOR, schema, new BenchmarkPages.DiscardingOutput()));
+        try {
+            for (Page page : pages) {
+                output.add(page);
+            }
+            output.finish();
+        }
+        finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Measures decrypting a single value, so that {@code gc.alloc.rate.norm} is bytes allocated per value.
+ *
+ * <p>{@code baseline} is the allocating path used before buffers were reused:
+ * {@code Encoder.decode}, {@code Cipher.doFinal(byte[])} and {@code new String(byte[], UTF_8)}.
+ * {@code newCipher} creates and initializes a Cipher for every value, which is the naive way to decrypt values
+ * with per-value nonces, and derives the key schedule every time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ValueDecryptorBenchmark
+{
+    @Param({"AES-256-CBC", "AES-128-ECB", "AES-256-CTR", "AES-256-GCM", "ChaCha20-Poly1305"})
+    public String algorithm;
+
+    @Param({"base64", "hex"})
+    public String encoding;
+
+    @Param({"16", "256", "4096", "65536"})
+    public int valueLength;
+
+    private DecryptFilterPlugin.Algorithm algo;
+    private DecryptFilterPlugin.Encoder encoder;
+    private SecretKeySpec key;
+    private Cipher cipher;
+    private ValueDecryptor decryptor;
+    // Two values, so that values with nonces alternate between two nonces as real data does.
+    // ChaCha20-Poly1305 rejects initializing with the nonce it is already initialized with.
+    private String[] values;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        algo = DecryptFilterPlugin.Algorithm.fromName(algorithm);
+        encoder = DecryptFilterPlugin.Encoder.fromName(encoding);
+        key = BenchmarkPages.key(algo);
+        cipher = BenchmarkPages.cipher(Cipher.DECRYPT_MODE, algo);
+        decryptor = new ValueDecryptor(BenchmarkPages.cipher(Cipher.DECRYPT_MODE, algo), key, algo, algo.getNonceLength(), encoder);
+        Random random = new Random(0);
+        values = new String[] {
+            BenchmarkPages.encrypt(algo, encoder, BenchmarkPages.plaintext(random, valueLength)),
+            BenchmarkPages.encrypt(algo, encoder, BenchmarkPages.plaintext(random, valueLength)),
+        };
+    }
+
+    @Benchmark
+    public String decrypt()
+    {
+        return decryptor.decrypt(nextValue());
+    }
+
+    @Benchmark
+    public String baseline() throws Exception
+    {
+        byte[] encrypted = encoder.decode(nextValue());
+        final int nonceLength = algo.getNonceLength();
+        if (nonceLength > 0) {
+            cipher.init(Cipher.DECRYPT_MODE, key, algo.newParameterSpec(encrypted, 0, nonceLength));
+        }
+        return new String(cipher.doFinal(encrypted, nonceLength, encrypted.length - nonceLength), UTF_8);
+    }
+
+    @Benchmark
+    public String newCipher() throws Exception
+    {
+        byte[] encrypted = encoder.decode(nextValue());
+        final int nonceLength = algo.getNonceLength();
+        Cipher cipher;
+        if (nonceLength > 0) {
+            cipher = Cipher.getInstance(algo.getJavaName());
+            cipher.init(Cipher.DECRYPT_MODE, BenchmarkPages.key(algo), algo.newParameterSpec(encrypted, 0, nonceLength));
+        }
+        else {
+            cipher = BenchmarkPages.cipher(Cipher.DECRYPT_MODE, algo);
+        }
+        return new String(cipher.doFinal(encrypted, nonceLength, encrypted.length - nonceLength), UTF_8);
+    }
+
+    private String nextValue()
+    {
+        index ^= 1;
+        return values[index];
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Initialized ciphers shared by the tasks of the jobs running in this JVM, so that a task reuses the ciphers of the same
+ * transformation, key and IV which earlier tasks have finished with, instead of looking up the provider and initializing
+ * new ones.
+ *
+ * <p>The cache lives from the first {@link #openScope()} of a transaction to the {@link Scope#close()} of the last one
+ * running, and is then cleared, so that no key is kept after the jobs have ended. Tasks opened without a running
+ * transaction in this JVM, such as those of a distributed executor, don't reuse ciphers.
+ *
+ * <p>A cipher is taken out of the cache by a {@link Lease} while a task uses it, so that two decryptors never share
+ * one even with the same key. The lease puts its ciphers back by {@link Lease#release()} when the task has finished.
+ * A task which failed drops its ciphers by {@link Lease#discard()} instead, since they may have been left in the middle
+ * of a value. At most {@link #MAX_IDLE_CIPHERS} ciphers are kept, and the least recently used are dropped.
+ */
+final class CipherCache
+{
+    static final int MAX_IDLE_CIPHERS = 64;
+
+    // The cache of the transactions running in this JVM, or null while none is.
+    private static CipherCache shared;
+    private static int scopes;
+
+    // Idle ciphers by their keys, in the order of their last use.
+    private final LinkedHashMap<Entry, ArrayDeque<Cipher>> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private int idleCount;
+    private boolean cleared;
+
+    CipherCache()
+    {
+    }
+
+    /**
+     * Opens the scope of a transaction, in which its tasks share the cache.
+     */
+    static synchronized Scope openScope()
+    {
+        if (shared == null) {
+            shared = new CipherCache();
+        }
+        scopes++;
+        return new Scope();
+    }
+
+    private static synchronized void closeScope()
+    {
+        if (--scopes == 0) {
+            shared.clear();
+            shared = null;
+        }
+    }
+
+    /**
+     * Starts a lease on the shared cache, or a lease which reuses no cipher if no transaction is running.
+     */
+    static synchronized Lease lease()
+    {
+        return new Lease(shared);
+    }
+
+    Lease newLease()
+    {
+        return new Lease(this);
+    }
+
+    synchronized int idleCount()
+    {
+        return idleCount;
+    }
+
+    /**
+     * Drops all the idle ciphers. The ciphers released afterwards are dropped too.
+     */
+    synchronized void clear()
+    {
+        idle.clear();
+        idleCount = 0;
+        cleared = true;
+    }
+
+    private synchronized Cipher take(Entry entry)
+    {
+        final ArrayDeque<Cipher> ciphers = idle.get(entry);
+        if (ciphers == null) {
+            return null;
+        }
+        final Cipher cipher = ciphers.pop();
+        if (ciphers.isEmpty()) {
+            idle.remove(entry);
+        }
+        idleCount--;
+        return cipher;
+    }
+
+    private synchronized void put(List<Entry> entries, List<Cipher> ciphers)
+    {
+        if (cleared) {
+            return;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            idle.computeIfAbsent(entries.get(i), e -> new ArrayDeque<>()).push(ciphers.get(i));
+            idleCount++;
+        }
+        final Iterator<ArrayDeque<Cipher>> eldest = idle.values().iterator();
+        while (idleCount > MAX_IDLE_CIPHERS) {
+            final ArrayDeque<Cipher> dropped = eldest.next();
+            final int excess = idleCount - MAX_IDLE_CIPHERS;
+            if (dropped.size() > excess) {
+                for (int i = 0; i < excess; i++) {
+                    dropped.removeLast();
+                }
+                idleCount -= excess;
+            }
+            else {
+                idleCount -= dropped.size();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Ends the sharing of the cache by a transaction when it is closed. Closed only once.
+     */
+    static final class Scope
+            implements AutoCloseable
+    {
+        private boolean closed;
+
+        private Scope()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+            if (!closed) {
+                closed = true;
+                closeScope();
+            }
+        }
+    }
+
+    /**
+     * The ciphers which one task has taken from a cache or added for the cache. Used by one thread at a time.
+     */
+    static final class Lease
+    {
+        // Null if no cipher is reused.
+        private final CipherCache cache;
+        private final List<Entry> entries = new ArrayList<>();
+        private final List<Cipher> ciphers = new ArrayList<>();
+        private int reused;
+
+        private Lease(CipherCache cache)
+        {
+            this.cache = cache;
+        }
+
+        /**
+         * Takes an idle cipher initialized for {@code mode} with {@code key} and {@code iv}, or returns null if the cache
+         * has none. The cipher belongs to this lease until it is released.
+         *
+         * @param iv the IV which the cipher is initialized with for all values, or null if it has none,
+         *           or if it is initialized again with the IV or the nonce of each value
+         */
+        Cipher take(String transformation, int mode, SecretKeySpec key, byte[] iv)
+        {
+            if (cache == null) {
+                return null;
+            }
+            final Entry entry = new Entry(transformation, mode, key, iv);
+            final Cipher cipher = cache.take(entry);
+            if (cipher != null) {
+                entries.add(entry);
+                ciphers.add(cipher);
+                reused++;
+            }
+            return cipher;
+        }
+
+        /**
+         * Adds {@code cipher}, which has just been initialized as {@link #take(String, int, SecretKeySpec, byte[])}
+         * describes, so that it is put into the cache when this lease is released.
+         */
+        void add(String transformation, int mode, SecretKeySpec key, byte[] iv, Cipher cipher)
+        {
+            if (cache == null) {
+                return;
+            }
+            entries.add(new Entry(transformation, mode, key, iv));
+            ciphers.add(cipher);
+        }
+
+        /**
+         * Returns the number of ciphers which were taken from the cache rather than initialized.
+         */
+        int getReused()
+        {
+            return reused;
+        }
+
+        int size()
+        {
+            return ciphers.size();
+        }
+
+        /**
+         * Puts the ciphers of this lease into the cache. They must not be used any more by the task.
+         */
+        void release()
+        {
+            if (!ciphers.isEmpty()) {
+                cache.put(entries, ciphers);
+                discard();
+            }
+        }
+
+        /**
+         * Drops the ciphers of this lease without putting them into the cache.
+         */
+        void discard()
+        {
+            entries.clear();
+            ciphers.clear();
+        }
+    }
+
+    private static final class Entry
+    {
+        private final String transformation;
+        private final int mode;
+        private final String keyAlgorithm;
+        private final byte[] key;
+        private final byte[] iv;
+        private final int hashCode;
+
+        Entry(String transformation, int mode, SecretKeySpec key, byte[] iv)
+        {
+            this.transformation = transformation;
+            this.mode = mode;
+            this.keyAlgorithm = key.getAlgorithm();
+            this.key = key.getEncoded();
+            this.iv = iv == null ? null : iv.clone();
+            this.hashCode = ((transformation.hashCode() * 31 + mode) * 31 + Arrays.hashCode(this.key)) * 31 + Arrays.hashCode(this.iv);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry other = (Entry) o;
+            return hashCode == other.hashCode && mode == other.mode && transformation.equals(other.transformation)
+                    && keyAlgorithm.equals(other.keyAlgorithm) && Arrays.equals(key, other.key) && Arrays.equals(iv, other.iv);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.StringType;
+import org.msgpack.value.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Copies one column of the current record from a {@link PageReader} to a {@link PageBuilder}.
+ *
+ * <p>A copy plan is an array of copiers compiled once per task by {@link #compile(Schema, int[], Function, JsonPathTargets[], Function)},
+ * so that whether a column is decrypted is decided once instead of for every record. The plan has the decrypted columns
+ * only. The others are copied by {@link PassthroughColumns}.
+ *
+ * <p>A decrypting copier is given an {@link InvalidValueHandler} unless {@code on_error} is {@code fail}. It then checks
+ * the structure of each value by {@link ValueDecryptor#checkStructure(String, String)} before decrypting it, so that
+ * most malformed values are handled without an exception, and handles the values which still fail to decrypt.
+ */
+abstract class ColumnCopier
+{
+    protected final Column column;
+    // The counters of a decrypted column, or null.
+    protected final DecryptionMetrics.Column metrics;
+    // Handles the values which can't be decrypted, or null to fail on them.
+    protected final InvalidValueHandler invalidValues;
+    // The row which decrypted strings and JSON values are staged in until the record is kept, or null.
+    protected final StagedRow staged;
+
+    ColumnCopier(Column column, DecryptionMetrics.Column metrics, InvalidValueHandler invalidValues)
+    {
+        this.column = column;
+        this.metrics = metrics;
+        this.invalidValues = invalidValues;
+        this.staged = invalidValues != null ? invalidValues.getStagedRow() : null;
+    }
+
+    final void copy(PageReader pageReader, PageBuilder pageBuilder)
+    {
+        if (pageReader.isNull(column)) {
+            pageBuilder.setNull(column);
+            if (metrics != null) {
+                metrics.nulls++;
+            }
+        }
+        else {
+            copyValue(pageReader, pageBuilder);
+        }
+    }
+
+    abstract void copyValue(PageReader pageReader, PageBuilder pageBuilder);
+
+    /**
+     * Writes the value of this column as it was read, for {@code on_error: passthrough}.
+     */
+    void copyAsIs(PageReader pageReader, PageBuilder pageBuilder)
+    {
+        pageBuilder.setString(column, pageReader.getString(column));
+    }
+
+    /**
+     * Handles the value of this column in the current record, which can't be decrypted for {@code reason},
+     * and writes null or the value as it is in its place.
+     */
+    final void invalid(PageReader pageReader, PageBuilder pageBuilder, String reason)
+    {
+        invalidValues.handle(pageReader, column, metrics, reason);
+        if (invalidValues.getOnError() == DecryptFilterPlugin.OnError.PASSTHROUGH) {
+            copyAsIs(pageReader, pageBuilder);
+        }
+        else {
+            pageBuilder.setNull(column);
+        }
+    }
+
+    /**
+     * Handles the value of this column in the current record, which failed to decrypt with {@code e}. Rethrows {@code e}
+     * if {@code on_error} is {@code fail}.
+     */
+    final void failed(PageReader pageReader, PageBuilder pageBuilder, RuntimeException e)
+    {
+        if (invalidValues == null) {
+            throw e;
+        }
+        invalid(pageReader, pageBuilder, InvalidValueHandler.reasonOf(e));
+    }
+
+    /**
+     * Returns true if {@code encoded}, with {@code encodedIv} if not null, can't be decrypted by its structure, and has been
+     * handled as invalid. Always false if {@code on_error} is {@code fail}, since the value fails to decrypt then anyway.
+     */
+    final boolean rejectMalformed(PageReader pageReader, PageBuilder pageBuilder, ValueDecryptor decryptor, String encoded, String encodedIv)
+    {
+        if (invalidValues == null) {
+            return false;
+        }
+        final String reason = decryptor.checkStructure(encoded, encodedIv);
+        if (reason == null) {
+            return false;
+        }
+        invalid(pageReader, pageBuilder, reason);
+        return true;
+    }
+
+    /**
+     * Returns true if the initialization vector in {@code ivColumn} of the current record is null, and the value has been
+     * handled as invalid. Always false if {@code on_error} is {@code fail}, since {@link #readIv(PageReader, Column)} fails then.
+     */
+    final boolean rejectNullIv(PageReader pageReader, PageBuilder pageBuilder, Column ivColumn)
+    {
+        if (invalidValues == null || !pageReader.isNull(ivColumn)) {
+            return false;
+        }
+        invalid(pageReader, pageBuilder, nullIvReason(ivColumn));
+        return true;
+    }
+
+    /**
+     * Returns the decryption cache of this column, or null if it has none.
+     */
+    DecryptionCache getCache()
+    {
+        return null;
+    }
+
+    /**
+     * Compiles a copy plan for {@code schema}. The string columns at {@code targetColumns} are copied by the copiers
+     * which {@code decryptingCopier} creates, the json columns whose index in {@code jsonTargets} is not null are copied
+     * by the copiers which {@code decryptingJsonCopier} creates. The other columns have no copier in the plan.
+     */
+    static ColumnCopier[] compile(Schema schema, int[] targetColumns, Function<Column, ColumnCopier> decryptingCopier,
+                                  JsonPathTargets[] jsonTargets, Function<Column, ColumnCopier> decryptingJsonCopier)
+    {
+        final boolean[] isTarget = new boolean[schema.getColumnCount()];
+        for (int index : targetColumns) {
+            isTarget[index] = true;
+        }
+
+        final List<ColumnCopier> copiers = new ArrayList<>();
+        for (Column column : schema.getColumns()) {
+            if (isTarget[column.getIndex()] && column.getType() instanceof StringType) {
+                copiers.add(decryptingCopier.apply(column));
+            }
+            else if (jsonTargets[column.getIndex()] != null && column.getType() instanceof JsonType) {
+                copiers.add(decryptingJsonCopier.apply(column));
+            }
+        }
+        return copiers.toArray(new ColumnCopier[0]);
+    }
+
+    static final class DecryptingStringCopier
+            extends ColumnCopier
+    {
+        private final ValueDecryptor decryptor;
+
+        DecryptingStringCopier(Column column, DecryptionMetrics.Column metrics, InvalidValueHandler invalidValues, ValueDecryptor decryptor)
+        {
+            super(column, metrics, invalidValues);
+            this.decryptor = decryptor;
+        }
+
+        @Override
+        void copyValue(PageReader pageReader, PageBuilder pageBuilder)
+        {
+            final String encoded = pageReader.getString(column);
+            if (rejectMalformed(pageReader, pageBuilder, decryptor, encoded, null)) {
+                return;
+            }
+            decryptor.setMetrics(metrics);
+            final String plaintext;
+            try {
+                plaintext = decryptor.decrypt(encoded);
+            }
+            catch (DataException | IllegalArgumentException e) {
+                failed(pageReader, pageBuilder, e);
+                return;
+            }
+            StagedRow.setString(staged, pageBuilder, column, plaintext);
+        }
+    }
+
+    /**
+     * Decrypts each value into the bytes of its plaintext, and parses them into the {@code output_type} of the column
+     * with {@code writer}. The initialization vector is read from {@code ivColumn} if it is not null.
+     */
+    static final class DecryptingTypedCopier
+            extends ColumnCopier
+    {
+        private final Column ivColumn;
+        private final ValueDecryptor decryptor;
+        private final PlaintextWriter writer;
+
+        DecryptingTypedCopier(Column column, DecryptionMetrics.Column metrics, InvalidValueHandler invalidValues, Column ivColumn,
+                              ValueDecryptor decryptor, PlaintextWriter writer)
+        {
+            super(column, metrics, invalidValues);
+            this.ivColumn = ivColumn;
+            this.decryptor = decryptor;
+            this.writer = writer;
+        }
+
+        @Override
+        void copyValue(PageReader pageReader, PageBuilder pageBuilder)
+        {
+            if (ivColumn != null && rejectNullIv(pageReader, pageBuilder, ivColumn)) {
+                return;
+            }
+            final String encoded = pageReader.getString(column);
+            final String iv = ivColumn != null ? readIv(pageReader, ivColumn) : null;
+            if (rejectMalformed(pageReader, pageBuilder, decryptor, encoded, iv)) {
+                return;
+            }
+            decryptor.setMetrics(metrics);
+            try {
+                ValueDecryptor.Plaintext plaintext = iv != null ? decryptor.decryptToPlaintext(encoded, iv) : decryptor.decryptToPlaintext(encoded);
+                writer.write(pageBuilder, plaintext.bytes(), plaintext.length());
+            }
+            catch (DataException | IllegalArgumentException e) {
+                failed(pageReader, pageBuilder, e);
+            }
+        }
+    }
+
+    /**
+     * Keeps plaintexts as strings in the cache, and writes them with {@code writer}.
+     */
+    static final class CachingDecryptingStringCopier
+            extends ColumnCopier
+    {
+        private final ValueDecryptor decryptor;
+        private final DecryptionCache cache;
+        private final PlaintextWriter writer;
+
+        CachingDecryptingStringCopier(Column column, DecryptionMetrics.Column metrics, InvalidValueHandler invalidValues,
+                                      ValueDecryptor decryptor, DecryptionCache cache, PlaintextWriter writer)
+        {
+            super(column, metrics, invalidValues);
+            this.decryptor = decryptor;
+            this.cache = cache;
+            this.writer = writer;
+        }
+
+        @Override
+        void copyValue(PageReader pageReader, PageBuilder pageBuilder)
+        {
+            final String encoded = pageReader.getString(column);
+            String plaintext = cache.get(encoded);
+            if (plaintext == null && rejectMalformed(pageReader, pageBuilder, decryptor, encoded, null)) {
+                return;
+            }
+            try {
+                if (plaintext == null) {
+                    decryptor.setMetrics(metrics);
+                    plaintext = decryptor.decrypt(encoded);
+                    cache.put(encoded, plaintext);
+                }
+                writer.write(pageBuilder, plaintext);
+            }
+            catch (DataException | IllegalArgumentException e) {
+                failed(pageReader, pageBuilder, e);
+            }
+        }
+
+        @Override
+        DecryptionCache getCache()
+        {
+            return cache;
+        }
+    }
+
+    /**
+     * Decrypts each value with the initialization vector in {@code ivColumn} of the same record.
+     */
+    static final class IvColumnDecryptingStringCopier
+            extends ColumnCopier
+    {
+        private final Column ivColumn;
+        private final ValueDecryptor decryptor;
+
+        IvColumnDecryptingStringCopier(Column column, DecryptionMetrics.Column metrics, InvalidValueHandler invalidValues, Column ivColumn,
+                                       ValueDecryptor decryptor)
+        {
+            super(column, metrics, invalidValues);
+            this.ivColumn = ivColumn;
+            this.decryptor = decryptor;
+        }
+
+        @Override
+        void copyValue(PageReader pageReader, PageBuilder pageBuilder)
+        {
+            if (rejectNullIv(pageReader, pageBuilder, ivColumn)) {
+                return;
+            }
+            final String encoded = pageReader.getString(column);
+            final String iv = readIv(pageReader, ivColumn);
+            if (rejectMalformed(pageReader, pageBuilder, decryptor, encoded, iv)) {
+                return;
+            }
+            decryptor.setMetrics(metrics);
+            final String plaintext;
+            try {
+                plaintext = decryptor.decrypt(encoded, iv);
+            }
+            catch (DataException | IllegalArgumentException e) {
+                failed(pageReader, pageBuilder, e);
+                return;
+            }
+            StagedRow.setString(staged, pageBuilder, column, plaintext);
+        }
+    }
+
+    static String readIv(PageReader pageReader, Column ivColumn)
+    {
+        if (pageReader.isNull(ivColumn)) {
+            throw new DataException(nullIvReason(ivColumn));
+        }
+        return pageReader.getString(ivColumn);
+    }
+
+    static String nullIvReason(Column ivColumn)
+    {
+        return String.format("Initialization vector in column '%s' is null", ivColumn.getName());
+    }
+
+    /**
+     * Copies plaintexts decrypted by a {@link ParallelDecryption} for the whole page, with {@code writer}.
+     *
+     * <p>{@link #scan(PageReader)} must be called for every record of a page before the page is copied.
+     */
+    static final class ParallelDecryptingStringCopier
+            extends ColumnCopier
+    {
+        private final int spec;
+        private final int target;
+        private final Column ivColumn;
+        private final ParallelDecryption parallel;
+        private final DecryptionCache cache;
+        private final PlaintextWriter writer;
+
+        /**
+         * @param spec the index of the spec decrypting this column
+         * @param target the index of this column in the metrics
+         * @param ivColumn the column holding the initialization vector of each record, or null
+         */
+        ParallelDecryptingStringCopier(Column column, DecryptionMetrics.Column metrics, InvalidValueHandler invalidValues, int spec, int target,
+                                       Column ivColumn, ParallelDecryption parallel, DecryptionCache cache, PlaintextWriter writer)
+        {
+            super(column, metrics, invalidValues);
+            this.spec = spec;
+            this.target = target;
+            this.ivColumn = ivColumn;
+            this.parallel = parallel;
+            this.cache = cache;
+            this.writer = writer;
+        }
+
+        void scan(PageReader pageReader)
+        {
+            if (pageReader.isNull(column)) {
+                return;
+            }
+            String encoded = pageReader.getString(column);
+            String plaintext = cache != null ? cache.get(encoded) : null;
+            if (plaintext != null) {
+                parallel.addDecrypted(plaintext);
+            }
+            else if (ivColumn != null && invalidValues != null && pageReader.isNull(ivColumn)) {
+                parallel.addInvalid(nullIvReason(ivColumn));
+            }
+            else {
+                parallel.add(spec, target, encoded, ivColumn != null ? readIv(pageReader, ivColumn) : null);
+            }
+        }
+
+        @Override
+        void copyValue(PageReader pageReader, PageBuilder pageBuilder)
+        {
+            String failure = parallel.peekFailure();
+            String encoded = parallel.peekEncoded();
+            String plaintext = parallel.next();
+            if (failure != null) {
+                invalid(pageReader, pageBuilder, failure);
+                return;
+            }
+            if (cache != null && encoded != null) {
+                cache.put(encoded, plaintext);
+            }
+            try {
+                writer.write(pageBuilder, plaintext);
+            }
+            catch (DataException | IllegalArgumentException e) {
+                failed(pageReader, pageBuilder, e);
+            }
+        }
+
+        @Override
+        DecryptionCache getCache()
+        {
+            return cache;
+        }
+    }
+
+    /**
+     * Decrypts the fields at the JSON paths of the column.
+     */
+    static final class DecryptingJsonCopier
+            extends ColumnCopier
+    {
+        private final JsonPathTargets targets;
+        private final ValueDecryptor[] decryptors;
+
+        /**
+         * @param decryptors the decryptor of each spec
+         */
+        DecryptingJsonCopier(Column column, DecryptionMetrics.Column metrics, InvalidValueHandler invalidValues, JsonPathTargets targets,
+                             ValueDecryptor[] decryptors)
+        {
+            super(column, metrics, invalidValues);
+            this.targets = targets;
+            this.decryptors = decryptors;
+        }
+
+        @Override
+        void copyValue(PageReader pageReader, PageBuilder pageBuilder)
+        {
+            for (ValueDecryptor decryptor : decryptors) {
+                decryptor.setMetrics(metrics);
+            }
+            // A field which can't be decrypted is handled as the whole value of the column is.
+            final Value decrypted;
+            try {
+                decrypted = targets.decrypt(pageReader.getJson(column), decryptors);
+            }
+            catch (DataException | IllegalArgumentException e) {
+                failed(pageReader, pageBuilder, e);
+                return;
+            }
+            StagedRow.setJson(staged, pageBuilder, column, decrypted);
+        }
+
+        @Override
+        void copyAsIs(PageReader pageReader, PageBuilder pageBuilder)
+        {
+            pageBuilder.setJson(column, pageReader.getJson(column));
+        }
+    }
+}
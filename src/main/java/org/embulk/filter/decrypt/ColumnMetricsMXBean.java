@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+/**
+ * Metrics of a decrypted column of a task, registered while the task runs.
+ *
+ * <p>The times are estimated from a sample of values, and summed over the threads of {@code parallelism}.
+ */
+public interface ColumnMetricsMXBean
+{
+    long getValues();
+
+    long getNulls();
+
+    /**
+     * Returns the number of values which couldn't be decrypted and were handled by {@code on_error}.
+     */
+    long getErrors();
+
+    long getCiphertextBytes();
+
+    long getPlaintextBytes();
+
+    long getDecodeNanos();
+
+    long getDecryptNanos();
+}
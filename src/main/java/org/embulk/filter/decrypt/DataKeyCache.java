@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.DataException;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A size-bounded LRU cache from wrapped data keys to what is made of the unwrapped keys, usually a ready decryptor.
+ *
+ * <p>A wrapped key is unwrapped again when its entry is older than the TTL or has been used the maximum number
+ * of times, so that a data key is not kept in memory nor used longer than allowed. Looking up a wrapped key in
+ * the middle of a decoded value copies nothing; only a miss copies the wrapped key.
+ *
+ * <p>An instance must be used by one thread at a time.
+ */
+final class DataKeyCache<V>
+{
+    interface Factory<V>
+    {
+        V create(byte[] dataKey) throws GeneralSecurityException;
+    }
+
+    private final DataKeyUnwrapper unwrapper;
+    private final Factory<V> factory;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long maxUses;
+    private final LongSupplier nanoClock;
+    private final LinkedHashMap<WrappedKey, UnwrappedKey<V>> entries;
+    private final WrappedKey probe = new WrappedKey();
+
+    private long hits;
+    private long misses;
+    private long expirations;
+    private long evictions;
+
+    /**
+     * @param ttlNanos nanoseconds for which an unwrapped key is used, or 0 to use it until it is evicted
+     * @param maxUses values decrypted with an unwrapped key before it is unwrapped again, or 0 for no limit
+     */
+    DataKeyCache(DataKeyUnwrapper unwrapper, Factory<V> factory, int maxEntries, long ttlNanos, long maxUses)
+    {
+        this(unwrapper, factory, maxEntries, ttlNanos, maxUses, System::nanoTime);
+    }
+
+    DataKeyCache(DataKeyUnwrapper unwrapper, Factory<V> factory, int maxEntries, long ttlNanos, long maxUses, LongSupplier nanoClock)
+    {
+        this.unwrapper = unwrapper;
+        this.factory = factory;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        this.maxUses = maxUses;
+        this.nanoClock = nanoClock;
+        this.entries = new LinkedHashMap<WrappedKey, UnwrappedKey<V>>(Math.min(maxEntries, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<WrappedKey, UnwrappedKey<V>> eldest)
+            {
+                if (size() > DataKeyCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    int getWrappedKeyLength()
+    {
+        return unwrapper.getWrappedKeyLength();
+    }
+
+    /**
+     * Returns the value made of the data key wrapped in {@code src} from {@code offset}, unwrapping it if not cached.
+     */
+    V get(byte[] src, int offset)
+    {
+        final long now = ttlNanos > 0 ? nanoClock.getAsLong() : 0;
+        probe.set(src, offset, unwrapper.getWrappedKeyLength());
+        UnwrappedKey<V> entry = entries.get(probe);
+        if (entry != null) {
+            if (!isExpired(entry, now)) {
+                entry.uses++;
+                hits++;
+                return entry.value;
+            }
+            entries.remove(probe);
+            expirations++;
+        }
+
+        misses++;
+        final byte[] wrapped = Arrays.copyOfRange(src, offset, offset + unwrapper.getWrappedKeyLength());
+        final V value;
+        try {
+            value = factory.create(unwrapper.unwrap(wrapped));
+        }
+        catch (GeneralSecurityException e) {
+            throw new DataException("Wrapped data key can't be unwrapped", e);
+        }
+        entry = new UnwrappedKey<>(value, now);
+        entries.put(new WrappedKey(wrapped), entry);
+        return value;
+    }
+
+    private boolean isExpired(UnwrappedKey<V> entry, long now)
+    {
+        return (ttlNanos > 0 && now - entry.createdNanos >= ttlNanos)
+                || (maxUses > 0 && entry.uses >= maxUses);
+    }
+
+    long getHits()
+    {
+        return hits;
+    }
+
+    long getMisses()
+    {
+        return misses;
+    }
+
+    long getExpirations()
+    {
+        return expirations;
+    }
+
+    long getEvictions()
+    {
+        return evictions;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d hits, %d misses, %d expirations, %d evictions, %d/%d entries",
+                hits, misses, expirations, evictions, entries.size(), maxEntries);
+    }
+
+    private static final class UnwrappedKey<V>
+    {
+        private final V value;
+        private final long createdNanos;
+        private long uses = 1;
+
+        private UnwrappedKey(V value, long createdNanos)
+        {
+            this.value = value;
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    // A range of a byte array. The probe points into the decoded value, and the stored keys own their arrays.
+    private static final class WrappedKey
+    {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+        private int hash;
+
+        private WrappedKey()
+        {
+        }
+
+        private WrappedKey(byte[] bytes)
+        {
+            set(bytes, 0, bytes.length);
+        }
+
+        private void set(byte[] bytes, int offset, int length)
+        {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            int h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + bytes[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof WrappedKey)) {
+                return false;
+            }
+            WrappedKey other = (WrappedKey) obj;
+            if (hash != other.hash || length != other.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[offset + i] != other.bytes[other.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
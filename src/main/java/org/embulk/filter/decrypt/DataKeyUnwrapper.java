@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Unwraps the data key heading each value encrypted with envelope encryption.
+ *
+ * <p>Implementations may call an external key service, so {@link DataKeyCache} calls it once per distinct
+ * wrapped key, not once per value. An instance is used by one thread at a time.
+ */
+interface DataKeyUnwrapper
+{
+    /**
+     * Returns the length in bytes of the wrapped data key at the head of each value.
+     */
+    int getWrappedKeyLength();
+
+    byte[] unwrap(byte[] wrapped) throws GeneralSecurityException;
+
+    /**
+     * Unwraps data keys wrapped by a master key with the AES key wrap algorithm of RFC 3394.
+     */
+    final class AesKeyWrap
+            implements DataKeyUnwrapper
+    {
+        // RFC 3394 adds an 8-byte integrity check value to the wrapped key.
+        private static final int INTEGRITY_CHECK_LENGTH = 8;
+
+        private final Cipher cipher;
+        private final int wrappedKeyLength;
+
+        AesKeyWrap(SecretKeySpec masterKey, int dataKeyLength) throws GeneralSecurityException
+        {
+            this.cipher = Cipher.getInstance("AESWrap");
+            this.cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(masterKey.getEncoded(), "AES"));
+            this.wrappedKeyLength = dataKeyLength + INTEGRITY_CHECK_LENGTH;
+        }
+
+        @Override
+        public int getWrappedKeyLength()
+        {
+            return wrappedKeyLength;
+        }
+
+        @Override
+        public byte[] unwrap(byte[] wrapped) throws GeneralSecurityException
+        {
+            return cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY).getEncoded();
+        }
+    }
+}
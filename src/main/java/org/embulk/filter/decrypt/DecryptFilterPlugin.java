@@ -16,15 +16,6 @@
 
 package org.embulk.filter.decrypt;
 
-import com.amazonaws.AmazonServiceException;
-import com.amazonaws.SdkClientException;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.S3Object;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 import com.google.common.io.BaseEncoding;
@@ -33,48 +24,56 @@ import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Column;
-import org.embulk.spi.ColumnVisitor;
 import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FilterPlugin;
-import org.embulk.spi.Page;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.StringType;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
 import org.embulk.util.config.Config;
 import org.embulk.util.config.ConfigDefault;
 import org.embulk.util.config.ConfigMapper;
 import org.embulk.util.config.ConfigMapperFactory;
 import org.embulk.util.config.Task;
 import org.embulk.util.config.TaskMapper;
-import org.embulk.util.snakeyaml.EmbulkYamlTagResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.yaml.snakeyaml.DumperOptions;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.constructor.SafeConstructor;
-import org.yaml.snakeyaml.representer.Representer;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
-import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static java.lang.String.format;
 
@@ -88,20 +87,44 @@ public class DecryptFilterPlugin
         AES_128_CBC("AES/CBC/PKCS5Padding", "AES", 128, true, "AES-128", "AES-128-CBC"),
         AES_256_ECB("AES/ECB/PKCS5Padding", "AES", 256, false, "AES-256-ECB"),
         AES_192_ECB("AES/ECB/PKCS5Padding", "AES", 192, false, "AES-192-ECB"),
-        AES_128_ECB("AES/ECB/PKCS5Padding", "AES", 128, false, "AES-128-ECB");
+        AES_128_ECB("AES/ECB/PKCS5Padding", "AES", 128, false, "AES-128-ECB"),
+        // CTR has no padding, so a value is exactly as long as its plaintext.
+        AES_256_CTR("AES/CTR/NoPadding", "AES", 256, true, "AES-256-CTR"),
+        AES_192_CTR("AES/CTR/NoPadding", "AES", 192, true, "AES-192-CTR"),
+        AES_128_CTR("AES/CTR/NoPadding", "AES", 128, true, "AES-128-CTR"),
+        // AEAD algorithms. Each value is a 12-byte nonce, followed by the ciphertext and a 16-byte tag.
+        AES_256_GCM("AES/GCM/NoPadding", "AES", 256, 12, 128, "AES-256-GCM"),
+        AES_128_GCM("AES/GCM/NoPadding", "AES", 128, 12, 128, "AES-128-GCM"),
+        // Available on Java 11 or later.
+        CHACHA20_POLY1305("ChaCha20-Poly1305", "ChaCha20", 256, 12, 0, "ChaCha20-Poly1305");
 
         private final String javaName;
         private final String javaKeySpecName;
         private final int keyLength;
         private final boolean useIv;
+        private final int nonceLength;
+        private final int gcmTagLength;
         private String[] displayNames;
 
         Algorithm(String javaName, String javaKeySpecName, int keyLength, boolean useIv, String... displayNames)
+        {
+            this(javaName, javaKeySpecName, keyLength, useIv, 0, 0, displayNames);
+        }
+
+        Algorithm(String javaName, String javaKeySpecName, int keyLength, int nonceLength, int gcmTagLength, String... displayNames)
+        {
+            this(javaName, javaKeySpecName, keyLength, false, nonceLength, gcmTagLength, displayNames);
+        }
+
+        Algorithm(String javaName, String javaKeySpecName, int keyLength, boolean useIv, int nonceLength, int gcmTagLength,
+                  String... displayNames)
         {
             this.javaName = javaName;
             this.javaKeySpecName = javaKeySpecName;
             this.keyLength = keyLength;
             this.useIv = useIv;
+            this.nonceLength = nonceLength;
+            this.gcmTagLength = gcmTagLength;
             this.displayNames = displayNames;
         }
 
@@ -125,6 +148,52 @@ public class DecryptFilterPlugin
             return useIv;
         }
 
+        /**
+         * Returns the length in bytes of the initialization vector, or 0 if the algorithm doesn't use one.
+         */
+        public int getIvLength()
+        {
+            // All algorithms with an IV are AES, whose IV is a block.
+            return useIv ? 16 : 0;
+        }
+
+        /**
+         * Returns the length in bytes of the nonce prefixed to each value, or 0 if values have no nonce.
+         */
+        public int getNonceLength()
+        {
+            return nonceLength;
+        }
+
+        /**
+         * Returns the length in bytes which every ciphertext is a multiple of, or 1 if it may be of any length.
+         */
+        public int getCiphertextBlockLength()
+        {
+            // PKCS5Padding pads every plaintext to whole AES blocks.
+            return javaName.endsWith("/PKCS5Padding") ? 16 : 1;
+        }
+
+        /**
+         * Returns the smallest length in bytes of a ciphertext, even of an empty plaintext.
+         */
+        public int getMinCiphertextLength()
+        {
+            if (javaName.endsWith("/PKCS5Padding")) {
+                return 16;
+            }
+            // The tag of both AES-GCM and ChaCha20-Poly1305 is 16 bytes.
+            return nonceLength > 0 ? 16 : 0;
+        }
+
+        public AlgorithmParameterSpec newParameterSpec(byte[] src, int offset, int length)
+        {
+            if (gcmTagLength > 0) {
+                return new GCMParameterSpec(gcmTagLength, src, offset, length);
+            }
+            return new IvParameterSpec(src, offset, length);
+        }
+
         @JsonCreator
         public static Algorithm fromName(String name)
         {
@@ -210,7 +279,162 @@ public class DecryptFilterPlugin
         }
     }
 
-    public interface PluginTask
+    public enum KeyDerivation
+    {
+        EVP_BYTES_TO_KEY,
+        PBKDF2;
+
+        @JsonCreator
+        public static KeyDerivation of(String value)
+        {
+            return KeyDerivation.valueOf(value.toUpperCase());
+        }
+
+        @Override
+        @JsonValue
+        public String toString()
+        {
+            return super.toString().toLowerCase();
+        }
+    }
+
+    public enum KeyDerivationDigest
+    {
+        MD5("MD5"),
+        SHA1("SHA-1"),
+        SHA256("SHA-256"),
+        SHA512("SHA-512");
+
+        private final String javaName;
+
+        KeyDerivationDigest(String javaName)
+        {
+            this.javaName = javaName;
+        }
+
+        public String getJavaName()
+        {
+            return javaName;
+        }
+
+        /**
+         * Returns the name of the PBKDF2 SecretKeyFactory with the HMAC of this digest.
+         */
+        public String getPbkdf2JavaName()
+        {
+            return "PBKDF2WithHmac" + name();
+        }
+
+        @JsonCreator
+        public static KeyDerivationDigest of(String value)
+        {
+            return KeyDerivationDigest.valueOf(value.toUpperCase());
+        }
+
+        @Override
+        @JsonValue
+        public String toString()
+        {
+            return super.toString().toLowerCase();
+        }
+    }
+
+    /**
+     * The type of a decrypted column in the output schema. Plaintexts are parsed into the type by {@link PlaintextWriter}.
+     */
+    public enum OutputType
+    {
+        STRING(Types.STRING),
+        LONG(Types.LONG),
+        DOUBLE(Types.DOUBLE),
+        BOOLEAN(Types.BOOLEAN),
+        TIMESTAMP(Types.TIMESTAMP),
+        JSON(Types.JSON);
+
+        private final Type type;
+
+        OutputType(Type type)
+        {
+            this.type = type;
+        }
+
+        public Type getType()
+        {
+            return type;
+        }
+
+        @JsonCreator
+        public static OutputType of(String value)
+        {
+            return OutputType.valueOf(value.toUpperCase());
+        }
+
+        @Override
+        @JsonValue
+        public String toString()
+        {
+            return super.toString().toLowerCase();
+        }
+    }
+
+    /**
+     * How plaintexts were compressed before they were encrypted. Decompressed by {@link PlaintextDecompressor}.
+     */
+    public enum PlaintextCompression
+    {
+        NONE,
+        GZIP,
+        // zlib wrapper of RFC 1950.
+        ZLIB,
+        // Raw deflate of RFC 1951, without a wrapper.
+        DEFLATE;
+
+        @JsonCreator
+        public static PlaintextCompression of(String value)
+        {
+            return PlaintextCompression.valueOf(value.toUpperCase());
+        }
+
+        @Override
+        @JsonValue
+        public String toString()
+        {
+            return super.toString().toLowerCase();
+        }
+    }
+
+    /**
+     * What is done with a value which can't be decrypted. Values other than {@code fail} are handled by {@link InvalidValueHandler}.
+     */
+    public enum OnError
+    {
+        // Fails the task with the exception.
+        FAIL,
+        // Writes null in place of the value.
+        NULL,
+        // Drops the whole record.
+        SKIP,
+        // Writes the value as it is, still encrypted.
+        PASSTHROUGH;
+
+        @JsonCreator
+        public static OnError of(String value)
+        {
+            return OnError.valueOf(value.toUpperCase());
+        }
+
+        @Override
+        @JsonValue
+        public String toString()
+        {
+            return super.toString().toLowerCase();
+        }
+    }
+
+    /**
+     * How a set of columns is decrypted. Either given at the top level of the config, or as each entry of {@code columns}.
+     */
+    public interface DecryptionSpec
             extends Task
     {
         @Config("algorithm")
@@ -230,18 +454,137 @@ public class DecryptFilterPlugin
 
         public void setKeyHex(Optional<String> key);
 
+        @Config("keyring")
+        @ConfigDefault("null")
+        public Optional<Map<Integer, String>> getKeyring();
+
+        public void setKeyring(Optional<Map<Integer, String>> keyring);
+
+        @Config("key_id_length")
+        @ConfigDefault("1")
+        public int getKeyIdLength();
+
+        @Config("passphrase")
+        @ConfigDefault("null")
+        public Optional<String> getPassphrase();
+
+        public void setPassphrase(Optional<String> passphrase);
+
+        @Config("key_derivation")
+        @ConfigDefault("\"evp_bytes_to_key\"")
+        public KeyDerivation getKeyDerivation();
+
+        @Config("key_derivation_digest")
+        @ConfigDefault("\"sha256\"")
+        public KeyDerivationDigest getKeyDerivationDigest();
+
+        @Config("pbkdf2_iterations")
+        @ConfigDefault("10000")
+        public int getPbkdf2Iterations();
+
+        @Config("salt_hex")
+        @ConfigDefault("null")
+        public Optional<String> getSaltHex();
+
+        @Config("wrapped_data_key")
+        @ConfigDefault("false")
+        public boolean getWrappedDataKey();
+
+        @Config("data_key_cache_size")
+        @ConfigDefault("1000")
+        public int getDataKeyCacheSize();
+
+        @Config("data_key_cache_ttl")
+        @ConfigDefault("300")
+        public long getDataKeyCacheTtl();
+
+        @Config("data_key_max_uses")
+        @ConfigDefault("0")
+        public long getDataKeyMaxUses();
+
         @Config("iv_hex")
         @ConfigDefault("null")
         public Optional<String> getIvHex();
 
         public void setIvHex(Optional<String> iv);
 
+        @Config("iv_prefix")
+        @ConfigDefault("false")
+        public boolean getIvPrefix();
+
+        @Config("iv_column")
+        @ConfigDefault("null")
+        public Optional<String> getIvColumn();
+
         @Config("aws_params")
         @ConfigDefault("null")
         public Optional<AWSParams> getAWSParams();
 
         @Config("column_names")
+        @ConfigDefault("[]")
         public List<String> getColumnNames();
+
+        @Config("json_paths")
+        @ConfigDefault("{}")
+        public Map<String, List<String>> getJsonPaths();
+
+        @Config("output_type")
+        @ConfigDefault("\"string\"")
+        public OutputType getOutputType();
+
+        @Config("timestamp_format")
+        @ConfigDefault("null")
+        public Optional<String> getTimestampFormat();
+
+        @Config("timezone")
+        @ConfigDefault("\"UTC\"")
+        public String getTimezone();
+
+        @Config("plaintext_compression")
+        @ConfigDefault("\"none\"")
+        public PlaintextCompression getPlaintextCompression();
+
+        @Config("max_decompressed_size")
+        @ConfigDefault("67108864")
+        public int getMaxDecompressedSize();
+
+        @Config("streaming_threshold")
+        @ConfigDefault("1048576")
+        public int getStreamingThreshold();
+    }
+
+    public interface PluginTask
+            extends Task
+    {
+        @Config("columns")
+        @ConfigDefault("[]")
+        public List<DecryptionSpec> getColumns();
+
+        public void setColumns(List<DecryptionSpec> columns);
+
+        @Config("cache_size")
+        @ConfigDefault("0")
+        public int getCacheSize();
+
+        @Config("parallelism")
+        @ConfigDefault("1")
+        public int getParallelism();
+
+        @Config("pipeline_queue_size")
+        @ConfigDefault("0")
+        public int getPipelineQueueSize();
+
+        @Config("jmx_metrics")
+        @ConfigDefault("true")
+        public boolean getJmxMetrics();
+
+        @Config("on_error")
+        @ConfigDefault("\"fail\"")
+        public OnError getOnError();
+
+        @Config("quarantine_path_prefix")
+        @ConfigDefault("null")
+        public Optional<String> getQuarantinePathPrefix();
     }
 
     public interface AWSParams extends Task
@@ -260,90 +603,97 @@ public class DecryptFilterPlugin
 
         @Config("path")
         public String getPath();
+
+        @Config("endpoint")
+        @ConfigDefault("null")
+        public Optional<String> getEndpoint();
+
+        @Config("key_cache_dir")
+        @ConfigDefault("null")
+        public Optional<String> getKeyCacheDir();
+
+        @Config("key_cache_ttl")
+        @ConfigDefault("3600")
+        public long getKeyCacheTtl();
+
+        @Config("key_cache_refresh")
+        @ConfigDefault("false")
+        public boolean getKeyCacheRefresh();
     }
 
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
     static final ConfigMapper CONFIG_MAPPER = CONFIG_MAPPER_FACTORY.createConfigMapper();
     private static final TaskMapper TASK_MAPPER = CONFIG_MAPPER_FACTORY.createTaskMapper();
 
-    private static final Yaml yaml = new Yaml(new SafeConstructor(), new Representer(), new DumperOptions(), new EmbulkYamlTagResolver());
     private static final Logger log = LoggerFactory.getLogger(DecryptFilterPlugin.class);
 
     @Override
     public void transaction(ConfigSource config, Schema inputSchema,
                             FilterPlugin.Control control)
     {
-        final PluginTask task = CONFIG_MAPPER.map(config, PluginTask.class);
+        final PluginTask task = loadTask(config);
 
-        validateAndResolveKey(task, inputSchema);
+        for (DecryptionSpec spec : task.getColumns()) {
+            validateAndResolveKey(spec, inputSchema);
+        }
+        validateTask(task);
 
-        control.run(task.toTaskSource(), inputSchema);
+        // The tasks run in this JVM share initialized ciphers until the transaction ends.
+        try (CipherCache.Scope scope = CipherCache.openScope()) {
+            control.run(task.toTaskSource(), buildOutputSchema(task, inputSchema));
+        }
     }
 
-    public Map<String, String> retrieveKey(final String bucket, final String path, final AmazonS3 client)
+    /**
+     * Returns {@code inputSchema} with the type of each decrypted column replaced by its {@code output_type}.
+     */
+    static Schema buildOutputSchema(PluginTask task, Schema inputSchema)
     {
-        S3Object fullObject = null;
-
-        try {
-            fullObject = client.getObject(new GetObjectRequest(bucket, path));
-            if (fullObject == null) {
-                throw new ConfigException("S3 key file is not enabled to be retrieved");
-            }
-            return (Map<String, String>) yaml.load(fullObject.getObjectContent());
-        }
-        catch (AmazonServiceException e) {
-            // The call was transmitted successfully, but Amazon S3 couldn't process
-            // it, so it returned an error response.
-            if (e.getErrorType().equals(AmazonServiceException.ErrorType.Client)) {
-                // HTTP 40x errors. auth error, bucket doesn't exist, etc. See AWS document for the full list:
-                // http://docs.aws.amazon.com/AmazonS3/latest/API/ErrorResponses.html
-                if (e.getStatusCode() != 400
-                        || "ExpiredToken".equalsIgnoreCase(e.getErrorCode())) {
-                    throw new ConfigException(e);
-                }
-            }
-            throw e;
+        final Type[] types = new Type[inputSchema.getColumnCount()];
+        for (Column column : inputSchema.getColumns()) {
+            types[column.getIndex()] = column.getType();
         }
-        catch (ClassCastException e) {
-            throw new ConfigException("S3 key file content is unexpected format");
-        }
-        finally {
-            // To ensure that the network connection doesn't remain open, close any open input streams.
-            if (fullObject != null) {
-                try {
-                    fullObject.close();
-                }
-                catch (IOException e) {
-                    log.warn("Failure to close S3 Object input stream", e);
+        for (DecryptionSpec spec : task.getColumns()) {
+            if (spec.getOutputType() != OutputType.STRING) {
+                for (String name : spec.getColumnNames()) {
+                    types[inputSchema.lookupColumn(name).getIndex()] = spec.getOutputType().getType();
                 }
             }
         }
+        final Schema.Builder builder = Schema.builder();
+        for (Column column : inputSchema.getColumns()) {
+            builder.add(column.getName(), types[column.getIndex()]);
+        }
+        return builder.build();
     }
 
-    public AmazonS3 newS3Client(final AWSParams awsParams)
+    /**
+     * Maps {@code config} to a task. Without {@code columns}, the top level of {@code config} is the only spec.
+     */
+    static PluginTask loadTask(ConfigSource config)
     {
-        AWSCredentialsProvider awsCredentialsProvider = new AWSCredentialsProvider()
-        {
-            @Override
-            public AWSCredentials getCredentials()
-            {
-                return new BasicAWSCredentials(awsParams.getAccessKey(), awsParams.getSecretKey());
-            }
-
-            @Override
-            public void refresh()
-            {
-            }
-        };
-
-        try {
-            return AmazonS3ClientBuilder.standard()
-                    .withRegion(awsParams.getRegion())
-                    .withCredentials(awsCredentialsProvider)
-                    .build();
+        final PluginTask task = CONFIG_MAPPER.map(config, PluginTask.class);
+        if (task.getColumns().isEmpty()) {
+            task.setColumns(Collections.singletonList(CONFIG_MAPPER.map(config, DecryptionSpec.class)));
         }
-        catch (SdkClientException e) {
-            throw new ConfigException(e);
+        else if (config.has("column_names")) {
+            throw new ConfigException("Field 'column_names' can't be set together with 'columns'. Set it in each entry of 'columns'");
+        }
+        return task;
+    }
+
+    /**
+     * Creates the provider of the key file of {@code keyType}. Each provider is a separate class,
+     * so that its dependencies, such as the AWS SDK, are loaded only when its key type is configured.
+     * This class refers to no type of those dependencies. Replaced in tests.
+     */
+    KeyProvider newKeyProvider(final KeyType keyType)
+    {
+        switch (keyType) {
+            case S3:
+                return new S3KeyProvider();
+            default:
+                throw new ConfigException(String.format("Key type [%s] is not supported", keyType.toString()));
         }
     }
 
@@ -353,220 +703,623 @@ public class DecryptFilterPlugin
     {
         final PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
 
-        final Cipher cipher;
-        try {
-            cipher = getCipher(Cipher.DECRYPT_MODE, task);
+        final DecryptPageOutput decryptOutput =
+                open(task, inputSchema, () -> getPageReader(inputSchema), getPageBuilder(Exec.getBufferAllocator(), outputSchema, output));
+        if (task.getJmxMetrics()) {
+            decryptOutput.registerMetrics();
         }
-        catch (Exception e) {
-            throw new DataException(e);
+        if (task.getPipelineQueueSize() > 0) {
+            return new PipelinedPageOutput(decryptOutput, task.getPipelineQueueSize());
         }
+        return decryptOutput;
+    }
 
-        final int[] targetColumns = new int[task.getColumnNames().size()];
-        int i = 0;
-        for (String name : task.getColumnNames()) {
-            targetColumns[i++] = inputSchema.lookupColumn(name).getIndex();
+    // Builds the PageOutput on top of readers from the given supplier and the given builder.
+    // Separated from open(TaskSource, ...) so that benchmarks can drive the hot path without an Exec session.
+    DecryptPageOutput open(final PluginTask task, final Schema inputSchema, final Supplier<PageReader> pageReaders, final PageBuilder pageBuilder)
+    {
+        final List<DecryptionSpec> specs = task.getColumns();
+
+        // One decryptor, holding its own Cipher, for each spec and each thread that decrypts at once.
+        // The ciphers are taken from those which earlier tasks of this thread have finished with, if any.
+        final CipherCache.Lease ciphers = CipherCache.lease();
+        final ValueDecryptor[][] decryptors = new ValueDecryptor[specs.size()][task.getParallelism()];
+        for (int s = 0; s < specs.size(); s++) {
+            final DecryptionSpec spec = specs.get(s);
+            for (int i = 0; i < decryptors[s].length; i++) {
+                try {
+                    decryptors[s][i] = newDecryptor(spec, ciphers);
+                    decryptors[s][i].setStreamingThreshold(spec.getStreamingThreshold());
+                    if (spec.getPlaintextCompression() != PlaintextCompression.NONE) {
+                        decryptors[s][i].setDecompressor(new PlaintextDecompressor(spec.getPlaintextCompression(), spec.getMaxDecompressedSize()));
+                    }
+                }
+                catch (Exception e) {
+                    throw new DataException(e);
+                }
+            }
         }
 
-        return new PageOutput() {
-            private final PageReader pageReader = getPageReader(inputSchema);
-            private final PageBuilder pageBuilder = getPageBuilder(Exec.getBufferAllocator(), outputSchema, output);
-            private final Encoder encoder = task.getInputEncoding();
-
-            @Override
-            public void finish()
-            {
-                pageBuilder.finish();
+        // All specs are applied in the same pass over each page.
+        final int[] specOfColumn = new int[inputSchema.getColumnCount()];
+        final List<Integer> targets = new ArrayList<>();
+        for (int s = 0; s < specs.size(); s++) {
+            for (String name : specs.get(s).getColumnNames()) {
+                int index = inputSchema.lookupColumn(name).getIndex();
+                specOfColumn[index] = s;
+                targets.add(index);
             }
+        }
+        final int[] targetColumns = targets.stream().mapToInt(Integer::intValue).toArray();
+
+        // Fields in JSON columns are decrypted while the page is copied, also with parallelism. The first decryptor
+        // of each spec is then used by this thread only, since ParallelDecryption runs its first chunk in this thread
+        // and has ended before the page is copied.
+        final JsonPathTargets[] jsonTargets = new JsonPathTargets[inputSchema.getColumnCount()];
+        for (Map.Entry<String, JsonPathTargets> column : compileJsonPaths(specs).entrySet()) {
+            jsonTargets[inputSchema.lookupColumn(column.getKey()).getIndex()] = column.getValue();
+        }
+        final ValueDecryptor[] jsonDecryptors = new ValueDecryptor[specs.size()];
+        for (int s = 0; s < specs.size(); s++) {
+            jsonDecryptors[s] = decryptors[s][0];
+        }
 
-            @Override
-            public void close()
-            {
-                pageBuilder.close();
+        // The decrypted columns are counted in the order of the schema.
+        final int[] targetOfColumn = new int[inputSchema.getColumnCount()];
+        final List<String> targetNames = new ArrayList<>();
+        for (Column column : inputSchema.getColumns()) {
+            if (targets.contains(column.getIndex()) || jsonTargets[column.getIndex()] != null) {
+                targetOfColumn[column.getIndex()] = targetNames.size();
+                targetNames.add(column.getName());
             }
+        }
+        final DecryptionMetrics metrics = new DecryptionMetrics(targetNames.toArray(new String[0]), task.getParallelism());
 
-            private boolean isTargetColumn(Column c)
-            {
-                for (int i = 0; i < targetColumns.length; i++) {
-                    if (c.getIndex() == targetColumns[i]) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-
-            @Override
-            public void add(Page page)
-            {
-                pageReader.setPage(page);
-
-                while (pageReader.nextRecord()) {
-                    inputSchema.visitColumns(new ColumnVisitor() {
-                        @Override
-                        public void booleanColumn(Column column)
-                        {
-                            if (pageReader.isNull(column)) {
-                                pageBuilder.setNull(column);
-                            }
-                            else {
-                                pageBuilder.setBoolean(column, pageReader.getBoolean(column));
-                            }
-                        }
+        // Values which can't be decrypted fail the task without a handler.
+        final InvalidValueHandler invalidValues = task.getOnError() == OnError.FAIL ? null : new InvalidValueHandler(task.getOnError(),
+                task.getQuarantinePathPrefix().map(QuarantineFile::new).orElse(null), inputSchema.getColumnCount());
+        final StagedRow staged = invalidValues != null ? invalidValues.getStagedRow() : null;
 
-                        @Override
-                        public void longColumn(Column column)
-                        {
-                            if (pageReader.isNull(column)) {
-                                pageBuilder.setNull(column);
-                            }
-                            else {
-                                pageBuilder.setLong(column, pageReader.getLong(column));
-                            }
-                        }
+        final Function<Column, ColumnCopier> jsonCopier = column -> new ColumnCopier.DecryptingJsonCopier(column,
+                metrics.of(targetOfColumn[column.getIndex()], 0), invalidValues, jsonTargets[column.getIndex()], jsonDecryptors);
 
-                        @Override
-                        public void doubleColumn(Column column)
-                        {
-                            if (pageReader.isNull(column)) {
-                                pageBuilder.setNull(column);
-                            }
-                            else {
-                                pageBuilder.setDouble(column, pageReader.getDouble(column));
-                            }
-                        }
+        final int cacheSize = task.getCacheSize();
+        final boolean[] typedOutput = new boolean[specs.size()];
+        for (int s = 0; s < specs.size(); s++) {
+            typedOutput[s] = specs.get(s).getOutputType() != OutputType.STRING;
+        }
+        final Column[] ivColumns = new Column[specs.size()];
+        for (int s = 0; s < specs.size(); s++) {
+            if (specs.get(s).getIvColumn().isPresent()) {
+                ivColumns[s] = inputSchema.lookupColumn(specs.get(s).getIvColumn().get());
+            }
+        }
 
-                        @Override
-                        public void stringColumn(Column column)
-                        {
-                            if (pageReader.isNull(column)) {
-                                pageBuilder.setNull(column);
-                            }
-                            else if (isTargetColumn(column)) {
-                                String orig = pageReader.getString(column);
-                                byte[] decoded = encoder.decode(orig);
-                                byte[] decrypted;
-
-                                try {
-                                    decrypted = cipher.doFinal(decoded);
-                                }
-                                catch (BadPaddingException ex) {
-                                    // this must not happen because PKCS5Padding is always enabled
-                                    throw new DataException(ex);
-                                }
-                                catch (IllegalBlockSizeException ex) {
-                                    // this must not happen because always doFinal is called
-                                    throw new DataException(ex);
-                                }
-                                pageBuilder.setString(column, new String(decrypted, UTF_8));
-                            }
-                            else {
-                                pageBuilder.setString(column, pageReader.getString(column));
-                            }
+        final ParallelDecryption parallel;
+        final ColumnCopier[] copiers;
+        if (task.getParallelism() > 1) {
+            parallel = new ParallelDecryption(decryptors, metrics, invalidValues != null);
+            copiers = ColumnCopier.compile(inputSchema, targetColumns,
+                    column -> {
+                        final int s = specOfColumn[column.getIndex()];
+                        final int t = targetOfColumn[column.getIndex()];
+                        return new ColumnCopier.ParallelDecryptingStringCopier(column, metrics.of(t, 0), invalidValues, s, t, ivColumns[s],
+                                parallel, newCache(cacheSize), PlaintextWriter.of(column, specs.get(s), staged));
+                    }, jsonTargets, jsonCopier);
+        }
+        else {
+            parallel = null;
+            copiers = ColumnCopier.compile(inputSchema, targetColumns,
+                    column -> {
+                        final int s = specOfColumn[column.getIndex()];
+                        final DecryptionMetrics.Column counters = metrics.of(targetOfColumn[column.getIndex()], 0);
+                        if (cacheSize > 0) {
+                            return new ColumnCopier.CachingDecryptingStringCopier(column, counters, invalidValues, decryptors[s][0],
+                                    newCache(cacheSize), PlaintextWriter.of(column, specs.get(s), staged));
                         }
-
-                        @Override
-                        public void timestampColumn(Column column)
-                        {
-                            if (pageReader.isNull(column)) {
-                                pageBuilder.setNull(column);
-                            }
-                            else {
-                                setTimestampToPageBuilder(pageBuilder, column, getTimestampFromPageReader(pageReader, column));
-                            }
+                        if (typedOutput[s]) {
+                            return new ColumnCopier.DecryptingTypedCopier(column, counters, invalidValues, ivColumns[s], decryptors[s][0],
+                                    PlaintextWriter.of(column, specs.get(s), staged));
                         }
-
-                        @Override
-                        public void jsonColumn(Column column)
-                        {
-                            if (pageReader.isNull(column)) {
-                                pageBuilder.setNull(column);
-                            }
-                            else {
-                                pageBuilder.setJson(column, pageReader.getJson(column));
-                            }
+                        if (ivColumns[s] != null) {
+                            return new ColumnCopier.IvColumnDecryptingStringCopier(column, counters, invalidValues, ivColumns[s], decryptors[s][0]);
                         }
-                    });
-                    pageBuilder.addRecord();
-                }
+                        return new ColumnCopier.DecryptingStringCopier(column, counters, invalidValues, decryptors[s][0]);
+                    }, jsonTargets, jsonCopier);
+        }
+        return new DecryptPageOutput(pageReaders, pageBuilder, PassthroughColumns.of(inputSchema, copiers), copiers, parallel, metrics,
+                invalidValues, ciphers);
+    }
+
+    private static DecryptionCache newCache(int cacheSize)
+    {
+        return cacheSize > 0 ? new DecryptionCache(cacheSize) : null;
+    }
+
+    private void validateIv(DecryptionSpec spec, boolean hasIvHex) throws ConfigException
+    {
+        if (spec.getIvPrefix() && spec.getIvColumn().isPresent()) {
+            throw new ConfigException("Only one of iv_prefix and iv_column can be set");
+        }
+        if (spec.getIvPrefix()) {
+            if (!spec.getAlgorithm().useIv()) {
+                throw new ConfigException("Algorithm '" + spec.getAlgorithm() + "' doesn't use initialization vector. iv_prefix can't be enabled");
             }
-        };
+            if (hasIvHex) {
+                log.warn("Each value is prefixed with its initialization vector. iv_hex is ignored");
+            }
+        }
+        else if (spec.getIvColumn().isPresent()) {
+            if (!spec.getAlgorithm().useIv()) {
+                throw new ConfigException("Algorithm '" + spec.getAlgorithm() + "' doesn't use initialization vector. iv_column can't be set");
+            }
+            if (hasIvHex) {
+                log.warn("Initialization vector of each record is read from iv_column. iv_hex is ignored");
+            }
+        }
+        else if (spec.getAlgorithm().useIv() && !hasIvHex) {
+            throw new ConfigException("Algorithm '" + spec.getAlgorithm() + "' requires initialization vector. Please generate one and set it to iv_hex option.");
+        }
+        else if (!spec.getAlgorithm().useIv() && hasIvHex) {
+            log.warn("Algorithm '" + spec.getAlgorithm() + "' doesn't use initialization vector. iv_hex is ignored");
+        }
     }
 
-    private void validateAndResolveKey(PluginTask task, Schema schema) throws ConfigException
+    private void validateAndResolveKey(DecryptionSpec spec, Schema schema) throws ConfigException
     {
-        switch (task.getKeyType()) {
+        // column_names may be empty only if json_paths is set.
+        if (spec.getColumnNames().isEmpty() && spec.getJsonPaths().isEmpty()) {
+            throw new ConfigException("Field 'column_names' is required but not set");
+        }
+
+        switch (spec.getKeyType()) {
             case INLINE:
-                if (!task.getKeyHex().isPresent()) {
+                if (!spec.getKeyHex().isPresent() && !spec.getKeyring().isPresent() && !spec.getPassphrase().isPresent()) {
                     throw new ConfigException("Field 'key_hex' is required but not set");
                 }
-                if (task.getAlgorithm().useIv() && !task.getIvHex().isPresent()) {
-                    throw new ConfigException("Algorithm '" + task.getAlgorithm() + "' requires initialization vector. Please generate one and set it to iv_hex option.");
-                }
-                else if (!task.getAlgorithm().useIv() && task.getIvHex().isPresent()) {
-                    log.warn("Algorithm '" + task.getAlgorithm() + "' doesn't use initialization vector. iv_hex is ignored");
+                if (!spec.getPassphrase().isPresent()) {
+                    validateIv(spec, spec.getIvHex().isPresent());
                 }
                 break;
             case S3:
-                if (!task.getAWSParams().isPresent()) {
-                    throw new ConfigException("AWS Params are required for S3 Key type");
-                }
-                AWSParams params = task.getAWSParams().get();
-                AmazonS3 s3Client = newS3Client(params);
-                Map<String, String> keys = retrieveKey(params.getBucket(), params.getPath(), s3Client);
-                String key = keys.get("key_hex");
-                if (isNullOrEmpty(key)) {
+                Map<String, Object> keys = newKeyProvider(spec.getKeyType()).loadKeyFile(spec);
+                String key = (String) keys.get("key_hex");
+                Optional<Map<Integer, String>> keyring = parseKeyring(keys.get("keyring"));
+                String passphrase = (String) keys.get("passphrase");
+                if (isNullOrEmpty(key) && !keyring.isPresent() && isNullOrEmpty(passphrase)) {
                     throw new ConfigException("Field 'key_hex' is required but not set");
                 }
-                String iv = keys.get("iv_hex");
-                if (task.getAlgorithm().useIv() && isNullOrEmpty(iv)) {
-                    throw new ConfigException("Algorithm '" + task.getAlgorithm() + "' requires initialization vector. Please generate one and set it to iv_hex option.");
-                }
-                else if (!task.getAlgorithm().useIv() && !isNullOrEmpty(iv)) {
-                    log.warn("Algorithm '" + task.getAlgorithm() + "' doesn't use initialization vector. iv_hex is ignored");
+                String iv = (String) keys.get("iv_hex");
+                if (isNullOrEmpty(passphrase)) {
+                    validateIv(spec, !isNullOrEmpty(iv));
                 }
-                task.setKeyHex(Optional.of(key));
+                spec.setKeyHex(Optional.ofNullable(isNullOrEmpty(key) ? null : key));
+                spec.setKeyring(keyring);
+                spec.setPassphrase(Optional.ofNullable(isNullOrEmpty(passphrase) ? null : passphrase));
                 if (!isNullOrEmpty(iv)) {
-                    task.setIvHex(Optional.of(iv));
+                    spec.setIvHex(Optional.of(iv));
                 }
                 break;
             default:
-                throw new ConfigException(String.format("Key type [%s] is not supported", task.getKeyType().toString()));
+                throw new ConfigException(String.format("Key type [%s] is not supported", spec.getKeyType().toString()));
+        }
+
+        if (spec.getKeyring().isPresent()) {
+            validateKeyring(spec);
+        }
+
+        if (spec.getPassphrase().isPresent()) {
+            resolvePassphrase(spec);
+        }
+
+        if (spec.getWrappedDataKey() || spec.getPassphrase().isPresent()) {
+            validateDataKeyCache(spec);
         }
 
-        // Validate Cipher
+        // Validate Cipher. The cipher isn't kept for the tasks, which may run on other threads or hosts.
         try {
-            getCipher(Cipher.DECRYPT_MODE, task);
+            if (spec.getPassphrase().isPresent() && !spec.getKeyHex().isPresent()) {
+                // The key and the IV are derived from the salt of each value.
+                Cipher.getInstance(spec.getAlgorithm().getJavaName());
+            }
+            for (String keyHex : getKeyHexes(spec)) {
+                if (spec.getWrappedDataKey()) {
+                    // The key is the master key. Data keys are known only when values are read.
+                    newDataKeyUnwrapper(spec, keyHex);
+                    Cipher.getInstance(spec.getAlgorithm().getJavaName());
+                }
+                else {
+                    getCipher(Cipher.DECRYPT_MODE, spec, getSecretKey(spec, keyHex), null, null);
+                }
+            }
         }
         catch (Exception e) {
             throw new ConfigException(e);
         }
 
         // validate column_names
-        for (String name : task.getColumnNames()) {
-            schema.lookupColumn(name);
+        for (String name : spec.getColumnNames()) {
+            Column column = schema.lookupColumn(name);
+            if (spec.getOutputType() != OutputType.STRING && !(column.getType() instanceof StringType)) {
+                throw new ConfigException(String.format("Column '%s' must be a string column to be decrypted into output_type %s",
+                        name, spec.getOutputType()));
+            }
+        }
+        validateOutputType(spec);
+
+        if (spec.getPlaintextCompression() != PlaintextCompression.NONE && spec.getMaxDecompressedSize() < 1) {
+            throw new ConfigException("Field 'max_decompressed_size' must be 1 or larger");
+        }
+        if (spec.getStreamingThreshold() < 0) {
+            throw new ConfigException("Field 'streaming_threshold' must be 0 or larger");
+        }
+
+        for (String name : spec.getJsonPaths().keySet()) {
+            if (!(schema.lookupColumn(name).getType() instanceof JsonType)) {
+                throw new ConfigException(String.format("Column '%s' of json_paths must be a json column", name));
+            }
+        }
+        if (!spec.getJsonPaths().isEmpty() && spec.getIvColumn().isPresent()) {
+            throw new ConfigException("json_paths can't be used with iv_column");
+        }
+
+        if (spec.getIvColumn().isPresent()) {
+            String ivColumn = spec.getIvColumn().get();
+            if (!(schema.lookupColumn(ivColumn).getType() instanceof StringType)) {
+                throw new ConfigException(String.format("iv_column '%s' must be a string column", ivColumn));
+            }
         }
     }
 
-    private Cipher getCipher(int mode, PluginTask task)
-            throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException
+    private static void validateOutputType(DecryptionSpec spec) throws ConfigException
+    {
+        if (spec.getOutputType() != OutputType.TIMESTAMP) {
+            if (spec.getTimestampFormat().isPresent()) {
+                log.warn("output_type is not timestamp. timestamp_format is ignored");
+            }
+            return;
+        }
+        try {
+            PlaintextWriter.timestampFormatter(spec);
+        }
+        catch (IllegalArgumentException e) {
+            throw new ConfigException(String.format("Field 'timestamp_format' is not a valid pattern: %s", e.getMessage()));
+        }
+        try {
+            ZoneId.of(spec.getTimezone());
+        }
+        catch (DateTimeException e) {
+            throw new ConfigException(String.format("Unknown timezone '%s'", spec.getTimezone()));
+        }
+    }
+
+    private static Optional<Map<Integer, String>> parseKeyring(Object keyring) throws ConfigException
     {
-        Algorithm algo = task.getAlgorithm();
+        if (keyring == null) {
+            return Optional.empty();
+        }
+        if (!(keyring instanceof Map)) {
+            throw new ConfigException("S3 key file content is unexpected format");
+        }
+        Map<Integer, String> keys = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) keyring).entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                throw new ConfigException(String.format("Key '%s' in keyring must be a string", entry.getKey()));
+            }
+            try {
+                keys.put(Integer.valueOf(String.valueOf(entry.getKey())), (String) entry.getValue());
+            }
+            catch (NumberFormatException e) {
+                throw new ConfigException(String.format("Key id '%s' in keyring must be an integer", entry.getKey()));
+            }
+        }
+        return Optional.of(keys);
+    }
 
-        byte[] keyData = BaseEncoding.base16().decode(task.getKeyHex().get());
-        SecretKeySpec key = new SecretKeySpec(keyData, algo.getJavaKeySpecName());
+    private void validateKeyring(DecryptionSpec spec) throws ConfigException
+    {
+        if (spec.getKeyHex().isPresent()) {
+            throw new ConfigException("Only one of key_hex and keyring can be set");
+        }
+        int keyIdLength = spec.getKeyIdLength();
+        if (keyIdLength < 1 || keyIdLength > 4) {
+            throw new ConfigException("Field 'key_id_length' must be between 1 and 4");
+        }
+        if (spec.getKeyring().get().isEmpty()) {
+            throw new ConfigException("Field 'keyring' must have at least one key");
+        }
+        for (int keyId : spec.getKeyring().get().keySet()) {
+            if (keyId < 0 || (keyIdLength < 4 && keyId >= 1 << (keyIdLength * 8))) {
+                throw new ConfigException(String.format("Key id %d in keyring doesn't fit in %d-byte key id", keyId, keyIdLength));
+            }
+        }
+    }
 
+    /**
+     * Validates the passphrase options. With a fixed salt, derives the key and the IV here, once for all tasks,
+     * and sets them to key_hex and iv_hex.
+     */
+    private void resolvePassphrase(DecryptionSpec spec) throws ConfigException
+    {
+        Algorithm algo = spec.getAlgorithm();
+        if (spec.getKeyHex().isPresent() || spec.getKeyring().isPresent()) {
+            throw new ConfigException("Only one of key_hex, keyring and passphrase can be set");
+        }
+        if (spec.getWrappedDataKey()) {
+            throw new ConfigException("passphrase can't be used with wrapped_data_key");
+        }
+        if (spec.getIvPrefix() || spec.getIvColumn().isPresent()) {
+            throw new ConfigException("Initialization vector is derived from passphrase. iv_prefix and iv_column can't be set");
+        }
+        if (algo.getNonceLength() > 0) {
+            throw new ConfigException("Algorithm '" + algo + "' can't be used with passphrase");
+        }
+        if (spec.getPbkdf2Iterations() < 1) {
+            throw new ConfigException("Field 'pbkdf2_iterations' must be 1 or larger");
+        }
+        if (spec.getIvHex().isPresent()) {
+            log.warn("Initialization vector is derived from passphrase. iv_hex is ignored");
+        }
+
+        byte[] salt = new byte[PassphraseKeyDerivation.SALT_LENGTH];
+        if (spec.getSaltHex().isPresent()) {
+            try {
+                salt = BaseEncoding.base16().decode(spec.getSaltHex().get().toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new ConfigException("Field 'salt_hex' must be 8 bytes in hex", e);
+            }
+            if (salt.length != PassphraseKeyDerivation.SALT_LENGTH) {
+                throw new ConfigException("Field 'salt_hex' must be 8 bytes in hex");
+            }
+        }
+
+        // Derives even without a fixed salt, to validate the digest.
+        final byte[] material;
+        try {
+            material = newPassphraseKeyDerivation(spec).derive(salt);
+        }
+        catch (GeneralSecurityException e) {
+            throw new ConfigException(e);
+        }
+        if (spec.getSaltHex().isPresent()) {
+            final int keyLength = algo.getKeyLength() / 8;
+            spec.setKeyHex(Optional.of(BaseEncoding.base16().encode(material, 0, keyLength)));
+            spec.setIvHex(algo.useIv() ? Optional.of(BaseEncoding.base16().encode(material, keyLength, material.length - keyLength)) : Optional.empty());
+        }
+    }
+
+    private static PassphraseKeyDerivation newPassphraseKeyDerivation(DecryptionSpec spec)
+    {
+        return new PassphraseKeyDerivation(spec.getPassphrase().get(), spec.getKeyDerivation(), spec.getKeyDerivationDigest(),
+                spec.getPbkdf2Iterations(), spec.getAlgorithm().getKeyLength() / 8, spec.getAlgorithm().getIvLength());
+    }
+
+    private static void validateDataKeyCache(DecryptionSpec spec) throws ConfigException
+    {
+        if (spec.getDataKeyCacheSize() < 1) {
+            throw new ConfigException("Field 'data_key_cache_size' must be 1 or larger");
+        }
+        if (spec.getDataKeyCacheTtl() < 0) {
+            throw new ConfigException("Field 'data_key_cache_ttl' must not be negative");
+        }
+        if (spec.getDataKeyMaxUses() < 0) {
+            throw new ConfigException("Field 'data_key_max_uses' must not be negative");
+        }
+    }
+
+    private static Collection<String> getKeyHexes(DecryptionSpec spec)
+    {
+        if (spec.getKeyring().isPresent()) {
+            return spec.getKeyring().get().values();
+        }
+        if (!spec.getKeyHex().isPresent()) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(spec.getKeyHex().get());
+    }
+
+    private void validateTask(PluginTask task) throws ConfigException
+    {
+        Set<String> targets = new HashSet<>();
+        for (DecryptionSpec spec : task.getColumns()) {
+            for (String name : spec.getColumnNames()) {
+                if (!targets.add(name)) {
+                    throw new ConfigException(String.format("Column '%s' is decrypted by more than one entry of columns", name));
+                }
+            }
+        }
+        compileJsonPaths(task.getColumns());
+        for (DecryptionSpec spec : task.getColumns()) {
+            if (spec.getIvColumn().isPresent()) {
+                String ivColumn = spec.getIvColumn().get();
+                if (targets.contains(ivColumn)) {
+                    throw new ConfigException(String.format("iv_column '%s' can't be decrypted", ivColumn));
+                }
+                // A cached plaintext would be wrong for the same value with another IV.
+                if (task.getCacheSize() > 0) {
+                    throw new ConfigException("cache_size can't be used with iv_column");
+                }
+            }
+        }
+
+        if (task.getCacheSize() < 0) {
+            throw new ConfigException("Field 'cache_size' must not be negative");
+        }
+        if (task.getParallelism() < 1) {
+            throw new ConfigException("Field 'parallelism' must be 1 or larger");
+        }
+        if (task.getPipelineQueueSize() < 0) {
+            throw new ConfigException("Field 'pipeline_queue_size' must not be negative");
+        }
+        if (task.getOnError() == OnError.PASSTHROUGH) {
+            for (DecryptionSpec spec : task.getColumns()) {
+                if (spec.getOutputType() != OutputType.STRING) {
+                    throw new ConfigException(String.format("on_error: passthrough can't be used with output_type %s", spec.getOutputType()));
+                }
+            }
+        }
+        if (task.getOnError() == OnError.FAIL && task.getQuarantinePathPrefix().isPresent()) {
+            throw new ConfigException("quarantine_path_prefix can't be used with on_error: fail");
+        }
+    }
+
+    /**
+     * Compiles the JSON paths of all specs, by column name. Paths of one column may be in several specs.
+     */
+    static Map<String, JsonPathTargets> compileJsonPaths(List<DecryptionSpec> specs) throws ConfigException
+    {
+        final Map<String, JsonPathTargets> targets = new LinkedHashMap<>();
+        for (int s = 0; s < specs.size(); s++) {
+            for (Map.Entry<String, List<String>> column : specs.get(s).getJsonPaths().entrySet()) {
+                final JsonPathTargets paths = targets.computeIfAbsent(column.getKey(), JsonPathTargets::new);
+                for (String path : column.getValue()) {
+                    paths.add(path, s);
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * @param ciphers the lease which the ciphers of keys known before values are read are taken from and added to
+     */
+    private ValueDecryptor newDecryptor(DecryptionSpec spec, CipherCache.Lease ciphers) throws GeneralSecurityException
+    {
+        if (spec.getPassphrase().isPresent()) {
+            return newPassphraseDecryptor(spec, ciphers);
+        }
+        if (!spec.getKeyring().isPresent()) {
+            return newDecryptor(spec, spec.getKeyHex().get(), ciphers);
+        }
+        // Every key is made into a ready Cipher here, once per task, and looked up by its key id for each value.
+        final Map<Integer, String> keys = spec.getKeyring().get();
+        final IntObjectMap<ValueDecryptor> keyring = new IntObjectMap<>(keys.size());
+        for (Map.Entry<Integer, String> key : keys.entrySet()) {
+            keyring.put(key.getKey(), newDecryptor(spec, key.getValue(), ciphers));
+        }
+        return new ValueDecryptor(keyring, spec.getKeyIdLength(), spec.getInputEncoding());
+    }
+
+    private ValueDecryptor newDecryptor(DecryptionSpec spec, String keyHex, CipherCache.Lease ciphers) throws GeneralSecurityException
+    {
+        if (spec.getWrappedDataKey()) {
+            // keyHex is the master key. A decryptor of each data key is made when its wrapped key is first seen,
+            // and kept for the task so that the data key is not unwrapped again for each value.
+            final Algorithm algo = spec.getAlgorithm();
+            final DataKeyCache<ValueDecryptor> dataKeys = new DataKeyCache<>(
+                    newDataKeyUnwrapper(spec, keyHex),
+                    dataKey -> newDecryptor(spec, new SecretKeySpec(dataKey, algo.getJavaKeySpecName()), null),
+                    spec.getDataKeyCacheSize(),
+                    TimeUnit.SECONDS.toNanos(spec.getDataKeyCacheTtl()),
+                    spec.getDataKeyMaxUses());
+            return new ValueDecryptor(dataKeys, spec.getInputEncoding());
+        }
+        return newDecryptor(spec, getSecretKey(spec, keyHex), ciphers);
+    }
+
+    private ValueDecryptor newDecryptor(DecryptionSpec spec, SecretKeySpec key, CipherCache.Lease ciphers) throws GeneralSecurityException
+    {
+        return new ValueDecryptor(getCipher(Cipher.DECRYPT_MODE, spec, key, null, ciphers), key, spec.getAlgorithm(),
+                getValueNonceLength(spec), spec.getInputEncoding());
+    }
+
+    private ValueDecryptor newPassphraseDecryptor(DecryptionSpec spec, CipherCache.Lease ciphers) throws GeneralSecurityException
+    {
+        final Algorithm algo = spec.getAlgorithm();
+        if (spec.getSaltHex().isPresent()) {
+            // The key and the IV were derived in transaction(). openssl 3 doesn't write the header with a fixed salt,
+            // but earlier versions do, so the header of the salt is skipped if a value starts with it.
+            final SecretKeySpec key = getSecretKey(spec, spec.getKeyHex().get());
+            final byte[] header = PassphraseKeyDerivation.header(BaseEncoding.base16().decode(spec.getSaltHex().get().toUpperCase()));
+            return new ValueDecryptor(getCipher(Cipher.DECRYPT_MODE, spec, key, null, ciphers), key, algo, header, spec.getInputEncoding());
+        }
+        // Derived once per distinct salt, which heads each value.
+        final int keyLength = algo.getKeyLength() / 8;
+        final DataKeyCache<ValueDecryptor> salts = new DataKeyCache<>(
+                newPassphraseKeyDerivation(spec),
+                material -> {
+                    final SecretKeySpec key = new SecretKeySpec(material, 0, keyLength, algo.getJavaKeySpecName());
+                    final byte[] iv = Arrays.copyOfRange(material, keyLength, material.length);
+                    return new ValueDecryptor(getCipher(Cipher.DECRYPT_MODE, spec, key, iv, null), key, algo, 0, spec.getInputEncoding());
+                },
+                spec.getDataKeyCacheSize(), 0, 0);
+        return new ValueDecryptor(salts, spec.getInputEncoding());
+    }
+
+    /**
+     * Creates the unwrapper of data keys wrapped by the master key {@code masterKeyHex}. Called for each decryptor.
+     */
+    DataKeyUnwrapper newDataKeyUnwrapper(DecryptionSpec spec, String masterKeyHex) throws GeneralSecurityException
+    {
+        return new DataKeyUnwrapper.AesKeyWrap(new SecretKeySpec(BaseEncoding.base16().decode(masterKeyHex), "AES"),
+                spec.getAlgorithm().getKeyLength() / 8);
+    }
+
+    /**
+     * @param ivData the IV, or null to use the IV of {@code spec}
+     * @param ciphers the lease to take an idle cipher from and to add a new one to, or null not to reuse the cipher
+     */
+    private Cipher getCipher(int mode, DecryptionSpec spec, SecretKeySpec key, byte[] ivData, CipherCache.Lease ciphers)
+            throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException
+    {
+        Algorithm algo = spec.getAlgorithm();
+
+        // The IV which identifies the cipher in the cache. Null for a cipher initialized again for each value.
+        byte[] fixedIv = null;
+        final AlgorithmParameterSpec params;
         if (algo.useIv()) {
-            byte[] ivData = BaseEncoding.base16().decode(task.getIvHex().get());
-            IvParameterSpec iv = new IvParameterSpec(ivData);
+            // With iv_prefix or iv_column, initialized with a placeholder IV.
+            // ValueDecryptor initializes it again with the IV of each value.
+            boolean perValueIv = spec.getIvPrefix() || spec.getIvColumn().isPresent();
+            if (ivData == null) {
+                ivData = perValueIv ? new byte[algo.getIvLength()] : BaseEncoding.base16().decode(spec.getIvHex().get());
+            }
+            fixedIv = perValueIv ? null : ivData;
+            params = new IvParameterSpec(ivData);
+        }
+        else if (algo.getNonceLength() > 0) {
+            // Initialized with a placeholder nonce. ValueDecryptor initializes it again with the nonce of each value.
+            params = algo.newParameterSpec(new byte[algo.getNonceLength()], 0, algo.getNonceLength());
+        }
+        else {
+            params = null;
+        }
 
-            Cipher cipher = Cipher.getInstance(algo.getJavaName());
-            cipher.init(mode, key, iv);
-            return cipher;
+        if (ciphers != null) {
+            Cipher cipher = ciphers.take(algo.getJavaName(), mode, key, fixedIv);
+            if (cipher != null) {
+                return cipher;
+            }
+        }
+        Cipher cipher = Cipher.getInstance(algo.getJavaName());
+        if (params != null) {
+            cipher.init(mode, key, params);
         }
         else {
-            Cipher cipher = Cipher.getInstance(algo.getJavaName());
             cipher.init(mode, key);
-            return cipher;
         }
+        if (ciphers != null) {
+            ciphers.add(algo.getJavaName(), mode, key, fixedIv, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Returns the length in bytes of the nonce or the IV prefixed to each value, or 0 if values have no prefix.
+     */
+    static int getValueNonceLength(DecryptionSpec spec)
+    {
+        if (spec.getIvPrefix()) {
+            return spec.getAlgorithm().getIvLength();
+        }
+        return spec.getAlgorithm().getNonceLength();
+    }
+
+    private static SecretKeySpec getSecretKey(DecryptionSpec spec, String keyHex)
+    {
+        byte[] keyData = BaseEncoding.base16().decode(keyHex);
+        return new SecretKeySpec(keyData, spec.getAlgorithm().getJavaKeySpecName());
     }
 
     @SuppressWarnings("deprecation")
@@ -591,8 +1344,13 @@ public class DecryptFilterPlugin
         }
     }
 
-    @SuppressWarnings("deprecation")
     public Instant getTimestampFromPageReader(final PageReader pageReader, final Column column)
+    {
+        return readTimestamp(pageReader, column);
+    }
+
+    @SuppressWarnings("deprecation")
+    static Instant readTimestamp(final PageReader pageReader, final Column column)
     {
         if (HAS_GET_TIMESTAMP_INSTANT_COLUMN) {
             return pageReader.getTimestampInstant(column);
@@ -607,7 +1365,7 @@ public class DecryptFilterPlugin
     }
 
     @SuppressWarnings("deprecation")
-    private static void setTimestampToPageBuilder(final PageBuilder pageBuilder, final Column column, final Instant instant)
+    static void setTimestampToPageBuilder(final PageBuilder pageBuilder, final Column column, final Instant instant)
     {
         if (HAS_SET_TIMESTAMP_INSTANT) {
             pageBuilder.setTimestamp(column, instant);
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Java Flight Recorder event of decrypting a page, named {@value #NAME}.
+ *
+ * <p>The plugin is built for Java 8, whose API has no {@code jdk.jfr}, so the event type is defined at runtime with
+ * {@code jdk.jfr.EventFactory} found by reflection, and its methods are called through method handles. On a JVM without
+ * it, {@link #begin(DecryptionMetrics)} always returns null. It also returns null while no recording has the event
+ * enabled, so that a page costs only a check of the event type then.
+ */
+final class DecryptPageEvent
+{
+    static final String NAME = "org.embulk.filter.decrypt.DecryptPage";
+
+    private static final Logger log = LoggerFactory.getLogger(DecryptPageEvent.class);
+
+    // The indexes of the fields in FIELDS.
+    private static final int RECORDS = 0;
+    private static final int VALUES = 1;
+    private static final int CIPHERTEXT_BYTES = 2;
+    private static final int PLAINTEXT_BYTES = 3;
+    private static final int FAILURE = 4;
+
+    private static final MethodHandle IS_ENABLED;
+    private static final MethodHandle NEW_EVENT;
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle SHOULD_COMMIT;
+    private static final MethodHandle SET;
+    private static final MethodHandle COMMIT;
+
+    static {
+        MethodHandle isEnabled = null;
+        MethodHandle newEvent = null;
+        MethodHandle begin = null;
+        MethodHandle shouldCommit = null;
+        MethodHandle set = null;
+        MethodHandle commit = null;
+        try {
+            final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            final Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            final Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+            final Class<?> name = Class.forName("jdk.jfr.Name");
+            final Class<?> label = Class.forName("jdk.jfr.Label");
+            final Class<?> dataAmount = Class.forName("jdk.jfr.DataAmount");
+
+            final List<Object> annotations = Arrays.asList(
+                    annotation.newInstance(name, NAME),
+                    annotation.newInstance(label, "Decrypt Page"),
+                    annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"Embulk", "Decrypt"}),
+                    annotation.newInstance(Class.forName("jdk.jfr.Description"), "A page passed through the decrypt filter"),
+                    annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+            // In the order of RECORDS, VALUES, CIPHERTEXT_BYTES, PLAINTEXT_BYTES and FAILURE.
+            final List<Object> fields = Arrays.asList(
+                    field.newInstance(long.class, "records", Collections.singletonList(annotation.newInstance(label, "Records"))),
+                    field.newInstance(long.class, "values", Collections.singletonList(annotation.newInstance(label, "Decrypted Values"))),
+                    field.newInstance(long.class, "ciphertextBytes", Arrays.asList(
+                            annotation.newInstance(label, "Ciphertext Bytes"), annotation.newInstance(dataAmount, "BYTES"))),
+                    field.newInstance(long.class, "plaintextBytes", Arrays.asList(
+                            annotation.newInstance(label, "Plaintext Bytes"), annotation.newInstance(dataAmount, "BYTES"))),
+                    field.newInstance(String.class, "failure", Collections.singletonList(annotation.newInstance(label, "Failure"))));
+            final Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            final Object eventType = factoryClass.getMethod("getEventType").invoke(factory);
+
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            isEnabled = lookup.unreflect(eventType.getClass().getMethod("isEnabled")).bindTo(eventType)
+                    .asType(MethodType.methodType(boolean.class));
+            newEvent = lookup.unreflect(factoryClass.getMethod("newEvent")).bindTo(factory)
+                    .asType(MethodType.methodType(Object.class));
+            begin = lookup.unreflect(eventClass.getMethod("begin"))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            shouldCommit = lookup.unreflect(eventClass.getMethod("shouldCommit"))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            set = lookup.unreflect(eventClass.getMethod("set", int.class, Object.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+            commit = lookup.unreflect(eventClass.getMethod("commit"))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        }
+        catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            // Java 8 without the backport of Flight Recorder, or a JVM without the jdk.jfr module.
+            log.debug("Flight Recorder events are not available", e);
+            isEnabled = null;
+        }
+        IS_ENABLED = isEnabled;
+        NEW_EVENT = newEvent;
+        BEGIN = begin;
+        SHOULD_COMMIT = shouldCommit;
+        SET = set;
+        COMMIT = commit;
+    }
+
+    private final Object event;
+    private final DecryptionMetrics.ColumnView columns;
+    private final long valuesBefore;
+    private final long ciphertextBytesBefore;
+    private final long plaintextBytesBefore;
+
+    private DecryptPageEvent(Object event, DecryptionMetrics metrics)
+    {
+        this.event = event;
+        this.columns = metrics.allColumns();
+        this.valuesBefore = columns.getValues();
+        this.ciphertextBytesBefore = columns.getCiphertextBytes();
+        this.plaintextBytesBefore = columns.getPlaintextBytes();
+    }
+
+    /**
+     * Begins the event of a page, whose values are counted in {@code metrics}.
+     * Returns null if Flight Recorder is not available or no recording has the event enabled.
+     */
+    static DecryptPageEvent begin(DecryptionMetrics metrics)
+    {
+        if (IS_ENABLED == null) {
+            return null;
+        }
+        try {
+            if (!(boolean) IS_ENABLED.invokeExact()) {
+                return null;
+            }
+            final Object event = (Object) NEW_EVENT.invokeExact();
+            BEGIN.invokeExact(event);
+            return new DecryptPageEvent(event, metrics);
+        }
+        catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Commits the event of a page of {@code records} records, which failed with {@code failure} if it is not null.
+     */
+    void commit(long records, Throwable failure)
+    {
+        try {
+            if (!(boolean) SHOULD_COMMIT.invokeExact(event)) {
+                return;
+            }
+            SET.invokeExact(event, RECORDS, (Object) records);
+            SET.invokeExact(event, VALUES, (Object) (columns.getValues() - valuesBefore));
+            SET.invokeExact(event, CIPHERTEXT_BYTES, (Object) (columns.getCiphertextBytes() - ciphertextBytesBefore));
+            SET.invokeExact(event, PLAINTEXT_BYTES, (Object) (columns.getPlaintextBytes() - plaintextBytesBefore));
+            SET.invokeExact(event, FAILURE, (Object) (failure != null ? failure.toString() : null));
+            COMMIT.invokeExact(event);
+        }
+        catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e)
+    {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        // this must not happen because none of the methods throws a checked exception
+        return new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Copies every record of incoming pages through a precompiled {@link ColumnCopier} plan for the decrypted columns,
+ * and {@link PassthroughColumns} for the others.
+ *
+ * <p>When decryption is parallel, the target values of a page are first collected by a separate scan
+ * of the page, decrypted all together, and then copied with the other columns in the original record order.
+ * The scan reads a view of the page which doesn't own its buffer, so that the page is released only by the main reader.
+ *
+ * <p>The work is counted in {@link DecryptionMetrics}, which are logged by {@link #finish()}, and published through
+ * JMX between {@link #registerMetrics()} and {@link #close()}.
+ * Each page is also recorded as a {@link DecryptPageEvent} while Java Flight Recorder records it.
+ *
+ * <p>Unless {@code on_error} is {@code fail}, values which can't be decrypted are handled by an {@link InvalidValueHandler},
+ * and a record which it drops is not added to the page builder.
+ *
+ * <p>The ciphers of the plan are put back into the {@link CipherCache} when the output has finished, so that the later
+ * tasks of the running transactions reuse them. They are dropped if the output is closed without having finished.
+ */
+class DecryptPageOutput
+        implements PageOutput
+{
+    private static final Logger log = LoggerFactory.getLogger(DecryptPageOutput.class);
+
+    private final PageReader pageReader;
+    // Reads views of the pages for the parallel decryption, or null.
+    private final PageReader scanReader;
+    private final PageBuilder pageBuilder;
+    private final PassthroughColumns passthrough;
+    private final ColumnCopier[] copiers;
+    private final ParallelDecryption parallel;
+    private final ColumnCopier.ParallelDecryptingStringCopier[] scanners;
+    private final DecryptionMetrics metrics;
+    private final InvalidValueHandler invalidValues;
+    private final CipherCache.Lease ciphers;
+
+    /**
+     * @param pageReaders creates page readers, one for the output and one more for the scan if {@code parallel} is given
+     * @param passthrough the columns which {@code copiers} don't copy
+     * @param parallel the parallel decryption of the plan, or null to decrypt in {@code copiers} one by one
+     * @param invalidValues the handler which {@code copiers} are given, or null if {@code on_error} is {@code fail}
+     * @param ciphers the ciphers which the decryptors of {@code copiers} hold
+     */
+    DecryptPageOutput(Supplier<PageReader> pageReaders, PageBuilder pageBuilder, PassthroughColumns passthrough, ColumnCopier[] copiers,
+                      ParallelDecryption parallel, DecryptionMetrics metrics, InvalidValueHandler invalidValues, CipherCache.Lease ciphers)
+    {
+        this.pageReader = pageReaders.get();
+        this.pageBuilder = pageBuilder;
+        this.passthrough = passthrough;
+        this.copiers = copiers;
+        this.parallel = parallel;
+        this.metrics = metrics;
+        this.invalidValues = invalidValues;
+        this.ciphers = ciphers;
+
+        List<ColumnCopier.ParallelDecryptingStringCopier> scanners = new ArrayList<>();
+        for (ColumnCopier copier : copiers) {
+            if (copier instanceof ColumnCopier.ParallelDecryptingStringCopier) {
+                scanners.add((ColumnCopier.ParallelDecryptingStringCopier) copier);
+            }
+        }
+        this.scanners = scanners.toArray(new ColumnCopier.ParallelDecryptingStringCopier[0]);
+        this.scanReader = parallel != null && !scanners.isEmpty() ? pageReaders.get() : null;
+    }
+
+    DecryptionMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    InvalidValueHandler getInvalidValues()
+    {
+        return invalidValues;
+    }
+
+    CipherCache.Lease getCiphers()
+    {
+        return ciphers;
+    }
+
+    void registerMetrics()
+    {
+        metrics.register();
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        final ColumnCopier[] copiers = this.copiers;
+        final long startNanos = System.nanoTime();
+        final DecryptPageEvent event = DecryptPageEvent.begin(metrics);
+        long records = 0;
+        long skippedRecords = 0;
+        Throwable failure = null;
+        try {
+            if (scanReader != null) {
+                decryptInParallel(page);
+            }
+
+            pageReader.setPage(page);
+            while (pageReader.nextRecord()) {
+                for (int i = 0; i < copiers.length; i++) {
+                    copiers[i].copy(pageReader, pageBuilder);
+                }
+                records++;
+                if (invalidValues != null && invalidValues.endRecord(pageBuilder)) {
+                    // Only the values of fixed size have been set for this record, and the next record overwrites them.
+                    // Its strings and JSON values have been staged, and the other columns aren't copied.
+                    skippedRecords++;
+                    continue;
+                }
+                passthrough.copy(pageReader, pageBuilder);
+                pageBuilder.addRecord();
+            }
+        }
+        catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        }
+        finally {
+            if (parallel != null) {
+                parallel.clear();
+            }
+            metrics.pages++;
+            metrics.records += records;
+            metrics.skippedRecords += skippedRecords;
+            metrics.pageNanos += System.nanoTime() - startNanos;
+            if (event != null) {
+                event.commit(records, failure);
+            }
+        }
+    }
+
+    private void decryptInParallel(Page page)
+    {
+        scanReader.setPage(viewOf(page));
+        while (scanReader.nextRecord()) {
+            for (int i = 0; i < scanners.length; i++) {
+                scanners[i].scan(scanReader);
+            }
+        }
+        parallel.decryptAll();
+    }
+
+    /**
+     * Returns a page which reads the same records as {@code page}, and whose release doesn't release {@code page}.
+     * A PageReader releases the page it has read when the next page is set, or when it is closed.
+     */
+    @SuppressWarnings("deprecation")
+    private static Page viewOf(Page page)
+    {
+        final Buffer buffer = page.buffer();
+        return Page.wrap(Buffer.wrap(buffer.array(), buffer.offset(), buffer.limit()))
+                .setStringReferences(page.getStringReferences())
+                .setValueReferences(page.getValueReferences());
+    }
+
+    @Override
+    public void finish()
+    {
+        pageBuilder.finish();
+        if (invalidValues != null) {
+            invalidValues.finish();
+        }
+
+        for (ColumnCopier copier : copiers) {
+            if (copier.getCache() != null) {
+                log.info("Decryption cache of column '{}': {}", copier.column.getName(), copier.getCache());
+            }
+        }
+        metrics.logSummary();
+        if (ciphers.getReused() > 0) {
+            log.debug("Reused {} of {} ciphers initialized by earlier tasks", ciphers.getReused(), ciphers.size());
+        }
+        // Every value has been decrypted to the end, so no cipher is left in the middle of one.
+        ciphers.release();
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            pageBuilder.close();
+        }
+        finally {
+            if (invalidValues != null) {
+                invalidValues.close();
+            }
+            // Drops the ciphers of a failed task. Nothing is left after finish() has released them.
+            ciphers.discard();
+            metrics.unregister();
+            if (scanReader != null) {
+                // Releases only the view of the last page.
+                scanReader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded LRU cache from encoded ciphertext to decrypted plaintext of a column.
+ *
+ * <p>It is valid only when the plaintext is determined by the encoded value alone, that is, when the key
+ * and the IV are fixed for the task. A hit returns the same {@link String} instance for repeated plaintexts.
+ *
+ * <p>Encoded values longer than {@link #MAX_CACHED_LENGTH} are not cached so that a few large documents
+ * do not pin a large amount of memory.
+ */
+final class DecryptionCache
+{
+    static final int MAX_CACHED_LENGTH = 4096;
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, String> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    DecryptionCache(final int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, String>(Math.min(maxEntries, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                if (size() > DecryptionCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached plaintext of {@code encoded}, or null if it is not cached.
+     */
+    String get(String encoded)
+    {
+        String plaintext = entries.get(encoded);
+        if (plaintext != null) {
+            hits++;
+        }
+        else {
+            misses++;
+        }
+        return plaintext;
+    }
+
+    void put(String encoded, String plaintext)
+    {
+        if (encoded.length() <= MAX_CACHED_LENGTH) {
+            entries.put(encoded, plaintext);
+        }
+    }
+
+    long getHits()
+    {
+        return hits;
+    }
+
+    long getMisses()
+    {
+        return misses;
+    }
+
+    long getEvictions()
+    {
+        return evictions;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d hits, %d misses, %d evictions, %d/%d entries", hits, misses, evictions, entries.size(), maxEntries);
+    }
+}
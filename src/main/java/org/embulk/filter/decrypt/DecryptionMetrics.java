@@ -0,0 +1,287 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the work of a task, for each decrypted column and for the whole task.
+ *
+ * <p>Counters are plain fields updated without synchronization, so that counting costs little in the hot path.
+ * A column has a {@link Column} for each thread of {@code parallelism}, written only by that thread and summed when
+ * read. Values read through JMX while the task runs may therefore lag a little behind.
+ */
+final class DecryptionMetrics
+        implements DecryptionMetricsMXBean
+{
+    private static final Logger log = LoggerFactory.getLogger(DecryptionMetrics.class);
+
+    private static final String DOMAIN = "org.embulk.filter.decrypt";
+    private static final AtomicInteger TASK_COUNT = new AtomicInteger();
+
+    /**
+     * Counters of a column updated by one thread.
+     */
+    static final class Column
+    {
+        long values;
+        long nulls;
+        long errors;
+        long ciphertextBytes;
+        long plaintextBytes;
+        long decodeNanos;
+        long decryptNanos;
+    }
+
+    private final String[] names;
+    // columns[target][slot]
+    private final Column[][] columns;
+    private final Column[] allColumns;
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    long pages;
+    long records;
+    long skippedRecords;
+    long pageNanos;
+
+    /**
+     * @param names the names of the decrypted columns
+     * @param slots the number of threads which decrypt at once
+     */
+    DecryptionMetrics(String[] names, int slots)
+    {
+        this.names = names;
+        this.columns = new Column[names.length][slots];
+        for (Column[] slotsOfColumn : columns) {
+            for (int i = 0; i < slots; i++) {
+                slotsOfColumn[i] = new Column();
+            }
+        }
+        this.allColumns = new Column[names.length * slots];
+        for (int t = 0; t < names.length; t++) {
+            System.arraycopy(columns[t], 0, allColumns, t * slots, slots);
+        }
+    }
+
+    /**
+     * Returns the counters of the decrypted column at {@code target} for the thread at {@code slot}.
+     */
+    Column of(int target, int slot)
+    {
+        return columns[target][slot];
+    }
+
+    /**
+     * Returns the sum of the counters of the decrypted column at {@code target}.
+     */
+    ColumnView column(int target)
+    {
+        return new ColumnView(columns[target]);
+    }
+
+    /**
+     * Returns the sum of the counters of all the decrypted columns.
+     */
+    ColumnView allColumns()
+    {
+        return new ColumnView(allColumns);
+    }
+
+    @Override
+    public long getPages()
+    {
+        return pages;
+    }
+
+    @Override
+    public long getRecords()
+    {
+        return records;
+    }
+
+    @Override
+    public long getSkippedRecords()
+    {
+        return skippedRecords;
+    }
+
+    @Override
+    public long getPageNanos()
+    {
+        return pageNanos;
+    }
+
+    /**
+     * Registers the metrics of the task and of each column to the platform MBean server.
+     * A failure is only logged, since the metrics are not needed to decrypt.
+     */
+    void register()
+    {
+        final String task = "task=" + TASK_COUNT.incrementAndGet();
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            register(server, new ObjectName(DOMAIN + ":type=DecryptionMetrics," + task), this);
+            for (int t = 0; t < names.length; t++) {
+                register(server, new ObjectName(DOMAIN + ":type=DecryptionMetrics," + task + ",column=" + ObjectName.quote(names[t])),
+                        column(t));
+            }
+        }
+        catch (JMException | RuntimeException e) {
+            log.warn("Failed to register decryption metrics to JMX", e);
+        }
+    }
+
+    List<ObjectName> getRegisteredNames()
+    {
+        return Collections.unmodifiableList(registered);
+    }
+
+    void unregister()
+    {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            }
+            catch (JMException e) {
+                log.warn("Failed to unregister decryption metrics {} from JMX", name, e);
+            }
+        }
+        registered.clear();
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object mbean) throws JMException
+    {
+        server.registerMBean(mbean, name);
+        registered.add(name);
+    }
+
+    void logSummary()
+    {
+        log.info("Decrypted {} records in {} pages in {} ms", records, pages, TimeUnit.NANOSECONDS.toMillis(pageNanos));
+        if (skippedRecords > 0) {
+            log.warn("Skipped {} records with values which can't be decrypted", skippedRecords);
+        }
+        for (int t = 0; t < names.length; t++) {
+            log.info("Decryption of column '{}': {}", names[t], column(t));
+        }
+    }
+
+    /**
+     * The sum of the counters of a column over the threads.
+     */
+    static final class ColumnView
+            implements ColumnMetricsMXBean
+    {
+        private final Column[] slots;
+
+        ColumnView(Column[] slots)
+        {
+            this.slots = slots;
+        }
+
+        @Override
+        public long getValues()
+        {
+            long sum = 0;
+            for (Column slot : slots) {
+                sum += slot.values;
+            }
+            return sum;
+        }
+
+        @Override
+        public long getNulls()
+        {
+            long sum = 0;
+            for (Column slot : slots) {
+                sum += slot.nulls;
+            }
+            return sum;
+        }
+
+        @Override
+        public long getErrors()
+        {
+            long sum = 0;
+            for (Column slot : slots) {
+                sum += slot.errors;
+            }
+            return sum;
+        }
+
+        @Override
+        public long getCiphertextBytes()
+        {
+            long sum = 0;
+            for (Column slot : slots) {
+                sum += slot.ciphertextBytes;
+            }
+            return sum;
+        }
+
+        @Override
+        public long getPlaintextBytes()
+        {
+            long sum = 0;
+            for (Column slot : slots) {
+                sum += slot.plaintextBytes;
+            }
+            return sum;
+        }
+
+        @Override
+        public long getDecodeNanos()
+        {
+            long sum = 0;
+            for (Column slot : slots) {
+                sum += slot.decodeNanos;
+            }
+            return sum;
+        }
+
+        @Override
+        public long getDecryptNanos()
+        {
+            long sum = 0;
+            for (Column slot : slots) {
+                sum += slot.decryptNanos;
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d values, %d nulls, %d errors, %d ciphertext bytes, %d plaintext bytes, about %d ms decoding and %d ms decrypting",
+                    getValues(), getNulls(), getErrors(), getCiphertextBytes(), getPlaintextBytes(),
+                    TimeUnit.NANOSECONDS.toMillis(getDecodeNanos()), TimeUnit.NANOSECONDS.toMillis(getDecryptNanos()));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+/**
+ * Metrics of a task of the decrypt filter, registered while the task runs.
+ */
+public interface DecryptionMetricsMXBean
+{
+    long getPages();
+
+    long getRecords();
+
+    /**
+     * Returns the number of records dropped by {@code on_error: skip}, which are counted in {@link #getRecords()} too.
+     */
+    long getSkippedRecords();
+
+    /**
+     * Returns the wall-clock time spent in {@code add(Page)}, including decoding and decrypting.
+     */
+    long getPageNanos();
+}
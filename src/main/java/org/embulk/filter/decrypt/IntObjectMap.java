@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+/**
+ * A small open-addressing map from primitive int keys to values, so that looking up a key does not box it.
+ *
+ * <p>It is filled once when a task is opened and only read afterwards. Null values are not supported.
+ */
+final class IntObjectMap<V>
+{
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    IntObjectMap(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+    }
+
+    void put(int key, V value)
+    {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int slot = slot(key);
+        if (values[slot] == null) {
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key)
+    {
+        final int mask = keys.length - 1;
+        for (int i = mix(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns one of the values, or null if the map is empty.
+     */
+    @SuppressWarnings("unchecked")
+    V anyValue()
+    {
+        for (Object value : values) {
+            if (value != null) {
+                return (V) value;
+            }
+        }
+        return null;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    private int slot(int key)
+    {
+        final int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash(int capacity)
+    {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // Spreads sequential key ids over the table.
+    private static int mix(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles the values of a task which can't be decrypted, as {@code on_error} says when it isn't {@code fail}.
+ *
+ * <p>Each invalid value is counted in the metrics of its column, logged only for the first one of each column,
+ * and written with its record to the {@link QuarantineFile} if any. The copier of the column writes null or the value
+ * as it is in its place. With {@code skip}, its record is dropped after all its decrypted columns are copied. They are
+ * copied into a {@link StagedRow} then, so that a dropped record leaves no string or JSON value in the page.
+ *
+ * <p>An instance is used only by the thread which copies the pages of the task.
+ */
+final class InvalidValueHandler
+{
+    private static final Logger log = LoggerFactory.getLogger(InvalidValueHandler.class);
+
+    private final DecryptFilterPlugin.OnError onError;
+    // The file which invalid records are written to, or null.
+    private final QuarantineFile quarantine;
+    // Whether an invalid value of the column at each index has been logged.
+    private final boolean[] logged;
+    private boolean skipRecord;
+    // The decrypted values of the current record, or null unless on_error is skip.
+    private final StagedRow staged;
+
+    InvalidValueHandler(DecryptFilterPlugin.OnError onError, QuarantineFile quarantine, int columnCount)
+    {
+        this.onError = onError;
+        this.quarantine = quarantine;
+        this.logged = new boolean[columnCount];
+        this.staged = onError == DecryptFilterPlugin.OnError.SKIP ? new StagedRow(columnCount) : null;
+    }
+
+    DecryptFilterPlugin.OnError getOnError()
+    {
+        return onError;
+    }
+
+    /**
+     * Returns the row which the decrypting copiers set strings and JSON values to, or null to set them to the page builder.
+     */
+    StagedRow getStagedRow()
+    {
+        return staged;
+    }
+
+    /**
+     * Handles the value of {@code column} in the current record of {@code pageReader}, which can't be decrypted for {@code reason}.
+     */
+    void handle(PageReader pageReader, Column column, DecryptionMetrics.Column metrics, String reason)
+    {
+        if (metrics != null) {
+            metrics.errors++;
+        }
+        if (!logged[column.getIndex()]) {
+            logged[column.getIndex()] = true;
+            log.warn("A value of column '{}' can't be decrypted, and is handled by on_error: {}. Later ones are only counted: {}",
+                    column.getName(), onError, reason);
+        }
+        if (quarantine != null) {
+            quarantine.write(pageReader, column, reason);
+        }
+        if (onError == DecryptFilterPlugin.OnError.SKIP) {
+            skipRecord = true;
+        }
+    }
+
+    /**
+     * Returns true if the record just copied has to be dropped. Otherwise sets the values staged for it to {@code pageBuilder}.
+     * Starts the next record either way.
+     */
+    boolean endRecord(PageBuilder pageBuilder)
+    {
+        final boolean skip = skipRecord;
+        skipRecord = false;
+        if (staged != null) {
+            if (skip) {
+                staged.clear();
+            }
+            else {
+                staged.writeTo(pageBuilder);
+            }
+        }
+        return skip;
+    }
+
+    QuarantineFile getQuarantine()
+    {
+        return quarantine;
+    }
+
+    void finish()
+    {
+        if (quarantine != null) {
+            quarantine.flush();
+        }
+    }
+
+    void close()
+    {
+        if (quarantine != null) {
+            quarantine.close();
+        }
+    }
+
+    static String reasonOf(RuntimeException e)
+    {
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.DataException;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+import org.msgpack.value.ValueType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields to decrypt in a JSON column, compiled once per task from JSON paths into a tree.
+ *
+ * <p>A path starts with {@code $}, followed by {@code .name}, {@code ['name']}, {@code [index]}, or
+ * {@code [*]} and {@code .*} for any element or field. {@link #decrypt(Value, ValueDecryptor[])} walks a value
+ * once, along the tree only, and rebuilds only the maps and arrays which have a decrypted field inside.
+ * The others are kept as the same objects.
+ */
+final class JsonPathTargets
+{
+    private final String columnName;
+    private final Node root = new Node();
+
+    private static final class Node
+    {
+        private Map<String, Node> fields;
+        private IntObjectMap<Node> indexes;
+        private Node any;
+        // The spec decrypting the value at this node, or -1 if it is not a target.
+        private int spec = -1;
+        private String path;
+
+        boolean hasChildren()
+        {
+            return fields != null || indexes != null || any != null;
+        }
+    }
+
+    JsonPathTargets(String columnName)
+    {
+        this.columnName = columnName;
+    }
+
+    /**
+     * Adds {@code path} to be decrypted by the spec at {@code spec}.
+     */
+    void add(String path, int spec) throws ConfigException
+    {
+        Node node = root;
+        if (!path.startsWith("$")) {
+            throw invalidPath(path);
+        }
+        int i = 1;
+        if (i == path.length()) {
+            throw new ConfigException(String.format("JSON path '%s' of column '%s' must point into the value", path, columnName));
+        }
+        while (i < path.length()) {
+            if (node.spec >= 0) {
+                throw new ConfigException(String.format("JSON path '%s' of column '%s' is inside '%s', which is decrypted as a whole",
+                        path, columnName, node.path));
+            }
+            final char c = path.charAt(i);
+            if (c == '.' && i + 1 < path.length() && path.charAt(i + 1) == '*') {
+                node = any(node, path);
+                i += 2;
+            }
+            else if (c == '.') {
+                int end = i + 1;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == i + 1) {
+                    throw invalidPath(path);
+                }
+                node = field(node, path.substring(i + 1, end), path);
+                i = end;
+            }
+            else if (c == '[') {
+                int close = path.indexOf(']', i);
+                if (close < 0) {
+                    throw invalidPath(path);
+                }
+                String inner = path.substring(i + 1, close);
+                if (inner.equals("*")) {
+                    node = any(node, path);
+                }
+                else if (inner.length() >= 2 && (inner.charAt(0) == '\'' || inner.charAt(0) == '"')
+                        && inner.charAt(inner.length() - 1) == inner.charAt(0)) {
+                    node = field(node, inner.substring(1, inner.length() - 1), path);
+                }
+                else {
+                    try {
+                        node = index(node, Integer.parseInt(inner), path);
+                    }
+                    catch (NumberFormatException e) {
+                        throw invalidPath(path);
+                    }
+                }
+                i = close + 1;
+            }
+            else {
+                throw invalidPath(path);
+            }
+        }
+        if (node.spec >= 0) {
+            throw new ConfigException(String.format("JSON path '%s' of column '%s' is set more than once", path, columnName));
+        }
+        if (node.hasChildren()) {
+            throw new ConfigException(String.format("JSON path '%s' of column '%s' contains another JSON path", path, columnName));
+        }
+        node.spec = spec;
+        node.path = path;
+    }
+
+    /**
+     * Returns {@code value} with the targets decrypted by {@code decryptors}, indexed by spec.
+     */
+    Value decrypt(Value value, ValueDecryptor[] decryptors)
+    {
+        return walk(root, value, decryptors);
+    }
+
+    private Value walk(Node node, Value value, ValueDecryptor[] decryptors)
+    {
+        if (node.spec >= 0) {
+            return decryptTarget(node, value, decryptors[node.spec]);
+        }
+        if (value.isMapValue()) {
+            return walkMap(node, value, decryptors);
+        }
+        if (value.isArrayValue()) {
+            return walkArray(node, value, decryptors);
+        }
+        return value;
+    }
+
+    private Value walkMap(Node node, Value value, ValueDecryptor[] decryptors)
+    {
+        if (node.fields == null && node.any == null) {
+            return value;
+        }
+        final Map<Value, Value> map = value.asMapValue().map();
+        Map<Value, Value> rebuilt = null;
+        int position = 0;
+        for (Map.Entry<Value, Value> entry : map.entrySet()) {
+            Value child = entry.getValue();
+            if (node.fields != null && entry.getKey().isStringValue()) {
+                final Node field = node.fields.get(entry.getKey().asStringValue().asString());
+                if (field != null) {
+                    child = walk(field, child, decryptors);
+                }
+            }
+            if (node.any != null) {
+                child = walk(node.any, child, decryptors);
+            }
+            if (rebuilt == null && child != entry.getValue()) {
+                rebuilt = copyOfFirstEntries(map, position);
+            }
+            if (rebuilt != null) {
+                rebuilt.put(entry.getKey(), child);
+            }
+            position++;
+        }
+        return rebuilt != null ? ValueFactory.newMap(rebuilt) : value;
+    }
+
+    private static Map<Value, Value> copyOfFirstEntries(Map<Value, Value> map, int count)
+    {
+        final Map<Value, Value> copy = new LinkedHashMap<>();
+        final Iterator<Map.Entry<Value, Value>> it = map.entrySet().iterator();
+        for (int i = 0; i < count; i++) {
+            final Map.Entry<Value, Value> entry = it.next();
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    private Value walkArray(Node node, Value value, ValueDecryptor[] decryptors)
+    {
+        if (node.indexes == null && node.any == null) {
+            return value;
+        }
+        final List<Value> list = value.asArrayValue().list();
+        List<Value> rebuilt = null;
+        for (int i = 0; i < list.size(); i++) {
+            Value child = list.get(i);
+            if (node.indexes != null) {
+                final Node index = node.indexes.get(i);
+                if (index != null) {
+                    child = walk(index, child, decryptors);
+                }
+            }
+            if (node.any != null) {
+                child = walk(node.any, child, decryptors);
+            }
+            if (rebuilt == null && child != list.get(i)) {
+                rebuilt = new ArrayList<>(list.subList(0, i));
+            }
+            if (rebuilt != null) {
+                rebuilt.add(child);
+            }
+        }
+        return rebuilt != null ? ValueFactory.newArray(rebuilt) : value;
+    }
+
+    private Value decryptTarget(Node node, Value value, ValueDecryptor decryptor)
+    {
+        if (value.getValueType() == ValueType.NIL) {
+            return value;
+        }
+        if (!value.isStringValue()) {
+            throw new DataException(String.format("Value at JSON path '%s' of column '%s' is not a string", node.path, columnName));
+        }
+        return ValueFactory.newString(decryptor.decrypt(value.asStringValue().asString()));
+    }
+
+    private Node field(Node node, String name, String path)
+    {
+        rejectOverlap(node.any != null, path);
+        if (node.fields == null) {
+            node.fields = new HashMap<>();
+        }
+        return node.fields.computeIfAbsent(name, n -> new Node());
+    }
+
+    private Node index(Node node, int index, String path)
+    {
+        rejectOverlap(node.any != null, path);
+        if (node.indexes == null) {
+            node.indexes = new IntObjectMap<>(4);
+        }
+        Node child = node.indexes.get(index);
+        if (child == null) {
+            child = new Node();
+            node.indexes.put(index, child);
+        }
+        return child;
+    }
+
+    private Node any(Node node, String path)
+    {
+        rejectOverlap(node.fields != null || node.indexes != null, path);
+        if (node.any == null) {
+            node.any = new Node();
+        }
+        return node.any;
+    }
+
+    // A child reached both by its name or index and by a wildcard would be walked, and decrypted, twice.
+    private void rejectOverlap(boolean overlaps, String path)
+    {
+        if (overlaps) {
+            throw new ConfigException(String.format("JSON path '%s' of column '%s' overlaps another JSON path with a wildcard at the same level",
+                    path, columnName));
+        }
+    }
+
+    private ConfigException invalidPath(String path)
+    {
+        return new ConfigException(String.format("JSON path '%s' of column '%s' is invalid", path, columnName));
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.config.ConfigException;
+
+import java.util.Map;
+
+/**
+ * Provides the key file of a key type other than inline. Its entries, such as key_hex and iv_hex, are resolved
+ * into the spec in transaction().
+ *
+ * <p>Implementations are instantiated by {@link DecryptFilterPlugin#newKeyProvider} only for the configured key type.
+ */
+interface KeyProvider
+{
+    /**
+     * Returns the entries of the key file by their names. key_hex, iv_hex and passphrase are strings if they are set,
+     * and keyring is a map.
+     */
+    Map<String, Object> loadKeyFile(DecryptFilterPlugin.DecryptionSpec spec) throws ConfigException;
+}
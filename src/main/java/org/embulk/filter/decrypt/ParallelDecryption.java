@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.DataException;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Decrypts the target values of a page in chunks on the common {@link ForkJoinPool}. The thread which copies the page
+ * decrypts the first chunk itself, so up to one more chunk than the threads of the pool is decrypted at once. The pool
+ * is sized to the processors, and its threads are daemons which end when idle, so nothing is left to shut down.
+ *
+ * <p>Values are added in the order the copy plan visits them, that is, record by record and column by column.
+ * After {@link #decryptAll()}, {@link #next()} returns the plaintexts in the same order, so the output page
+ * keeps the original record order.
+ *
+ * <p>Each chunk is decrypted with its own {@link ValueDecryptor} of each spec, so the decryptors, each holding
+ * a Cipher, are never used by two threads at a time. Memory is bounded by the values of one page.
+ *
+ * <p>Unless {@code on_error} is {@code fail}, a value which can't be decrypted doesn't fail the page. Its reason is kept
+ * in its place instead, and returned by {@link #peekFailure()} to be handled by the thread which copies the page.
+ */
+final class ParallelDecryption
+{
+    // Smaller chunks cost more in scheduling than they gain.
+    private static final int MIN_VALUES_PER_CHUNK = 32;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // decryptors[spec][chunk]
+    private final ValueDecryptor[][] decryptors;
+    private final DecryptionMetrics metrics;
+    private final int parallelism;
+    private final ForkJoinTask<?>[] tasks;
+    // Whether a value which can't be decrypted is kept as a failure instead of failing the page.
+    private final boolean keepFailures;
+
+    // encoded[i] is null when decrypted[i] was already known, e.g. from a cache.
+    // ivs[i] is the initialization vector of encoded[i] from iv_column, or null.
+    // specs[i] is the index of the spec decrypting encoded[i], and targets[i] the index of its column in the metrics.
+    // failures[i] is the reason why encoded[i] can't be decrypted, or null.
+    private String[] encoded = new String[INITIAL_CAPACITY];
+    private int[] specs = new int[INITIAL_CAPACITY];
+    private int[] targets = new int[INITIAL_CAPACITY];
+    private String[] ivs = new String[INITIAL_CAPACITY];
+    private String[] decrypted = new String[INITIAL_CAPACITY];
+    private String[] failures = new String[INITIAL_CAPACITY];
+    private int count;
+    private int cursor;
+
+    /**
+     * Creates an instance running up to {@code decryptors[spec].length} chunks at once, which is the same for all specs.
+     * Each chunk counts its values in its own slot of {@code metrics}. If {@code keepFailures} is true, the structure of
+     * each value is checked before it is decrypted, and values which can't be decrypted are kept as failures.
+     */
+    ParallelDecryption(ValueDecryptor[][] decryptors, DecryptionMetrics metrics, boolean keepFailures)
+    {
+        this.parallelism = decryptors[0].length;
+        this.decryptors = decryptors;
+        this.metrics = metrics;
+        this.tasks = new ForkJoinTask<?>[parallelism];
+        this.keepFailures = keepFailures;
+    }
+
+    /**
+     * Adds {@code value} of the column at {@code target} of the metrics to be decrypted by the spec at {@code spec},
+     * with the initialization vector {@code iv} if not null.
+     */
+    void add(int spec, int target, String value, String iv)
+    {
+        ensureCapacity();
+        encoded[count] = value;
+        specs[count] = spec;
+        targets[count] = target;
+        ivs[count] = iv;
+        decrypted[count] = null;
+        count++;
+    }
+
+    void addDecrypted(String plaintext)
+    {
+        ensureCapacity();
+        encoded[count] = null;
+        ivs[count] = null;
+        decrypted[count] = plaintext;
+        count++;
+    }
+
+    /**
+     * Adds a value which can't be decrypted for {@code reason}.
+     */
+    void addInvalid(String reason)
+    {
+        ensureCapacity();
+        encoded[count] = null;
+        ivs[count] = null;
+        decrypted[count] = null;
+        failures[count] = reason;
+        count++;
+    }
+
+    void decryptAll()
+    {
+        final int chunks = Math.max(1, Math.min(parallelism, count / MIN_VALUES_PER_CHUNK));
+        final int chunkSize = (count + chunks - 1) / chunks;
+
+        for (int i = 1; i < chunks; i++) {
+            final int chunk = i;
+            tasks[i] = ForkJoinPool.commonPool().submit(() -> decryptChunk(chunk, chunk * chunkSize, Math.min(count, (chunk + 1) * chunkSize)));
+        }
+        try {
+            decryptChunk(0, 0, Math.min(count, chunkSize));
+        }
+        finally {
+            // Waits for all chunks even if one has failed, since the decryptors are reused for the next page.
+            RuntimeException failure = null;
+            for (int i = 1; i < chunks; i++) {
+                try {
+                    tasks[i].join();
+                }
+                catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                tasks[i] = null;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Returns the encoded value which the next {@link #next()} returns the plaintext of, or null if it was added decrypted.
+     */
+    String peekEncoded()
+    {
+        return encoded[cursor];
+    }
+
+    /**
+     * Returns the reason why the value which the next {@link #next()} returns the plaintext of can't be decrypted, or null.
+     */
+    String peekFailure()
+    {
+        return failures[cursor];
+    }
+
+    String next()
+    {
+        return decrypted[cursor++];
+    }
+
+    void clear()
+    {
+        Arrays.fill(encoded, 0, count, null);
+        Arrays.fill(ivs, 0, count, null);
+        Arrays.fill(decrypted, 0, count, null);
+        Arrays.fill(failures, 0, count, null);
+        count = 0;
+        cursor = 0;
+    }
+
+    private void decryptChunk(int chunk, int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            if (encoded[i] == null) {
+                continue;
+            }
+            final ValueDecryptor decryptor = decryptors[specs[i]][chunk];
+            if (keepFailures) {
+                failures[i] = decryptor.checkStructure(encoded[i], ivs[i]);
+                if (failures[i] != null) {
+                    continue;
+                }
+            }
+            decryptor.setMetrics(metrics.of(targets[i], chunk));
+            try {
+                decrypted[i] = ivs[i] != null ? decryptor.decrypt(encoded[i], ivs[i]) : decryptor.decrypt(encoded[i]);
+            }
+            catch (DataException | IllegalArgumentException e) {
+                if (!keepFailures) {
+                    throw e;
+                }
+                failures[i] = InvalidValueHandler.reasonOf(e);
+            }
+        }
+    }
+
+    private void ensureCapacity()
+    {
+        if (count == encoded.length) {
+            encoded = Arrays.copyOf(encoded, count * 2);
+            ivs = Arrays.copyOf(ivs, count * 2);
+            specs = Arrays.copyOf(specs, count * 2);
+            targets = Arrays.copyOf(targets, count * 2);
+            decrypted = Arrays.copyOf(decrypted, count * 2);
+            failures = Arrays.copyOf(failures, count * 2);
+        }
+    }
+}
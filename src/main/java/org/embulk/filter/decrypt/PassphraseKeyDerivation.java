@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.DataException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Derives the key and the IV of values encrypted by {@code openssl enc} with a passphrase.
+ *
+ * <p>Such a value starts with "Salted__" and an 8-byte salt, from which the key and the IV are derived with
+ * EVP_BytesToKey or PBKDF2 as openssl does. The derivation is deliberately slow with PBKDF2, so it is used as
+ * a {@link DataKeyUnwrapper} of the 16-byte header, and {@link DataKeyCache} derives once per distinct salt.
+ * The derived key material is the key followed by the IV.
+ */
+final class PassphraseKeyDerivation
+        implements DataKeyUnwrapper
+{
+    static final int SALT_LENGTH = 8;
+    static final int HEADER_LENGTH = 16;
+
+    private static final byte[] MAGIC = "Salted__".getBytes(US_ASCII);
+
+    private final byte[] passphrase;
+    private final DecryptFilterPlugin.KeyDerivation method;
+    private final DecryptFilterPlugin.KeyDerivationDigest digest;
+    private final int iterations;
+    private final int keyLength;
+    private final int ivLength;
+
+    PassphraseKeyDerivation(String passphrase, DecryptFilterPlugin.KeyDerivation method, DecryptFilterPlugin.KeyDerivationDigest digest,
+                            int iterations, int keyLength, int ivLength)
+    {
+        this.passphrase = passphrase.getBytes(UTF_8);
+        this.method = method;
+        this.digest = digest;
+        this.iterations = iterations;
+        this.keyLength = keyLength;
+        this.ivLength = ivLength;
+    }
+
+    /**
+     * Returns "Salted__" followed by {@code salt}, the header that openssl writes before the ciphertext.
+     */
+    static byte[] header(byte[] salt)
+    {
+        byte[] header = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+        System.arraycopy(salt, 0, header, MAGIC.length, SALT_LENGTH);
+        return header;
+    }
+
+    @Override
+    public int getWrappedKeyLength()
+    {
+        return HEADER_LENGTH;
+    }
+
+    @Override
+    public byte[] unwrap(byte[] header) throws GeneralSecurityException
+    {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new DataException("Encrypted value doesn't start with 'Salted__'");
+            }
+        }
+        return derive(Arrays.copyOfRange(header, MAGIC.length, HEADER_LENGTH));
+    }
+
+    byte[] derive(byte[] salt) throws GeneralSecurityException
+    {
+        switch (method) {
+            case PBKDF2:
+                return derivePbkdf2(salt);
+            case EVP_BYTES_TO_KEY:
+            default:
+                return deriveEvpBytesToKey(salt);
+        }
+    }
+
+    private byte[] derivePbkdf2(byte[] salt) throws GeneralSecurityException
+    {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(digest.getPbkdf2JavaName());
+        // PBKDF2 of SunJCE encodes the passphrase in UTF-8, as it is given to openssl.
+        PBEKeySpec spec = new PBEKeySpec(new String(passphrase, UTF_8).toCharArray(), salt, iterations, (keyLength + ivLength) * 8);
+        try {
+            return factory.generateSecret(spec).getEncoded();
+        }
+        finally {
+            spec.clearPassword();
+        }
+    }
+
+    // EVP_BytesToKey with a count of 1, as openssl enc calls it: D_i = digest(D_(i-1) || passphrase || salt)
+    private byte[] deriveEvpBytesToKey(byte[] salt) throws GeneralSecurityException
+    {
+        MessageDigest md = MessageDigest.getInstance(digest.getJavaName());
+        byte[] material = new byte[keyLength + ivLength];
+        byte[] block = new byte[0];
+        int filled = 0;
+        while (filled < material.length) {
+            md.update(block);
+            md.update(passphrase);
+            md.update(salt);
+            block = md.digest();
+            int n = Math.min(block.length, material.length - filled);
+            System.arraycopy(block, 0, material, filled, n);
+            filled += n;
+        }
+        return material;
+    }
+}
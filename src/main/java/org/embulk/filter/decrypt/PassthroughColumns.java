@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.BooleanType;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.StringType;
+import org.embulk.spi.type.TimestampType;
+import org.embulk.spi.type.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies all the columns which a {@link ColumnCopier} plan doesn't decrypt, in schema order, in one call per record.
+ *
+ * <p>The type of each column is resolved to a small kind once per task, and the values are copied by their indexes
+ * in a single loop, rather than by a copier object per column whose calls can't be inlined once the plan mixes several
+ * kinds of copiers. Strings and JSON values are copied as the references which the page reader holds, without being
+ * decoded or copied themselves.
+ */
+final class PassthroughColumns
+{
+    private static final byte BOOLEAN = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte STRING = 3;
+    private static final byte TIMESTAMP = 4;
+    private static final byte JSON = 5;
+
+    private final int[] indexes;
+    private final byte[] kinds;
+    // Timestamps are read and written by their columns, through the helpers compatible with older Embulk versions.
+    private final Column[] columns;
+
+    private PassthroughColumns(List<Column> columns)
+    {
+        this.columns = columns.toArray(new Column[0]);
+        this.indexes = new int[this.columns.length];
+        this.kinds = new byte[this.columns.length];
+        for (int i = 0; i < this.columns.length; i++) {
+            indexes[i] = this.columns[i].getIndex();
+            kinds[i] = kindOf(this.columns[i].getType());
+        }
+    }
+
+    /**
+     * Returns the columns of {@code schema} which no copier of {@code plan} copies.
+     */
+    static PassthroughColumns of(Schema schema, ColumnCopier[] plan)
+    {
+        final boolean[] copied = new boolean[schema.getColumnCount()];
+        for (ColumnCopier copier : plan) {
+            copied[copier.column.getIndex()] = true;
+        }
+        final List<Column> columns = new ArrayList<>();
+        for (Column column : schema.getColumns()) {
+            if (!copied[column.getIndex()]) {
+                columns.add(column);
+            }
+        }
+        return new PassthroughColumns(columns);
+    }
+
+    void copy(PageReader pageReader, PageBuilder pageBuilder)
+    {
+        final int[] indexes = this.indexes;
+        final byte[] kinds = this.kinds;
+        for (int i = 0; i < indexes.length; i++) {
+            final int index = indexes[i];
+            if (pageReader.isNull(index)) {
+                pageBuilder.setNull(index);
+                continue;
+            }
+            switch (kinds[i]) {
+                case BOOLEAN:
+                    pageBuilder.setBoolean(index, pageReader.getBoolean(index));
+                    break;
+                case LONG:
+                    pageBuilder.setLong(index, pageReader.getLong(index));
+                    break;
+                case DOUBLE:
+                    pageBuilder.setDouble(index, pageReader.getDouble(index));
+                    break;
+                case STRING:
+                    pageBuilder.setString(index, pageReader.getString(index));
+                    break;
+                case TIMESTAMP:
+                    DecryptFilterPlugin.setTimestampToPageBuilder(pageBuilder, columns[i],
+                            DecryptFilterPlugin.readTimestamp(pageReader, columns[i]));
+                    break;
+                default:
+                    pageBuilder.setJson(index, pageReader.getJson(index));
+                    break;
+            }
+        }
+    }
+
+    private static byte kindOf(Type type)
+    {
+        if (type instanceof BooleanType) {
+            return BOOLEAN;
+        }
+        else if (type instanceof LongType) {
+            return LONG;
+        }
+        else if (type instanceof DoubleType) {
+            return DOUBLE;
+        }
+        else if (type instanceof StringType) {
+            return STRING;
+        }
+        else if (type instanceof TimestampType) {
+            return TIMESTAMP;
+        }
+        else if (type instanceof JsonType) {
+            return JSON;
+        }
+        throw new IllegalArgumentException("Unsupported column type: " + type);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.DataException;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands incoming pages to a dedicated thread through a bounded queue, so that the upstream plugin
+ * can read and parse the next pages while the previous ones are decrypted.
+ *
+ * <p>The delegate is used only by the dedicated thread until {@link #finish()} or {@link #close()} has
+ * waited for that thread to end. A failure of the delegate is rethrown by the next {@link #add(Page)}
+ * or by {@link #finish()}. The pages left in the queue after a failure are released.
+ */
+class PipelinedPageOutput
+        implements PageOutput
+{
+    private static final Object END = new Object();
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final PageOutput delegate;
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+
+    private volatile Throwable failure;
+    private boolean ended;
+
+    PipelinedPageOutput(PageOutput delegate, int queueSize)
+    {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+
+        // The thread is created by the task thread so that it inherits the Exec session of the task,
+        // which the downstream plugins may use in their add(Page).
+        this.thread = new Thread(this::run, "embulk-filter-decrypt-pipeline-" + THREAD_COUNT.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        throwIfFailed();
+        try {
+            queue.put(page);
+        }
+        catch (InterruptedException e) {
+            page.release();
+            Thread.currentThread().interrupt();
+            throw new DataException(e);
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        end();
+        throwIfFailed();
+        delegate.finish();
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            if (!ended) {
+                // Aborted without finish(). Stops the thread without decrypting the rest.
+                thread.interrupt();
+                end();
+            }
+        }
+        finally {
+            releaseQueuedPages();
+            delegate.close();
+        }
+    }
+
+    private void run()
+    {
+        try {
+            while (true) {
+                Object next = queue.take();
+                if (next == END) {
+                    return;
+                }
+                if (failure != null) {
+                    ((Page) next).release();
+                }
+                else {
+                    try {
+                        delegate.add((Page) next);
+                    }
+                    catch (Throwable e) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // Interrupted by close(). The remaining pages are released by close().
+        }
+    }
+
+    private void end()
+    {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        boolean interrupted = false;
+        try {
+            // The thread keeps taking pages even after a failure, so this does not block forever.
+            while (thread.isAlive() && !queue.offer(END)) {
+                try {
+                    thread.join(10);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void releaseQueuedPages()
+    {
+        Object next;
+        while ((next = queue.poll()) != null) {
+            if (next != END) {
+                ((Page) next).release();
+            }
+        }
+    }
+
+    private void throwIfFailed()
+    {
+        Throwable e = failure;
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        else if (e instanceof Error) {
+            throw (Error) e;
+        }
+        else if (e != null) {
+            throw new DataException(e);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.DataException;
+
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses decrypted plaintexts of {@code plaintext_compression}, before they are decoded as UTF-8.
+ *
+ * <p>The {@link Inflater}, the output buffer and the CRC of gzip are reused across values, so an instance must be
+ * used by one thread at a time, as its {@link ValueDecryptor}. The gzip header is parsed here rather than by
+ * {@link java.util.zip.GZIPInputStream}, which would need a new stream and Inflater for each value.
+ * A value decompressing to more than {@code maxSize} bytes fails, so that a small value can't exhaust the heap.
+ */
+final class PlaintextDecompressor
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+
+    // Inflater without the zlib wrapper may need an extra byte after the compressed data.
+    private static final byte[] DUMMY = new byte[1];
+
+    private final DecryptFilterPlugin.PlaintextCompression compression;
+    private final Inflater inflater;
+    private final CRC32 crc;
+    private final int maxSize;
+
+    private byte[] buffer;
+
+    PlaintextDecompressor(DecryptFilterPlugin.PlaintextCompression compression, int maxSize)
+    {
+        this.compression = compression;
+        this.inflater = new Inflater(compression != DecryptFilterPlugin.PlaintextCompression.ZLIB);
+        this.crc = compression == DecryptFilterPlugin.PlaintextCompression.GZIP ? new CRC32() : null;
+        this.maxSize = maxSize;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, maxSize)];
+    }
+
+    /**
+     * Returns the buffer which {@link #decompress(byte[], int)} has decompressed into. It may be replaced by a larger one.
+     */
+    byte[] buffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Decompresses the first {@code length} bytes of {@code src} into {@link #buffer()}, and returns the decompressed length.
+     */
+    int decompress(byte[] src, int length)
+    {
+        int offset = 0;
+        if (compression == DecryptFilterPlugin.PlaintextCompression.GZIP) {
+            offset = skipGzipHeader(src, length);
+        }
+
+        inflater.reset();
+        inflater.setInput(src, offset, length - offset);
+        int size = 0;
+        boolean dummyGiven = false;
+        try {
+            while (!inflater.finished()) {
+                if (size == buffer.length) {
+                    grow(size);
+                }
+                int n = inflater.inflate(buffer, size, buffer.length - size);
+                size += n;
+                if (n == 0 && !inflater.finished()) {
+                    if (inflater.needsDictionary()) {
+                        throw invalid();
+                    }
+                    if (inflater.needsInput()) {
+                        if (dummyGiven || compression == DecryptFilterPlugin.PlaintextCompression.ZLIB) {
+                            throw invalid();
+                        }
+                        inflater.setInput(DUMMY);
+                        dummyGiven = true;
+                    }
+                }
+            }
+        }
+        catch (DataFormatException e) {
+            throw invalid();
+        }
+
+        if (compression == DecryptFilterPlugin.PlaintextCompression.GZIP) {
+            if (dummyGiven) {
+                throw invalid();
+            }
+            verifyGzipTrailer(src, length - inflater.getRemaining(), length, size);
+        }
+        return size;
+    }
+
+    private void grow(int size)
+    {
+        if (size >= maxSize) {
+            throw new DataException(String.format("Decompressed value is larger than %d bytes of max_decompressed_size", maxSize));
+        }
+        byte[] grown = new byte[(int) Math.min((long) maxSize, Math.max(INITIAL_CAPACITY, (long) buffer.length * 2))];
+        System.arraycopy(buffer, 0, grown, 0, size);
+        buffer = grown;
+    }
+
+    private int skipGzipHeader(byte[] src, int length)
+    {
+        if (length < 10 || (src[0] & 0xff) != 0x1f || (src[1] & 0xff) != 0x8b || src[2] != 8) {
+            throw invalid();
+        }
+        final int flags = src[3] & 0xff;
+        int i = 10;
+        if ((flags & GZIP_FEXTRA) != 0) {
+            if (i + 2 > length) {
+                throw invalid();
+            }
+            i += 2 + ((src[i] & 0xff) | (src[i + 1] & 0xff) << 8);
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            i = skipZeroTerminated(src, i, length);
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            i = skipZeroTerminated(src, i, length);
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            i += 2;
+        }
+        if (i > length) {
+            throw invalid();
+        }
+        return i;
+    }
+
+    private int skipZeroTerminated(byte[] src, int i, int length)
+    {
+        while (i < length && src[i] != 0) {
+            i++;
+        }
+        if (i == length) {
+            throw invalid();
+        }
+        return i + 1;
+    }
+
+    /**
+     * Verifies the CRC-32 and the size in the 8-byte trailer at {@code trailer}, which must end the value.
+     * A value of several gzip members is not supported.
+     */
+    private void verifyGzipTrailer(byte[] src, int trailer, int length, int size)
+    {
+        if (trailer + 8 != length) {
+            throw invalid();
+        }
+        crc.reset();
+        crc.update(buffer, 0, size);
+        if ((int) crc.getValue() != readIntLittleEndian(src, trailer) || size != readIntLittleEndian(src, trailer + 4)) {
+            throw invalid();
+        }
+    }
+
+    private static int readIntLittleEndian(byte[] src, int i)
+    {
+        return (src[i] & 0xff) | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff) << 16 | (src[i + 3] & 0xff) << 24;
+    }
+
+    private DataException invalid()
+    {
+        return new DataException(String.format("Decrypted value is not valid %s data", compression));
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageBuilder;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Parses decrypted plaintext bytes into the value of a column of {@code output_type} other than string,
+ * and sets it to a {@link PageBuilder}, without decoding the plaintext into a {@link String} first.
+ *
+ * <p>Error messages don't include the plaintext, which may be sensitive.
+ */
+abstract class PlaintextWriter
+{
+    protected final Column column;
+
+    PlaintextWriter(Column column)
+    {
+        this.column = column;
+    }
+
+    abstract void write(PageBuilder pageBuilder, byte[] plaintext, int length);
+
+    /**
+     * Writes a plaintext which is already decoded, such as one from the decryption cache.
+     */
+    void write(PageBuilder pageBuilder, String plaintext)
+    {
+        byte[] bytes = plaintext.getBytes(UTF_8);
+        write(pageBuilder, bytes, bytes.length);
+    }
+
+    /**
+     * @param staged the row which strings and JSON values are staged in, or null to set them to the page builder
+     */
+    static PlaintextWriter of(Column column, DecryptFilterPlugin.DecryptionSpec spec, StagedRow staged)
+    {
+        switch (spec.getOutputType()) {
+            case STRING:
+                return new StringWriter(column, staged);
+            case LONG:
+                return new LongWriter(column);
+            case DOUBLE:
+                return new DoubleWriter(column);
+            case BOOLEAN:
+                return new BooleanWriter(column);
+            case TIMESTAMP:
+                return new TimestampWriter(column, timestampFormatter(spec), ZoneId.of(spec.getTimezone()));
+            case JSON:
+                return new JsonWriter(column, staged);
+            default:
+                throw new AssertionError("Unknown output_type " + spec.getOutputType());
+        }
+    }
+
+    /**
+     * Returns the formatter of {@code timestamp_format}. Without it, parses "2018-01-23 12:34:56.789 +09:00" and the ISO-8601 form,
+     * where the fraction and the offset or zone are optional.
+     */
+    static DateTimeFormatter timestampFormatter(DecryptFilterPlugin.DecryptionSpec spec)
+    {
+        if (spec.getTimestampFormat().isPresent()) {
+            return DateTimeFormatter.ofPattern(spec.getTimestampFormat().get());
+        }
+        return new DateTimeFormatterBuilder()
+                .append(DateTimeFormatter.ISO_LOCAL_DATE)
+                .optionalStart().appendLiteral('T').optionalEnd()
+                .optionalStart().appendLiteral(' ').optionalEnd()
+                .append(DateTimeFormatter.ISO_LOCAL_TIME)
+                .optionalStart().appendLiteral(' ').optionalEnd()
+                .optionalStart().appendOffset("+HH:MM", "Z").optionalEnd()
+                .optionalStart().appendOffset("+HHMM", "Z").optionalEnd()
+                .optionalStart().appendZoneRegionId().optionalEnd()
+                .toFormatter();
+    }
+
+    DataException invalid(String type)
+    {
+        return new DataException(String.format("Decrypted value of column '%s' is not a valid %s", column.getName(), type));
+    }
+
+    static final class StringWriter
+            extends PlaintextWriter
+    {
+        private final StagedRow staged;
+
+        StringWriter(Column column, StagedRow staged)
+        {
+            super(column);
+            this.staged = staged;
+        }
+
+        @Override
+        void write(PageBuilder pageBuilder, byte[] plaintext, int length)
+        {
+            StagedRow.setString(staged, pageBuilder, column, new String(plaintext, 0, length, UTF_8));
+        }
+
+        @Override
+        void write(PageBuilder pageBuilder, String plaintext)
+        {
+            StagedRow.setString(staged, pageBuilder, column, plaintext);
+        }
+    }
+
+    /**
+     * Parses decimal digits with an optional sign, as {@link Long#parseLong(String)} does.
+     */
+    static final class LongWriter
+            extends PlaintextWriter
+    {
+        LongWriter(Column column)
+        {
+            super(column);
+        }
+
+        @Override
+        void write(PageBuilder pageBuilder, byte[] plaintext, int length)
+        {
+            pageBuilder.setLong(column, parse(plaintext, length));
+        }
+
+        long parse(byte[] b, int length)
+        {
+            int i = 0;
+            boolean negative = false;
+            if (length > 0 && (b[0] == '-' || b[0] == '+')) {
+                negative = b[0] == '-';
+                i++;
+            }
+            if (i == length) {
+                throw invalid("long");
+            }
+            // Accumulated as a negative number, whose range includes Long.MIN_VALUE.
+            final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long result = 0;
+            for (; i < length; i++) {
+                int digit = b[i] - '0';
+                if (digit < 0 || digit > 9 || result < limit / 10) {
+                    throw invalid("long");
+                }
+                result *= 10;
+                if (result < limit + digit) {
+                    throw invalid("long");
+                }
+                result -= digit;
+            }
+            return negative ? result : -result;
+        }
+    }
+
+    /**
+     * Parses a decimal number of up to 15 significant digits and a small exponent directly, which is exact because
+     * both the digits and the power of ten are exact doubles. Other numbers are parsed by {@link Double#parseDouble(String)}.
+     */
+    static final class DoubleWriter
+            extends PlaintextWriter
+    {
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+        };
+        private static final int MAX_FAST_DIGITS = 15;
+
+        DoubleWriter(Column column)
+        {
+            super(column);
+        }
+
+        @Override
+        void write(PageBuilder pageBuilder, byte[] plaintext, int length)
+        {
+            pageBuilder.setDouble(column, parse(plaintext, length));
+        }
+
+        double parse(byte[] b, int length)
+        {
+            int i = 0;
+            boolean negative = false;
+            if (length > 0 && (b[0] == '-' || b[0] == '+')) {
+                negative = b[0] == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean anyDigit = false;
+            for (; i < length && isDigit(b[i]); i++) {
+                anyDigit = true;
+                if (mantissa != 0 || b[i] != '0') {
+                    mantissa = mantissa * 10 + (b[i] - '0');
+                    digits++;
+                }
+            }
+            if (i < length && b[i] == '.') {
+                for (i++; i < length && isDigit(b[i]); i++) {
+                    anyDigit = true;
+                    if (mantissa != 0 || b[i] != '0') {
+                        mantissa = mantissa * 10 + (b[i] - '0');
+                        digits++;
+                    }
+                    exponent--;
+                }
+            }
+            if (anyDigit && i < length && (b[i] == 'e' || b[i] == 'E')) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < length && (b[i] == '-' || b[i] == '+')) {
+                    negativeExponent = b[i] == '-';
+                    i++;
+                }
+                int explicit = 0;
+                int start = i;
+                for (; i < length && isDigit(b[i]) && explicit < 1000; i++) {
+                    explicit = explicit * 10 + (b[i] - '0');
+                }
+                exponent += i == start ? Integer.MIN_VALUE / 2 : (negativeExponent ? -explicit : explicit);
+            }
+            if (anyDigit && i == length && digits <= MAX_FAST_DIGITS && Math.abs(exponent) < POWERS_OF_TEN.length) {
+                double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+                return negative ? -value : value;
+            }
+            return parseSlow(b, length);
+        }
+
+        private double parseSlow(byte[] b, int length)
+        {
+            try {
+                // Non-ASCII bytes become characters which Double.parseDouble rejects.
+                return Double.parseDouble(new String(b, 0, length, ISO_8859_1));
+            }
+            catch (NumberFormatException e) {
+                throw invalid("double");
+            }
+        }
+
+        private static boolean isDigit(byte b)
+        {
+            return b >= '0' && b <= '9';
+        }
+    }
+
+    /**
+     * Accepts the same words as the CSV parser of Embulk, regardless of case.
+     */
+    static final class BooleanWriter
+            extends PlaintextWriter
+    {
+        private static final byte[][] TRUE_WORDS = words("true", "yes", "y", "on", "t", "1");
+        private static final byte[][] FALSE_WORDS = words("false", "no", "n", "off", "f", "0");
+
+        BooleanWriter(Column column)
+        {
+            super(column);
+        }
+
+        @Override
+        void write(PageBuilder pageBuilder, byte[] plaintext, int length)
+        {
+            pageBuilder.setBoolean(column, parse(plaintext, length));
+        }
+
+        boolean parse(byte[] b, int length)
+        {
+            if (matchesAny(TRUE_WORDS, b, length)) {
+                return true;
+            }
+            if (matchesAny(FALSE_WORDS, b, length)) {
+                return false;
+            }
+            throw invalid("boolean");
+        }
+
+        private static boolean matchesAny(byte[][] words, byte[] b, int length)
+        {
+            for (byte[] word : words) {
+                if (equalsIgnoreCase(word, b, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean equalsIgnoreCase(byte[] lowerCaseWord, byte[] b, int length)
+        {
+            if (lowerCaseWord.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                byte c = b[i] >= 'A' && b[i] <= 'Z' ? (byte) (b[i] + ('a' - 'A')) : b[i];
+                if (c != lowerCaseWord[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static byte[][] words(String... words)
+        {
+            byte[][] bytes = new byte[words.length][];
+            for (int i = 0; i < words.length; i++) {
+                bytes[i] = words[i].getBytes(UTF_8);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Parses with a {@link DateTimeFormatter} reading the plaintext bytes through a {@link CharSequence} view.
+     * A value without an offset or a zone is in {@code timezone}, and a value without a time is at midnight.
+     */
+    static final class TimestampWriter
+            extends PlaintextWriter
+    {
+        private final DateTimeFormatter formatter;
+        private final ZoneId defaultZone;
+        private final AsciiCharSequence text = new AsciiCharSequence();
+
+        TimestampWriter(Column column, DateTimeFormatter formatter, ZoneId defaultZone)
+        {
+            super(column);
+            this.formatter = formatter;
+            this.defaultZone = defaultZone;
+        }
+
+        @Override
+        void write(PageBuilder pageBuilder, byte[] plaintext, int length)
+        {
+            text.set(plaintext, length);
+            final TemporalAccessor parsed;
+            try {
+                parsed = formatter.parse(text);
+            }
+            catch (DateTimeException e) {
+                throw invalid("timestamp");
+            }
+            finally {
+                text.set(null, 0);
+            }
+            final LocalDate date = parsed.query(TemporalQueries.localDate());
+            if (date == null) {
+                throw invalid("timestamp");
+            }
+            final LocalTime time = parsed.query(TemporalQueries.localTime());
+            final ZoneId zone = parsed.query(TemporalQueries.zone());
+            DecryptFilterPlugin.setTimestampToPageBuilder(pageBuilder, column,
+                    date.atTime(time != null ? time : LocalTime.MIDNIGHT).atZone(zone != null ? zone : defaultZone).toInstant());
+        }
+    }
+
+    /**
+     * A view of bytes as characters, one byte to one character. Timestamps are ASCII, and any other byte
+     * becomes a character which the formatter rejects.
+     */
+    static final class AsciiCharSequence
+            implements CharSequence
+    {
+        private byte[] bytes;
+        private int length;
+
+        void set(byte[] bytes, int length)
+        {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        @Override
+        public int length()
+        {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return (char) (bytes[index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString()
+        {
+            return new String(bytes, 0, length, ISO_8859_1);
+        }
+    }
+
+    /**
+     * Parses the plaintext bytes with a streaming JSON parser. Integers out of the long range are kept as big integers,
+     * and other numbers become doubles.
+     */
+    static final class JsonWriter
+            extends PlaintextWriter
+    {
+        private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+        private final StagedRow staged;
+
+        JsonWriter(Column column, StagedRow staged)
+        {
+            super(column);
+            this.staged = staged;
+        }
+
+        @Override
+        void write(PageBuilder pageBuilder, byte[] plaintext, int length)
+        {
+            StagedRow.setJson(staged, pageBuilder, column, parse(plaintext, length));
+        }
+
+        Value parse(byte[] plaintext, int length)
+        {
+            try (JsonParser parser = JSON_FACTORY.createParser(plaintext, 0, length)) {
+                if (parser.nextToken() == null) {
+                    throw invalid("json");
+                }
+                Value value = readValue(parser);
+                if (parser.nextToken() != null) {
+                    throw invalid("json");
+                }
+                return value;
+            }
+            catch (IOException e) {
+                throw invalid("json");
+            }
+        }
+
+        private Value readValue(JsonParser parser) throws IOException
+        {
+            switch (parser.getCurrentToken()) {
+                case VALUE_NULL:
+                    return ValueFactory.newNil();
+                case VALUE_TRUE:
+                    return ValueFactory.newBoolean(true);
+                case VALUE_FALSE:
+                    return ValueFactory.newBoolean(false);
+                case VALUE_NUMBER_INT:
+                    if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                        return ValueFactory.newInteger(parser.getBigIntegerValue());
+                    }
+                    return ValueFactory.newInteger(parser.getLongValue());
+                case VALUE_NUMBER_FLOAT:
+                    return ValueFactory.newFloat(parser.getDoubleValue());
+                case VALUE_STRING:
+                    return ValueFactory.newString(parser.getText());
+                case START_ARRAY: {
+                    List<Value> values = new ArrayList<>();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        values.add(readValue(parser));
+                    }
+                    return ValueFactory.newArray(values);
+                }
+                case START_OBJECT: {
+                    Map<Value, Value> entries = new LinkedHashMap<>();
+                    while (parser.nextToken() != JsonToken.END_OBJECT) {
+                        Value key = ValueFactory.newString(parser.getCurrentName());
+                        parser.nextToken();
+                        entries.put(key, readValue(parser));
+                    }
+                    return ValueFactory.newMap(entries);
+                }
+                default:
+                    throw invalid("json");
+            }
+        }
+    }
+}
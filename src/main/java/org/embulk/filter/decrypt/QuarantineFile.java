@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.type.BooleanType;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.TimestampType;
+import org.embulk.spi.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Writes the records of values which can't be decrypted into a local file of JSON lines, named with {@code quarantine_path_prefix}.
+ *
+ * <p>Each line is an object of the name of the column, the reason, and the whole record as it was read, keyed by column name,
+ * so that the records can be inspected and loaded again. The file of a task is created with a unique name when its first
+ * record is written, so a task without invalid values creates no file.
+ */
+final class QuarantineFile
+{
+    private static final Logger log = LoggerFactory.getLogger(QuarantineFile.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String pathPrefix;
+    private Path path;
+    private JsonGenerator generator;
+
+    QuarantineFile(String pathPrefix)
+    {
+        this.pathPrefix = pathPrefix;
+    }
+
+    /**
+     * Returns the path of the file, or null if it has not been created.
+     */
+    Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Writes the current record of {@code pageReader}, whose value of {@code column} can't be decrypted for {@code reason}.
+     */
+    void write(PageReader pageReader, Column column, String reason)
+    {
+        try {
+            if (generator == null) {
+                open();
+            }
+            generator.writeStartObject();
+            generator.writeStringField("column", column.getName());
+            generator.writeStringField("reason", reason);
+            generator.writeObjectFieldStart("record");
+            for (Column c : pageReader.getSchema().getColumns()) {
+                generator.writeFieldName(c.getName());
+                writeValue(pageReader, c);
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+        catch (IOException e) {
+            throw new DataException(String.format("Failed to write to quarantine file %s", path), e);
+        }
+    }
+
+    private void writeValue(PageReader pageReader, Column column) throws IOException
+    {
+        if (pageReader.isNull(column)) {
+            generator.writeNull();
+            return;
+        }
+        final Type type = column.getType();
+        if (type instanceof BooleanType) {
+            generator.writeBoolean(pageReader.getBoolean(column));
+        }
+        else if (type instanceof LongType) {
+            generator.writeNumber(pageReader.getLong(column));
+        }
+        else if (type instanceof DoubleType) {
+            generator.writeNumber(pageReader.getDouble(column));
+        }
+        else if (type instanceof TimestampType) {
+            generator.writeString(DecryptFilterPlugin.readTimestamp(pageReader, column).toString());
+        }
+        else if (type instanceof JsonType) {
+            generator.writeRawValue(pageReader.getJson(column).toJson());
+        }
+        else {
+            generator.writeString(pageReader.getString(column));
+        }
+    }
+
+    private void open() throws IOException
+    {
+        // A prefix ending with a separator is a directory, and the names of the files in it have no prefix.
+        final boolean isDirectory = pathPrefix.endsWith("/") || pathPrefix.endsWith(File.separator);
+        final Path prefix = Paths.get(pathPrefix).toAbsolutePath();
+        final Path directory = isDirectory ? prefix : prefix.getParent();
+        Files.createDirectories(directory);
+        path = Files.createTempFile(directory, isDirectory ? "" : prefix.getFileName().toString(), ".jsonl");
+        generator = JSON_FACTORY.createGenerator(Files.newBufferedWriter(path, UTF_8));
+        // One object per line.
+        generator.setRootValueSeparator(null);
+        log.warn("Records of values which can't be decrypted are written to {}", path);
+    }
+
+    void flush()
+    {
+        if (generator != null) {
+            try {
+                generator.flush();
+            }
+            catch (IOException e) {
+                throw new DataException(String.format("Failed to write to quarantine file %s", path), e);
+            }
+        }
+    }
+
+    void close()
+    {
+        if (generator != null) {
+            try {
+                generator.close();
+            }
+            catch (IOException e) {
+                log.warn("Failed to close quarantine file {}", path, e);
+            }
+            generator = null;
+        }
+    }
+}
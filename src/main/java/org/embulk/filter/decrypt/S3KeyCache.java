@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps the S3 key file and its ETag on the local disk, so that scheduled jobs don't retrieve it from S3 every time.
+ *
+ * <p>A cached key file younger than the TTL is used as is. An older one is revalidated with its ETag. Files are
+ * readable only by the owner, and written to a temporary file first, so that a reader never sees a partial file.
+ * A failure to read or write the cache is logged, and the key file is retrieved from S3 as without the cache.
+ */
+final class S3KeyCache
+{
+    private static final Logger log = LoggerFactory.getLogger(S3KeyCache.class);
+
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private final Path directory;
+    private final Path keyFile;
+    private final Path etagFile;
+    private final long ttlMillis;
+    private final Clock clock;
+
+    S3KeyCache(Path directory, String id, long ttlSeconds)
+    {
+        this(directory, id, ttlSeconds, Clock.systemUTC());
+    }
+
+    S3KeyCache(Path directory, String id, long ttlSeconds, Clock clock)
+    {
+        this.directory = directory;
+        this.keyFile = directory.resolve(id + ".yml");
+        this.etagFile = directory.resolve(id + ".etag");
+        this.ttlMillis = ttlSeconds * 1000;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the name of the cache files of a key file, which doesn't reveal where the key file is.
+     */
+    static String id(String endpoint, String region, String bucket, String path)
+    {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            byte[] digest = sha256.digest(String.join("\n", endpoint, region, bucket, path).getBytes(UTF_8));
+            return BaseEncoding.base16().lowerCase().encode(digest);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // this must not happen because every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached key file if it has been retrieved or revalidated within the TTL.
+     */
+    Optional<byte[]> readFresh()
+    {
+        try {
+            long age = clock.millis() - Files.getLastModifiedTime(keyFile).toMillis();
+            if (age < 0 || age >= ttlMillis) {
+                return Optional.empty();
+            }
+            return Optional.of(Files.readAllBytes(keyFile));
+        }
+        catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        catch (IOException e) {
+            log.warn("Failed to read cached S3 key file {}", keyFile, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Returns the cached key file regardless of its age.
+     */
+    Optional<byte[]> read()
+    {
+        try {
+            return Optional.of(Files.readAllBytes(keyFile));
+        }
+        catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        catch (IOException e) {
+            log.warn("Failed to read cached S3 key file {}", keyFile, e);
+            return Optional.empty();
+        }
+    }
+
+    Optional<String> readEtag()
+    {
+        try {
+            if (!Files.exists(keyFile)) {
+                return Optional.empty();
+            }
+            return Optional.of(new String(Files.readAllBytes(etagFile), UTF_8));
+        }
+        catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        catch (IOException e) {
+            log.warn("Failed to read cached ETag {}", etagFile, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Restarts the TTL of the cached key file, after S3 has answered that it is not modified.
+     */
+    void touch()
+    {
+        try {
+            Files.setLastModifiedTime(keyFile, FileTime.fromMillis(clock.millis()));
+        }
+        catch (IOException e) {
+            log.warn("Failed to update cached S3 key file {}", keyFile, e);
+        }
+    }
+
+    void write(byte[] content, String etag)
+    {
+        try {
+            createDirectory();
+            // The key file first, so that an ETag never belongs to an older key file.
+            writeAtomically(keyFile, content);
+            Files.setLastModifiedTime(keyFile, FileTime.fromMillis(clock.millis()));
+            if (etag != null) {
+                writeAtomically(etagFile, etag.getBytes(UTF_8));
+            }
+            else {
+                Files.deleteIfExists(etagFile);
+            }
+        }
+        catch (IOException e) {
+            log.warn("Failed to cache S3 key file in {}", directory, e);
+        }
+    }
+
+    private void createDirectory() throws IOException
+    {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+        if (isPosix()) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+        }
+        else {
+            Files.createDirectories(directory);
+        }
+    }
+
+    private void writeAtomically(Path target, byte[] bytes) throws IOException
+    {
+        final Path temp;
+        if (isPosix()) {
+            FileAttribute<Set<PosixFilePermission>> ownerOnly = PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE);
+            temp = Files.createTempFile(directory, ".key", ".tmp", ownerOnly);
+        }
+        else {
+            temp = Files.createTempFile(directory, ".key", ".tmp");
+            temp.toFile().setReadable(false, false);
+            temp.toFile().setReadable(true, true);
+        }
+        try {
+            Files.write(temp, bytes);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private boolean isPosix()
+    {
+        return directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+}
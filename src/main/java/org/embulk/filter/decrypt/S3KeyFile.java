@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.io.ByteStreams;
+import org.embulk.config.ConfigException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Retrieves the key file from S3.
+ *
+ * <p>Every reference to the AWS SDK is kept in this class, so that the SDK is not loaded when the key is inline,
+ * or when the key file is read from the local cache.
+ */
+final class S3KeyFile
+{
+    private static final Logger log = LoggerFactory.getLogger(S3KeyFile.class);
+
+    private final byte[] content;
+    private final String etag;
+
+    private S3KeyFile(byte[] content, String etag)
+    {
+        this.content = content;
+        this.etag = etag;
+    }
+
+    byte[] getContent()
+    {
+        return content;
+    }
+
+    String getEtag()
+    {
+        return etag;
+    }
+
+    static AmazonS3 newClient(final DecryptFilterPlugin.AWSParams awsParams)
+    {
+        AWSCredentialsProvider awsCredentialsProvider = new AWSCredentialsProvider()
+        {
+            @Override
+            public AWSCredentials getCredentials()
+            {
+                return new BasicAWSCredentials(awsParams.getAccessKey(), awsParams.getSecretKey());
+            }
+
+            @Override
+            public void refresh()
+            {
+            }
+        };
+
+        try {
+            AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                    .withCredentials(awsCredentialsProvider);
+            if (awsParams.getEndpoint().isPresent()) {
+                // S3-compatible storages, such as a local stub, mostly don't resolve buckets by host names.
+                builder = builder
+                        .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(awsParams.getEndpoint().get(), awsParams.getRegion()))
+                        .withPathStyleAccessEnabled(true);
+            }
+            else {
+                builder = builder.withRegion(awsParams.getRegion());
+            }
+            return builder.build();
+        }
+        catch (SdkClientException e) {
+            throw new ConfigException(e);
+        }
+    }
+
+    /**
+     * Retrieves the key file. If {@code ifNoneMatch} is given and the key file still has that ETag, returns null.
+     */
+    static S3KeyFile retrieve(final String bucket, final String path, final AmazonS3 client, final String ifNoneMatch)
+    {
+        S3Object fullObject = null;
+
+        try {
+            GetObjectRequest request = new GetObjectRequest(bucket, path);
+            if (ifNoneMatch != null) {
+                request = request.withNonmatchingETagConstraint(ifNoneMatch);
+            }
+            fullObject = client.getObject(request);
+            if (fullObject == null) {
+                if (ifNoneMatch != null) {
+                    // Not modified.
+                    return null;
+                }
+                throw new ConfigException("S3 key file is not enabled to be retrieved");
+            }
+            String etag = fullObject.getObjectMetadata() != null ? fullObject.getObjectMetadata().getETag() : null;
+            return new S3KeyFile(ByteStreams.toByteArray(fullObject.getObjectContent()), etag);
+        }
+        catch (AmazonServiceException e) {
+            // The call was transmitted successfully, but Amazon S3 couldn't process
+            // it, so it returned an error response.
+            if (e.getErrorType().equals(AmazonServiceException.ErrorType.Client)) {
+                // HTTP 40x errors. auth error, bucket doesn't exist, etc. See AWS document for the full list:
+                // http://docs.aws.amazon.com/AmazonS3/latest/API/ErrorResponses.html
+                if (e.getStatusCode() != 400
+                        || "ExpiredToken".equalsIgnoreCase(e.getErrorCode())) {
+                    throw new ConfigException(e);
+                }
+            }
+            throw e;
+        }
+        catch (IOException e) {
+            throw new ConfigException("S3 key file can't be read", e);
+        }
+        finally {
+            // To ensure that the network connection doesn't remain open, close any open input streams.
+            if (fullObject != null) {
+                try {
+                    fullObject.close();
+                }
+                catch (IOException e) {
+                    log.warn("Failure to close S3 Object input stream", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.embulk.config.ConfigException;
+import org.embulk.util.snakeyaml.EmbulkYamlTagResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.representer.Representer;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Provides the key file of {@code key_type: s3}, from the local cache if {@code key_cache_dir} is set.
+ *
+ * <p>The S3 client is created and the key file is retrieved by {@link #newS3Client} and {@link #retrieveKey},
+ * so that they can be replaced in tests. SnakeYAML is loaded and its parser is built only when this class is first used.
+ */
+class S3KeyProvider
+        implements KeyProvider
+{
+    private static final Logger log = LoggerFactory.getLogger(S3KeyProvider.class);
+
+    private static final String[] STRING_ENTRIES = {"key_hex", "iv_hex", "passphrase"};
+
+    private static final Yaml yaml = new Yaml(new SafeConstructor(), new Representer(), new DumperOptions(), new EmbulkYamlTagResolver());
+
+    S3KeyProvider()
+    {
+    }
+
+    /**
+     * Reads the S3 key file. A fresh cached key file is used without creating an S3 client.
+     */
+    @Override
+    public Map<String, Object> loadKeyFile(final DecryptFilterPlugin.DecryptionSpec spec)
+    {
+        if (!spec.getAWSParams().isPresent()) {
+            throw new ConfigException("AWS Params are required for S3 Key type");
+        }
+        final DecryptFilterPlugin.AWSParams params = spec.getAWSParams().get();
+        if (!params.getKeyCacheDir().isPresent()) {
+            return checkKeyFile(retrieveKey(params.getBucket(), params.getPath(), newS3Client(params)));
+        }
+        if (params.getKeyCacheTtl() < 0) {
+            throw new ConfigException("Field 'key_cache_ttl' must not be negative");
+        }
+
+        final S3KeyCache cache = new S3KeyCache(Paths.get(params.getKeyCacheDir().get()),
+                S3KeyCache.id(params.getEndpoint().orElse(""), params.getRegion(), params.getBucket(), params.getPath()),
+                params.getKeyCacheTtl());
+        if (!params.getKeyCacheRefresh()) {
+            final Optional<byte[]> cached = cache.readFresh();
+            if (cached.isPresent()) {
+                log.info("Using cached S3 key file of s3://{}/{}", params.getBucket(), params.getPath());
+                return parseKeyFile(cached.get());
+            }
+        }
+
+        final AmazonS3 client = newS3Client(params);
+        final Optional<String> etag = params.getKeyCacheRefresh() ? Optional.empty() : cache.readEtag();
+        if (etag.isPresent()) {
+            final S3KeyFile retrieved = S3KeyFile.retrieve(params.getBucket(), params.getPath(), client, etag.get());
+            if (retrieved == null) {
+                final Optional<byte[]> cached = cache.read();
+                if (cached.isPresent()) {
+                    log.info("Cached S3 key file of s3://{}/{} is not modified", params.getBucket(), params.getPath());
+                    cache.touch();
+                    return parseKeyFile(cached.get());
+                }
+            }
+            else {
+                return parseAndCache(cache, retrieved);
+            }
+        }
+        return parseAndCache(cache, S3KeyFile.retrieve(params.getBucket(), params.getPath(), client, null));
+    }
+
+    AmazonS3 newS3Client(final DecryptFilterPlugin.AWSParams params)
+    {
+        return S3KeyFile.newClient(params);
+    }
+
+    /**
+     * Retrieves the key file without the local cache.
+     */
+    Map<String, Object> retrieveKey(final String bucket, final String path, final AmazonS3 client)
+    {
+        return parseKeyFile(S3KeyFile.retrieve(bucket, path, client, null).getContent());
+    }
+
+    private static Map<String, Object> parseAndCache(final S3KeyCache cache, final S3KeyFile retrieved)
+    {
+        // Parsed first so that a malformed key file is not cached.
+        final Map<String, Object> keys = parseKeyFile(retrieved.getContent());
+        cache.write(retrieved.getContent(), retrieved.getEtag());
+        return keys;
+    }
+
+    static Map<String, Object> parseKeyFile(final byte[] content)
+    {
+        final Object loaded = yaml.load(new ByteArrayInputStream(content));
+        if (loaded == null) {
+            return Collections.emptyMap();
+        }
+        if (!(loaded instanceof Map)) {
+            throw new ConfigException("S3 key file content is unexpected format");
+        }
+        return checkKeyFile((Map<?, ?>) loaded);
+    }
+
+    /**
+     * Checks the types of the entries which are resolved into the spec. The entries of the keyring are checked
+     * when it is resolved.
+     */
+    static Map<String, Object> checkKeyFile(final Map<?, ?> loaded)
+    {
+        final Map<String, Object> keys = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : loaded.entrySet()) {
+            keys.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        for (String name : STRING_ENTRIES) {
+            final Object value = keys.get(name);
+            if (value != null && !(value instanceof String)) {
+                throw new ConfigException(String.format("Field '%s' in key file must be a string", name));
+            }
+        }
+        if (keys.get("keyring") != null && !(keys.get("keyring") instanceof Map)) {
+            throw new ConfigException("S3 key file content is unexpected format");
+        }
+        return keys;
+    }
+}
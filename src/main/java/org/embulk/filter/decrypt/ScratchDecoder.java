@@ -0,0 +1,248 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.DataException;
+
+import java.util.Arrays;
+
+/**
+ * Decodes base64 or hex strings into a reusable scratch buffer which grows as needed.
+ *
+ * <p>It accepts exactly what {@link DecryptFilterPlugin.Encoder#decode(String)} accepts. Invalid input is
+ * handed over to {@link DecryptFilterPlugin.Encoder#decode(String)} so that it fails with the same exception.
+ *
+ * <p>A large value may be decoded in chunks by {@link #decodeChunk(String, int, int)}, so that the buffer needs to hold
+ * only one chunk. The buffer returned by {@link #buffer()} is overwritten by the next decode.
+ */
+final class ScratchDecoder
+{
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final byte[] BASE64_TABLE = table("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+    private static final byte[] HEX_TABLE = table("0123456789ABCDEF");
+
+    private final DecryptFilterPlugin.Encoder encoder;
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    ScratchDecoder(DecryptFilterPlugin.Encoder encoder)
+    {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Decodes {@code s}, and returns the number of decoded bytes at the beginning of {@link #buffer()}.
+     */
+    int decode(String s)
+    {
+        final int decoded = decode(s, 0, end(s));
+        if (decoded < 0) {
+            // Throws the same exception as before for invalid input.
+            byte[] fallback = encoder.decode(s);
+            ensureCapacity(fallback.length);
+            System.arraycopy(fallback, 0, buffer, 0, fallback.length);
+            length = fallback.length;
+        }
+        else {
+            length = decoded;
+        }
+        return length;
+    }
+
+    /**
+     * Decodes the characters of {@code s} from {@code start} to {@code end} into the beginning of {@link #buffer()},
+     * as one chunk of a value decoded by several calls, and returns the number of decoded bytes.
+     *
+     * <p>{@code start} must be a multiple of 4 characters for base64 and of 2 for hex, and so must {@code end} unless
+     * it is {@link #end(String)}. Invalid input fails with the same exception as {@link #decode(String)} of the whole value.
+     */
+    int decodeChunk(String s, int start, int end)
+    {
+        final int decoded = decode(s, start, end);
+        if (decoded < 0) {
+            encoder.decode(s);
+            // this must not happen because both accept the same input
+            throw new DataException(String.format("Encrypted value is not valid %s", encoder));
+        }
+        length = decoded;
+        return length;
+    }
+
+    /**
+     * Returns the end of the characters of {@code s} to decode, which excludes the trailing padding of base64.
+     */
+    int end(String s)
+    {
+        int n = s.length();
+        if (encoder == DecryptFilterPlugin.Encoder.BASE64) {
+            // Trailing padding is optional, and as many padding characters as given are accepted.
+            while (n > 0 && s.charAt(n - 1) == '=') {
+                n--;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of bytes which {@code s} decodes to, or -1 if {@link #decode(String)} would fail,
+     * without decoding it. It only scans the characters, so it is cheaper than failing to decode.
+     */
+    int validLength(String s)
+    {
+        final int end = end(s);
+        final byte[] table;
+        if (encoder == DecryptFilterPlugin.Encoder.HEX) {
+            if ((end & 1) != 0) {
+                return -1;
+            }
+            table = HEX_TABLE;
+        }
+        else {
+            if ((end & 3) == 1) {
+                return -1;
+            }
+            table = BASE64_TABLE;
+        }
+        for (int i = 0; i < end; i++) {
+            if (lookup(table, s.charAt(i)) < 0) {
+                return -1;
+            }
+        }
+        return decodedLength(end);
+    }
+
+    byte[] buffer()
+    {
+        return buffer;
+    }
+
+    int length()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the number of bytes decoded from {@code end} characters, as {@link #end(String)} returns.
+     */
+    int decodedLength(int end)
+    {
+        return encoder == DecryptFilterPlugin.Encoder.HEX ? end >>> 1 : (int) (((long) end * 6) >>> 3);
+    }
+
+    private int decode(String s, int start, int end)
+    {
+        switch (encoder) {
+            case BASE64:
+                return decodeBase64(s, start, end);
+            case HEX:
+                return decodeHex(s, start, end);
+            default:
+                return -1;
+        }
+    }
+
+    private int decodeBase64(String s, int start, int end)
+    {
+        final int n = end - start;
+        final int remainder = n & 3;
+        if (remainder == 1) {
+            return -1;
+        }
+
+        final byte[] out = ensureCapacity((int) (((long) n * 6) >>> 3));
+        final int full = end - remainder;
+        int o = 0;
+        int i = start;
+        for (; i < full; i += 4) {
+            final int a = lookup(BASE64_TABLE, s.charAt(i));
+            final int b = lookup(BASE64_TABLE, s.charAt(i + 1));
+            final int c = lookup(BASE64_TABLE, s.charAt(i + 2));
+            final int d = lookup(BASE64_TABLE, s.charAt(i + 3));
+            if ((a | b | c | d) < 0) {
+                return -1;
+            }
+            final int bits = (a << 18) | (b << 12) | (c << 6) | d;
+            out[o++] = (byte) (bits >> 16);
+            out[o++] = (byte) (bits >> 8);
+            out[o++] = (byte) bits;
+        }
+        if (remainder == 2) {
+            final int a = lookup(BASE64_TABLE, s.charAt(i));
+            final int b = lookup(BASE64_TABLE, s.charAt(i + 1));
+            if ((a | b) < 0) {
+                return -1;
+            }
+            out[o++] = (byte) ((a << 2) | (b >> 4));
+        }
+        else if (remainder == 3) {
+            final int a = lookup(BASE64_TABLE, s.charAt(i));
+            final int b = lookup(BASE64_TABLE, s.charAt(i + 1));
+            final int c = lookup(BASE64_TABLE, s.charAt(i + 2));
+            if ((a | b | c) < 0) {
+                return -1;
+            }
+            final int bits = (a << 12) | (b << 6) | c;
+            out[o++] = (byte) (bits >> 10);
+            out[o++] = (byte) (bits >> 2);
+        }
+        return o;
+    }
+
+    private int decodeHex(String s, int start, int end)
+    {
+        final int n = end - start;
+        if ((n & 1) != 0) {
+            return -1;
+        }
+
+        final byte[] out = ensureCapacity(n >>> 1);
+        int o = 0;
+        for (int i = start; i < end; i += 2) {
+            final int hi = lookup(HEX_TABLE, s.charAt(i));
+            final int lo = lookup(HEX_TABLE, s.charAt(i + 1));
+            if ((hi | lo) < 0) {
+                return -1;
+            }
+            out[o++] = (byte) ((hi << 4) | lo);
+        }
+        return o;
+    }
+
+    private byte[] ensureCapacity(int required)
+    {
+        if (buffer.length < required) {
+            buffer = new byte[Math.max(required, buffer.length * 2)];
+        }
+        return buffer;
+    }
+
+    private static int lookup(byte[] table, char ch)
+    {
+        return ch < table.length ? table[ch] : -1;
+    }
+
+    private static byte[] table(String alphabet)
+    {
+        byte[] table = new byte[128];
+        Arrays.fill(table, (byte) -1);
+        for (int i = 0; i < alphabet.length(); i++) {
+            table[alphabet.charAt(i)] = (byte) i;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.msgpack.value.Value;
+
+import java.util.Arrays;
+
+/**
+ * Holds the decrypted strings and JSON values of the current record until it is known whether the record is kept,
+ * for {@code on_error: skip}.
+ *
+ * <p>A {@link PageBuilder} adds every string and JSON value set to it to the page, where it counts toward the size at which
+ * the page is flushed, even if the record is never added. Other values are written in place, and the next record overwrites
+ * them, so they are set directly.
+ */
+final class StagedRow
+{
+    private final Column[] columns;
+    private final String[] strings;
+    private final Value[] jsons;
+    private int count;
+
+    /**
+     * @param capacity the number of columns which can be staged for a record
+     */
+    StagedRow(int capacity)
+    {
+        this.columns = new Column[capacity];
+        this.strings = new String[capacity];
+        this.jsons = new Value[capacity];
+    }
+
+    /**
+     * Sets {@code value} to {@code column} of {@code pageBuilder}, or stages it in {@code staged} if not null.
+     */
+    static void setString(StagedRow staged, PageBuilder pageBuilder, Column column, String value)
+    {
+        if (staged == null) {
+            pageBuilder.setString(column, value);
+        }
+        else {
+            staged.columns[staged.count] = column;
+            staged.strings[staged.count++] = value;
+        }
+    }
+
+    /**
+     * Sets {@code value} to {@code column} of {@code pageBuilder}, or stages it in {@code staged} if not null.
+     */
+    static void setJson(StagedRow staged, PageBuilder pageBuilder, Column column, Value value)
+    {
+        if (staged == null) {
+            pageBuilder.setJson(column, value);
+        }
+        else {
+            staged.columns[staged.count] = column;
+            staged.jsons[staged.count++] = value;
+        }
+    }
+
+    /**
+     * Sets the staged values to {@code pageBuilder}, and starts the next record.
+     */
+    void writeTo(PageBuilder pageBuilder)
+    {
+        for (int i = 0; i < count; i++) {
+            if (jsons[i] != null) {
+                pageBuilder.setJson(columns[i], jsons[i]);
+            }
+            else {
+                pageBuilder.setString(columns[i], strings[i]);
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Drops the staged values, and starts the next record.
+     */
+    void clear()
+    {
+        // Releases the values, which may be large, instead of holding them until they are overwritten.
+        Arrays.fill(strings, 0, count, null);
+        Arrays.fill(jsons, 0, count, null);
+        count = 0;
+    }
+}
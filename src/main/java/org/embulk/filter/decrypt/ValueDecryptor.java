@@ -0,0 +1,840 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.DataException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Decodes and decrypts encrypted string values of a task.
+ *
+ * <p>Decoded ciphertext, plaintext and decoded characters are kept in buffers reused across values,
+ * so decrypting a value allocates only the resulting {@link String}. {@link #decryptToPlaintext(String)}
+ * returns the plaintext bytes without a String, for values which are parsed into another type.
+ * With a {@link PlaintextDecompressor}, the plaintext is decompressed before it is returned or decoded.
+ *
+ * <p>A value longer than the streaming threshold is decoded and decrypted in chunks with {@link Cipher#update},
+ * and its plaintext is decoded as UTF-8 chunk by chunk, so that neither its whole ciphertext nor its whole plaintext
+ * bytes are held in a buffer. Only the chars of the resulting String are.
+ *
+ * <p>With a keyring, each value is headed by a key id, and decrypted by the decryptor of that key.
+ * With wrapped data keys, each value is headed by its wrapped data key, and decrypted by the decryptor of
+ * the unwrapped key from a {@link DataKeyCache}.
+ *
+ * <p>An instance holds a {@link Cipher} and the buffers, so it must be used by one thread at a time.
+ */
+class ValueDecryptor
+{
+    private static final int INITIAL_CAPACITY = 256;
+    // Encoded characters of a chunk, a multiple of both 4 characters of base64 and 2 of hex.
+    private static final int CHUNK_LENGTH = 8192;
+    // One value of this many is timed, and counted this many times. System.nanoTime costs as much as decrypting a short value.
+    private static final int TIMING_SAMPLE = 16;
+
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final DecryptFilterPlugin.Algorithm algorithm;
+    private final int nonceLength;
+    // The nonce or the IV which the cipher is initialized with.
+    private final byte[] currentNonce;
+    private final DecryptFilterPlugin.Encoder encoder;
+    private final ScratchDecoder decoder;
+    private final ScratchDecoder ivDecoder;
+    // Decryptors by key id, or null without a keyring.
+    private final IntObjectMap<ValueDecryptor> keyring;
+    private final int keyIdLength;
+    // Decryptors by wrapped data key, or null without envelope encryption.
+    private final DataKeyCache<ValueDecryptor> dataKeys;
+    // A header which is skipped if a value starts with it, or null.
+    private final byte[] optionalHeader;
+
+    // Replaces malformed input in the same way as new String(byte[], Charset).
+    private final CharsetDecoder utf8 = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final Plaintext plaintext;
+    private CharBuffer chars;
+    // Decompresses the plaintexts of this decryptor, including those decrypted by the decryptors of its keys, or null.
+    private PlaintextDecompressor decompressor;
+    private Plaintext decompressed;
+    // Values longer than this are decrypted in chunks.
+    private int streamingThreshold = Integer.MAX_VALUE;
+    private Chunks chunks;
+
+    // The counters of the column of the values, or null.
+    private DecryptionMetrics.Column metrics;
+    private int valueCount;
+    private boolean timing;
+    private long startNanos;
+    private long decodedNanos;
+    private int ciphertextLength;
+
+    /**
+     * A decrypted value in a buffer of the decryptor which has decrypted it. It is valid only until that decryptor
+     * decrypts the next value.
+     */
+    static final class Plaintext
+    {
+        private byte[] bytes;
+        private ByteBuffer buffer;
+        private int length;
+
+        private Plaintext(int capacity)
+        {
+            this.bytes = new byte[capacity];
+            this.buffer = ByteBuffer.wrap(bytes);
+        }
+
+        byte[] bytes()
+        {
+            return bytes;
+        }
+
+        private void set(byte[] bytes, int length)
+        {
+            if (this.bytes != bytes) {
+                this.bytes = bytes;
+                this.buffer = ByteBuffer.wrap(bytes);
+            }
+            this.length = length;
+        }
+
+        int length()
+        {
+            return length;
+        }
+
+        private void ensureCapacity(int required)
+        {
+            if (bytes.length < required) {
+                bytes = new byte[Math.max(required, bytes.length * 2)];
+                buffer = ByteBuffer.wrap(bytes);
+            }
+        }
+
+        private void growKeepingBytes(int required)
+        {
+            if (bytes.length < required) {
+                bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length * 2));
+                buffer = ByteBuffer.wrap(bytes);
+            }
+        }
+    }
+
+    /**
+     * A value being decoded and decrypted chunk by chunk. The decryptor of its key reads the decoded bytes from here,
+     * and writes the decrypted bytes here, to be decoded into {@code chars} or appended to {@code plaintext}.
+     */
+    private final class Chunks
+    {
+        private String encoded;
+        private int next;
+        private int end;
+        // The decoded bytes of the current chunk not read yet, in decoder.buffer().
+        private int offset;
+        private int remaining;
+        private byte[] header = new byte[32];
+
+        private boolean toChars;
+        // Decrypted bytes of the current chunk, headed by the bytes of an incomplete UTF-8 character of the previous one.
+        private byte[] output = new byte[CHUNK_LENGTH];
+        private ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+        private int carry;
+        private long written;
+
+        private void start(String encoded, boolean toChars)
+        {
+            this.encoded = encoded;
+            this.next = 0;
+            this.end = decoder.end(encoded);
+            this.remaining = 0;
+            this.toChars = toChars;
+            this.carry = 0;
+            this.written = 0;
+
+            // The decoded length is the upper bound of the plaintext length, which is the upper bound of its UTF-8 chars.
+            // Some more bytes are reserved for getOutputSize, which may count a block more.
+            final int maxLength = decoder.decodedLength(end) + 32;
+            if (toChars) {
+                if (chars.capacity() < maxLength) {
+                    chars = CharBuffer.allocate(maxLength);
+                }
+                chars.clear();
+                utf8.reset();
+            }
+            else {
+                plaintext.ensureCapacity(maxLength);
+                plaintext.length = 0;
+            }
+        }
+
+        // Decodes the next chunk if all bytes of the current one have been read. Returns false at the end of the value.
+        private boolean fill()
+        {
+            while (remaining == 0 && next < end) {
+                final int chunkEnd = Math.min(end, next + CHUNK_LENGTH);
+                remaining = decoder.decodeChunk(encoded, next, chunkEnd);
+                offset = 0;
+                next = chunkEnd;
+            }
+            return remaining > 0;
+        }
+
+        private byte[] buffer()
+        {
+            return decoder.buffer();
+        }
+
+        // Reads up to length bytes into header, and returns the number of bytes read, which is less only at the end of the value.
+        private int readHeader(int length)
+        {
+            if (header.length < length) {
+                header = new byte[length];
+            }
+            int n = 0;
+            while (n < length && fill()) {
+                final int count = Math.min(length - n, remaining);
+                System.arraycopy(decoder.buffer(), offset, header, n, count);
+                offset += count;
+                remaining -= count;
+                n += count;
+            }
+            return n;
+        }
+
+        // Returns the array which up to length decrypted bytes are written into at position().
+        private byte[] reserve(int length)
+        {
+            if (!toChars) {
+                plaintext.growKeepingBytes(plaintext.length + length);
+                return plaintext.bytes;
+            }
+            if (output.length < carry + length) {
+                output = Arrays.copyOf(output, carry + length);
+                outputBuffer = ByteBuffer.wrap(output);
+            }
+            return output;
+        }
+
+        private int position()
+        {
+            return toChars ? carry : plaintext.length;
+        }
+
+        private void written(int length, boolean endOfInput)
+        {
+            written += length;
+            if (!toChars) {
+                plaintext.length += length;
+                return;
+            }
+            outputBuffer.clear();
+            outputBuffer.limit(carry + length);
+            try {
+                CoderResult result = utf8.decode(outputBuffer, chars, endOfInput);
+                if (!result.isUnderflow()) {
+                    result.throwException();
+                }
+                if (endOfInput) {
+                    result = utf8.flush(chars);
+                    if (!result.isUnderflow()) {
+                        result.throwException();
+                    }
+                }
+            }
+            catch (CharacterCodingException ex) {
+                // this must not happen because malformed input is replaced
+                throw new DataException(ex);
+            }
+            carry = outputBuffer.remaining();
+            System.arraycopy(output, outputBuffer.position(), output, 0, carry);
+        }
+    }
+
+    /**
+     * Creates a decryptor for values without a nonce prefix, with {@code cipher} initialized for all values.
+     */
+    ValueDecryptor(Cipher cipher, DecryptFilterPlugin.Encoder encoder)
+    {
+        this(cipher, null, null, 0, encoder);
+    }
+
+    /**
+     * Creates a decryptor for values of {@code algorithm}. If values are prefixed with a {@code nonceLength}-byte
+     * nonce or IV, {@code cipher} is initialized again with {@code key} for each value. The same key object is reused
+     * so that the provider keeps its expanded key schedule instead of deriving it for every value. {@code cipher}
+     * may be initialized with any nonce, such as the placeholder of getCipher, or the nonce of the last value
+     * of an earlier task when it is reused from {@link CipherCache}.
+     */
+    ValueDecryptor(Cipher cipher, SecretKeySpec key, DecryptFilterPlugin.Algorithm algorithm, int nonceLength,
+                   DecryptFilterPlugin.Encoder encoder)
+    {
+        this(cipher, key, algorithm, nonceLength, null, 0, null, null, encoder);
+    }
+
+    /**
+     * Creates a decryptor for values of {@code algorithm}, each of which may start with {@code optionalHeader}.
+     * The header is skipped if present, and the rest is decrypted with {@code cipher} initialized for all values.
+     */
+    ValueDecryptor(Cipher cipher, SecretKeySpec key, DecryptFilterPlugin.Algorithm algorithm, byte[] optionalHeader,
+                   DecryptFilterPlugin.Encoder encoder)
+    {
+        this(cipher, key, algorithm, 0, null, 0, null, optionalHeader, encoder);
+    }
+
+    /**
+     * Creates a decryptor for values headed by a {@code keyIdLength}-byte big-endian key id. Each value is decrypted
+     * by the decryptor of its key in {@code keyring}, whose Cipher is initialized once for the task.
+     */
+    ValueDecryptor(IntObjectMap<ValueDecryptor> keyring, int keyIdLength, DecryptFilterPlugin.Encoder encoder)
+    {
+        this(null, null, null, 0, keyring, keyIdLength, null, null, encoder);
+    }
+
+    /**
+     * Creates a decryptor for values headed by a wrapped data key. Each value is decrypted by the decryptor
+     * of its data key in {@code dataKeys}, so a data key is unwrapped only when it is not cached.
+     */
+    ValueDecryptor(DataKeyCache<ValueDecryptor> dataKeys, DecryptFilterPlugin.Encoder encoder)
+    {
+        this(null, null, null, 0, null, 0, dataKeys, null, encoder);
+    }
+
+    private ValueDecryptor(Cipher cipher, SecretKeySpec key, DecryptFilterPlugin.Algorithm algorithm, int nonceLength,
+                           IntObjectMap<ValueDecryptor> keyring, int keyIdLength, DataKeyCache<ValueDecryptor> dataKeys,
+                           byte[] optionalHeader, DecryptFilterPlugin.Encoder encoder)
+    {
+        this.cipher = cipher;
+        this.key = key;
+        this.algorithm = algorithm;
+        this.nonceLength = nonceLength;
+        this.currentNonce = new byte[algorithm != null ? Math.max(algorithm.getNonceLength(), algorithm.getIvLength()) : 0];
+        final byte[] initialNonce = cipher != null ? cipher.getIV() : null;
+        if (initialNonce != null && initialNonce.length == currentNonce.length) {
+            System.arraycopy(initialNonce, 0, currentNonce, 0, currentNonce.length);
+        }
+        this.keyring = keyring;
+        this.keyIdLength = keyIdLength;
+        this.dataKeys = dataKeys;
+        this.optionalHeader = optionalHeader;
+        this.encoder = encoder;
+        this.decoder = new ScratchDecoder(encoder);
+        this.ivDecoder = new ScratchDecoder(encoder);
+        this.plaintext = new Plaintext(INITIAL_CAPACITY);
+        this.chars = CharBuffer.allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Sets the decompressor of the plaintexts. Must be called before the first value is decrypted.
+     */
+    void setDecompressor(PlaintextDecompressor decompressor)
+    {
+        this.decompressor = decompressor;
+        this.decompressed = new Plaintext(0);
+    }
+
+    /**
+     * Sets the counters which the next values are counted in. A decryptor shared by several columns is given
+     * the counters of the column before each value.
+     */
+    void setMetrics(DecryptionMetrics.Column metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the length of encoded values above which they are decrypted in chunks.
+     */
+    void setStreamingThreshold(int streamingThreshold)
+    {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    /**
+     * Checks whether {@code encoded}, with the initialization vector {@code encodedIv} if it is not null, can be decrypted
+     * without decoding or decrypting it: whether its characters are valid, and whether its length is possible for
+     * the algorithm. Returns the reason why it can't be decrypted, or null if it may be.
+     *
+     * <p>A value which passes may still fail to decrypt, for example with a wrong padding, an unknown key id or a broken tag.
+     */
+    String checkStructure(String encoded, String encodedIv)
+    {
+        final int length = decoder.validLength(encoded);
+        if (length < 0) {
+            return String.format("Encrypted value is not valid %s", encoder);
+        }
+        int ivLength = -1;
+        if (encodedIv != null) {
+            ivLength = ivDecoder.validLength(encodedIv);
+            if (ivLength < 0) {
+                return String.format("Initialization vector is not valid %s", encoder);
+            }
+        }
+        return checkLength(length, ivLength);
+    }
+
+    private String checkLength(int length, int ivLength)
+    {
+        if (keyring != null) {
+            if (length < keyIdLength) {
+                return String.format("Encrypted value is shorter than its %d-byte key id", keyIdLength);
+            }
+            // All keys of a keyring decrypt values of the same algorithm.
+            return keyring.anyValue().checkLength(length - keyIdLength, ivLength);
+        }
+        if (dataKeys != null) {
+            // The algorithm of a data key is known only after it is unwrapped.
+            if (length < dataKeys.getWrappedKeyLength()) {
+                return String.format("Encrypted value is shorter than its %d-byte key header", dataKeys.getWrappedKeyLength());
+            }
+            return null;
+        }
+        if (algorithm == null) {
+            return null;
+        }
+        if (ivLength >= 0) {
+            if (ivLength != currentNonce.length) {
+                return String.format("Initialization vector must be %d bytes, but was %d bytes", currentNonce.length, ivLength);
+            }
+        }
+        else if (length < nonceLength) {
+            return String.format("Encrypted value is shorter than its %d-byte nonce", nonceLength);
+        }
+        else {
+            length -= nonceLength;
+        }
+        if (isCiphertextLength(length) || (optionalHeader != null && isCiphertextLength(length - optionalHeader.length))) {
+            return null;
+        }
+        return String.format("Encrypted value of %d bytes can't be a ciphertext of %s", length, algorithm);
+    }
+
+    private boolean isCiphertextLength(int length)
+    {
+        return length >= algorithm.getMinCiphertextLength() && length % algorithm.getCiphertextBlockLength() == 0;
+    }
+
+    String decrypt(String encoded)
+    {
+        return decryptToString(encoded, null);
+    }
+
+    /**
+     * Decrypts {@code encoded} with the initialization vector {@code encodedIv}, which is encoded in the same way.
+     * The cipher is initialized again only for the IV, with the same key object and Cipher instance.
+     */
+    String decrypt(String encoded, String encodedIv)
+    {
+        return decryptToString(encoded, encodedIv);
+    }
+
+    Plaintext decryptToPlaintext(String encoded)
+    {
+        return decryptToBytes(encoded, null);
+    }
+
+    Plaintext decryptToPlaintext(String encoded, String encodedIv)
+    {
+        return decryptToBytes(encoded, encodedIv);
+    }
+
+    private String decryptToString(String encoded, String encodedIv)
+    {
+        startValue();
+        final String decrypted;
+        final long plaintextLength;
+        if (encoded.length() > streamingThreshold && decompressor == null) {
+            decryptInChunks(encoded, encodedIv, true);
+            decrypted = new String(chars.array(), 0, chars.position());
+            plaintextLength = chunks.written;
+        }
+        else {
+            final Plaintext plaintext = decryptPlaintext(encoded, encodedIv);
+            decrypted = decodeUtf8(plaintext);
+            plaintextLength = plaintext.length;
+        }
+        endValue(plaintextLength);
+        return decrypted;
+    }
+
+    private Plaintext decryptToBytes(String encoded, String encodedIv)
+    {
+        startValue();
+        final Plaintext decrypted = decryptPlaintext(encoded, encodedIv);
+        endValue(decrypted.length);
+        return decrypted;
+    }
+
+    private Plaintext decryptPlaintext(String encoded, String encodedIv)
+    {
+        if (encoded.length() > streamingThreshold) {
+            decryptInChunks(encoded, encodedIv, false);
+            return decompress(plaintext);
+        }
+        return decompress(decryptWhole(encoded, encodedIv));
+    }
+
+    /**
+     * Decodes the whole value, and decrypts it with the initialization vector {@code encodedIv} if it is not null.
+     */
+    private Plaintext decryptWhole(String encoded, String encodedIv)
+    {
+        final int ivLength = encodedIv != null ? ivDecoder.decode(encodedIv) : -1;
+        final int decodedLength = decoder.decode(encoded);
+        decoded(decodedLength);
+        ValueDecryptor decryptor = this;
+        int offset = 0;
+        if (keyring != null) {
+            decryptor = decryptorOf(decoder.buffer(), decodedLength);
+            offset = keyIdLength;
+        }
+        if (ivLength >= 0) {
+            return decryptor.decryptBytes(decoder.buffer(), offset, decodedLength - offset, ivDecoder.buffer(), ivLength);
+        }
+        return decryptor.decryptBytes(decoder.buffer(), offset, decodedLength - offset);
+    }
+
+    private void startValue()
+    {
+        timing = metrics != null && (++valueCount & (TIMING_SAMPLE - 1)) == 0;
+        if (timing) {
+            startNanos = System.nanoTime();
+            decodedNanos = startNanos;
+        }
+    }
+
+    private void decoded(int length)
+    {
+        ciphertextLength = length;
+        if (timing) {
+            decodedNanos = System.nanoTime();
+        }
+    }
+
+    private void endValue(long plaintextLength)
+    {
+        final DecryptionMetrics.Column metrics = this.metrics;
+        if (metrics == null) {
+            return;
+        }
+        metrics.values++;
+        metrics.ciphertextBytes += ciphertextLength;
+        metrics.plaintextBytes += plaintextLength;
+        if (timing) {
+            final long endNanos = System.nanoTime();
+            metrics.decodeNanos += (decodedNanos - startNanos) * TIMING_SAMPLE;
+            metrics.decryptNanos += (endNanos - decodedNanos) * TIMING_SAMPLE;
+        }
+    }
+
+    private Plaintext decompress(Plaintext compressed)
+    {
+        if (decompressor == null) {
+            return compressed;
+        }
+        int length = decompressor.decompress(compressed.bytes, compressed.length);
+        decompressed.set(decompressor.buffer(), length);
+        return decompressed;
+    }
+
+    private void decryptInChunks(String encoded, String encodedIv, boolean toChars)
+    {
+        final int ivLength = encodedIv != null ? ivDecoder.decode(encodedIv) : -1;
+        if (chunks == null) {
+            chunks = new Chunks();
+        }
+        chunks.start(encoded, toChars);
+        // Decoding is interleaved with decrypting, and timed as decrypting.
+        ciphertextLength = decoder.decodedLength(chunks.end);
+        ValueDecryptor decryptor = this;
+        if (keyring != null) {
+            decryptor = decryptorOf(chunks.header, chunks.readHeader(keyIdLength));
+        }
+        decryptor.decryptChunks(chunks, ivDecoder.buffer(), ivLength);
+    }
+
+    private ValueDecryptor decryptorOf(byte[] src, int length)
+    {
+        if (length < keyIdLength) {
+            throw new DataException(String.format("Encrypted value is shorter than its %d-byte key id", keyIdLength));
+        }
+        int keyId = 0;
+        for (int i = 0; i < keyIdLength; i++) {
+            keyId = (keyId << 8) | (src[i] & 0xff);
+        }
+        ValueDecryptor decryptor = keyring.get(keyId);
+        if (decryptor == null) {
+            throw new DataException(String.format("Key id %d is not in the keyring", keyId));
+        }
+        return decryptor;
+    }
+
+    private ValueDecryptor decryptorOfDataKey(byte[] src, int offset, int length)
+    {
+        if (length < dataKeys.getWrappedKeyLength()) {
+            throw new DataException(String.format("Encrypted value is shorter than its %d-byte key header", dataKeys.getWrappedKeyLength()));
+        }
+        return dataKeys.get(src, offset);
+    }
+
+    private Plaintext decryptBytes(byte[] src, int offset, int length)
+    {
+        if (dataKeys != null) {
+            final int wrappedLength = dataKeys.getWrappedKeyLength();
+            return decryptorOfDataKey(src, offset, length).decryptBytes(src, offset + wrappedLength, length - wrappedLength);
+        }
+        if (optionalHeader != null && startsWith(src, offset, length, optionalHeader)) {
+            offset += optionalHeader.length;
+            length -= optionalHeader.length;
+        }
+        if (nonceLength > 0) {
+            if (length < nonceLength) {
+                throw new DataException(String.format("Encrypted value is shorter than its %d-byte nonce", nonceLength));
+            }
+            setNonce(src, offset);
+            offset += nonceLength;
+            length -= nonceLength;
+        }
+        return doFinal(src, offset, length);
+    }
+
+    private Plaintext decryptBytes(byte[] src, int offset, int length, byte[] iv, int ivLength)
+    {
+        if (dataKeys != null) {
+            final int wrappedLength = dataKeys.getWrappedKeyLength();
+            return decryptorOfDataKey(src, offset, length).decryptBytes(src, offset + wrappedLength, length - wrappedLength, iv, ivLength);
+        }
+        if (ivLength != currentNonce.length) {
+            throw new DataException(String.format("Initialization vector must be %d bytes, but was %d bytes", currentNonce.length, ivLength));
+        }
+        setNonce(iv, 0);
+        return doFinal(src, offset, length);
+    }
+
+    /**
+     * Decrypts the rest of the value of {@code chunks}, as decryptBytes does for a whole value. The IV of
+     * {@code ivLength} bytes in {@code iv} is used if {@code ivLength} is not negative.
+     */
+    private void decryptChunks(Chunks chunks, byte[] iv, int ivLength)
+    {
+        if (dataKeys != null) {
+            decryptorOfDataKey(chunks.header, 0, chunks.readHeader(dataKeys.getWrappedKeyLength())).decryptChunks(chunks, iv, ivLength);
+            return;
+        }
+        boolean finished = false;
+        try {
+            if (ivLength >= 0) {
+                if (ivLength != currentNonce.length) {
+                    throw new DataException(String.format("Initialization vector must be %d bytes, but was %d bytes", currentNonce.length, ivLength));
+                }
+                setNonce(iv, 0);
+            }
+            else {
+                if (optionalHeader != null) {
+                    final int length = chunks.readHeader(optionalHeader.length);
+                    if (!startsWith(chunks.header, 0, length, optionalHeader)) {
+                        update(chunks, chunks.header, 0, length);
+                    }
+                }
+                if (nonceLength > 0) {
+                    if (chunks.readHeader(nonceLength) < nonceLength) {
+                        throw new DataException(String.format("Encrypted value is shorter than its %d-byte nonce", nonceLength));
+                    }
+                    setNonce(chunks.header, 0);
+                }
+            }
+
+            while (chunks.fill()) {
+                update(chunks, chunks.buffer(), chunks.offset, chunks.remaining);
+                chunks.remaining = 0;
+            }
+            final byte[] output = chunks.reserve(cipher.getOutputSize(0));
+            chunks.written(cipher.doFinal(output, chunks.position()), true);
+            finished = true;
+        }
+        catch (BadPaddingException ex) {
+            // this must not happen because PKCS5Padding is always enabled, and CTR has no padding to check,
+            // except for AEADBadTagException when an AEAD value fails authentication
+            throw new DataException(ex);
+        }
+        catch (IllegalBlockSizeException | ShortBufferException ex) {
+            // this must not happen because always doFinal is called, and the output is sized by getOutputSize,
+            // except for IllegalBlockSizeException of a CBC or ECB value whose length is not a multiple of the block
+            throw new DataException(ex);
+        }
+        finally {
+            // A cipher initialized once for all values may still hold bytes of a failed value, so it is initialized
+            // again. Others are initialized again by the next value.
+            if (!finished && ivLength < 0 && nonceLength == 0) {
+                resetCipher();
+            }
+        }
+    }
+
+    private void update(Chunks chunks, byte[] src, int offset, int length) throws ShortBufferException
+    {
+        final byte[] output = chunks.reserve(cipher.getOutputSize(length));
+        chunks.written(cipher.update(src, offset, length, output, chunks.position()), false);
+    }
+
+    // The next value may be decrypted after a failure with on_error. A cipher initialized once for all values is
+    // initialized again, since a provider may keep the state of the failed value. Others are initialized by the next value.
+    private void resetCipherAfterFailure()
+    {
+        if (key != null && nonceLength == 0) {
+            resetCipher();
+        }
+    }
+
+    private void resetCipher()
+    {
+        try {
+            final AlgorithmParameters parameters = cipher.getParameters();
+            if (parameters == null) {
+                cipher.init(Cipher.DECRYPT_MODE, key);
+            }
+            else {
+                cipher.init(Cipher.DECRYPT_MODE, key, parameters);
+            }
+        }
+        catch (InvalidKeyException | InvalidAlgorithmParameterException ex) {
+            // this must not happen because the cipher has been initialized with them
+            throw new DataException(ex);
+        }
+    }
+
+    private void setNonce(byte[] src, int offset)
+    {
+        // ChaCha20-Poly1305 rejects both reusing a nonce after doFinal and initializing with the key and nonce
+        // it is already initialized with. A value with the same nonce as the previous one, such as a duplicated
+        // record, goes through another nonce first.
+        if (nonceEquals(src, offset)) {
+            currentNonce[0] ^= 1;
+            initCipher();
+        }
+        System.arraycopy(src, offset, currentNonce, 0, currentNonce.length);
+        initCipher();
+    }
+
+    private Plaintext doFinal(byte[] src, int offset, int length)
+    {
+        try {
+            plaintext.ensureCapacity(cipher.getOutputSize(length));
+            plaintext.length = cipher.doFinal(src, offset, length, plaintext.bytes, 0);
+        }
+        catch (BadPaddingException ex) {
+            // this must not happen because PKCS5Padding is always enabled, and CTR has no padding to check,
+            // except for AEADBadTagException when an AEAD value fails authentication, or a value with a wrong key
+            resetCipherAfterFailure();
+            throw new DataException(ex);
+        }
+        catch (IllegalBlockSizeException ex) {
+            // this must not happen because always doFinal is called,
+            // except for a CBC or ECB value whose length is not a multiple of the block
+            resetCipherAfterFailure();
+            throw new DataException(ex);
+        }
+        catch (ShortBufferException ex) {
+            // this must not happen because the output buffer is sized by getOutputSize
+            throw new DataException(ex);
+        }
+        return plaintext;
+    }
+
+    private static boolean startsWith(byte[] src, int offset, int length, byte[] prefix)
+    {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (src[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nonceEquals(byte[] src, int offset)
+    {
+        for (int i = 0; i < currentNonce.length; i++) {
+            if (src[offset + i] != currentNonce[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void initCipher()
+    {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, algorithm.newParameterSpec(currentNonce, 0, currentNonce.length));
+        }
+        catch (InvalidKeyException | InvalidAlgorithmParameterException ex) {
+            // this must not happen because the key and the nonce length are already validated
+            throw new DataException(ex);
+        }
+    }
+
+    private String decodeUtf8(Plaintext decrypted)
+    {
+        // UTF-8 never decodes to more chars than bytes.
+        final int length = decrypted.length;
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        }
+        final ByteBuffer buffer = decrypted.buffer;
+        buffer.clear();
+        buffer.limit(length);
+        chars.clear();
+
+        utf8.reset();
+        try {
+            CoderResult result = utf8.decode(buffer, chars, true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            result = utf8.flush(chars);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+        }
+        catch (CharacterCodingException ex) {
+            // this must not happen because malformed input is replaced
+            throw new DataException(ex);
+        }
+        return new String(chars.array(), 0, chars.position());
+    }
+}
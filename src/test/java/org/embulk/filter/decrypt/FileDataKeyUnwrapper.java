@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Stands in for a key service in tests. Each line of the file is a wrapped data key and its data key, both in hex.
+ */
+class FileDataKeyUnwrapper
+        implements DataKeyUnwrapper
+{
+    private final int wrappedKeyLength;
+    private final Map<String, byte[]> dataKeys = new HashMap<>();
+    private final AtomicInteger unwraps = new AtomicInteger();
+
+    FileDataKeyUnwrapper(Path file, int wrappedKeyLength) throws IOException
+    {
+        this.wrappedKeyLength = wrappedKeyLength;
+        for (String line : Files.readAllLines(file, UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 2) {
+                dataKeys.put(fields[0].toUpperCase(), BaseEncoding.base16().decode(fields[1].toUpperCase()));
+            }
+        }
+    }
+
+    @Override
+    public int getWrappedKeyLength()
+    {
+        return wrappedKeyLength;
+    }
+
+    @Override
+    public byte[] unwrap(byte[] wrapped) throws GeneralSecurityException
+    {
+        unwraps.incrementAndGet();
+        byte[] dataKey = dataKeys.get(BaseEncoding.base16().encode(wrapped));
+        if (dataKey == null) {
+            throw new InvalidKeyException("Unknown wrapped data key");
+        }
+        return dataKey;
+    }
+
+    int getUnwraps()
+    {
+        return unwraps.get();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A local S3-compatible endpoint serving a single object with path-style GetObject and If-None-Match.
+ * Requests are not authenticated.
+ */
+class S3StubServer
+        implements AutoCloseable
+{
+    private final HttpServer server;
+    private final String objectPath;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private volatile byte[] content;
+    private volatile String etag;
+
+    S3StubServer(String bucket, String key, String content) throws IOException
+    {
+        this.objectPath = "/" + bucket + "/" + key;
+        setContent(content);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    String getEndpoint()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void setContent(String content)
+    {
+        this.content = content.getBytes(UTF_8);
+        // S3 returns the MD5 of a single-part object as its ETag, which the SDK validates.
+        try {
+            this.etag = "\"" + BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("MD5").digest(this.content)) + "\"";
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int getRequests()
+    {
+        return requests.get();
+    }
+
+    int getNotModified()
+    {
+        return notModified.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try {
+            requests.incrementAndGet();
+            if (!"GET".equals(exchange.getRequestMethod()) || !objectPath.equals(exchange.getRequestURI().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (etag.equals(ifNoneMatch)) {
+                notModified.incrementAndGet();
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            byte[] body = content;
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Content-Type", "application/x-yaml");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+    }
+}
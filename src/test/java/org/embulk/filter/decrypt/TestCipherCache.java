@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestCipherCache
+{
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final byte[] IV = BaseEncoding.base16().decode("C9DD4BB33B827EB1FBA1B16A0074D460");
+
+    @Test
+    public void testReleasedCipherIsReused() throws GeneralSecurityException
+    {
+        CipherCache cache = new CipherCache();
+        CipherCache.Lease lease = cache.newLease();
+        assertNull(lease.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV));
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        lease.add(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV, cipher);
+        lease.release();
+        assertEquals(1, cache.idleCount());
+
+        CipherCache.Lease next = cache.newLease();
+        assertSame(cipher, next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV));
+        assertEquals(1, next.getReused());
+        // Taken by the lease until it is released.
+        assertNull(next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV));
+        assertEquals(0, cache.idleCount());
+    }
+
+    @Test
+    public void testDiscardedCipherIsNotReused() throws GeneralSecurityException
+    {
+        CipherCache cache = new CipherCache();
+        CipherCache.Lease lease = cache.newLease();
+        lease.add(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV, Cipher.getInstance(TRANSFORMATION));
+        lease.discard();
+        lease.release();
+        assertEquals(0, cache.idleCount());
+    }
+
+    @Test
+    public void testCipherIsReusedOnlyForSameKeyAndIv() throws GeneralSecurityException
+    {
+        CipherCache cache = new CipherCache();
+        CipherCache.Lease lease = cache.newLease();
+        lease.add(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV, Cipher.getInstance(TRANSFORMATION));
+        lease.release();
+
+        CipherCache.Lease next = cache.newLease();
+        assertNull(next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(1), IV));
+        assertNull(next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), new byte[16]));
+        assertNull(next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), null));
+        assertNull(next.take(TRANSFORMATION, Cipher.ENCRYPT_MODE, key(0), IV));
+        assertNull(next.take("AES/CTR/NoPadding", Cipher.DECRYPT_MODE, key(0), IV));
+        assertNotNull(next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV.clone()));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedCiphersAreDropped() throws GeneralSecurityException
+    {
+        CipherCache cache = new CipherCache();
+        CipherCache.Lease lease = cache.newLease();
+        for (int i = 0; i < CipherCache.MAX_IDLE_CIPHERS + 10; i++) {
+            lease.add(TRANSFORMATION, Cipher.DECRYPT_MODE, key(i), IV, Cipher.getInstance(TRANSFORMATION));
+        }
+        lease.release();
+        assertEquals(CipherCache.MAX_IDLE_CIPHERS, cache.idleCount());
+
+        CipherCache.Lease next = cache.newLease();
+        assertNull(next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV));
+        assertNotNull(next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(CipherCache.MAX_IDLE_CIPHERS + 9), IV));
+    }
+
+    @Test
+    public void testClearedCacheDropsReleasedCiphers() throws GeneralSecurityException
+    {
+        CipherCache cache = new CipherCache();
+        CipherCache.Lease lease = cache.newLease();
+        lease.add(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV, Cipher.getInstance(TRANSFORMATION));
+        lease.release();
+        CipherCache.Lease running = cache.newLease();
+        running.add(TRANSFORMATION, Cipher.DECRYPT_MODE, key(1), IV, Cipher.getInstance(TRANSFORMATION));
+
+        cache.clear();
+        assertEquals(0, cache.idleCount());
+        running.release();
+        assertEquals(0, cache.idleCount());
+        assertNull(cache.newLease().take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(1), IV));
+    }
+
+    @Test
+    public void testCiphersAreSharedWithinScope() throws GeneralSecurityException
+    {
+        // Without a scope, nothing is kept.
+        CipherCache.Lease outside = CipherCache.lease();
+        outside.add(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV, Cipher.getInstance(TRANSFORMATION));
+        outside.release();
+        assertNull(CipherCache.lease().take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV));
+
+        CipherCache.Scope scope = CipherCache.openScope();
+        CipherCache.Scope other = CipherCache.openScope();
+        CipherCache.Lease lease = CipherCache.lease();
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        lease.add(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV, cipher);
+        lease.release();
+        scope.close();
+        scope.close();
+        // Kept while another scope is open.
+        CipherCache.Lease next = CipherCache.lease();
+        assertSame(cipher, next.take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV));
+        next.release();
+
+        other.close();
+        try (CipherCache.Scope reopened = CipherCache.openScope()) {
+            assertNull(CipherCache.lease().take(TRANSFORMATION, Cipher.DECRYPT_MODE, key(0), IV));
+        }
+    }
+
+    private static SecretKeySpec key(int id)
+    {
+        byte[] key = new byte[32];
+        key[0] = (byte) id;
+        return new SecretKeySpec(key, "AES");
+    }
+}
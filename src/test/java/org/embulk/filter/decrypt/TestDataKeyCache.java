@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import org.embulk.spi.DataException;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TestDataKeyCache
+{
+    // Wrapped keys are 2 bytes, and the data key is the wrapped key itself unless it starts with 0xFF.
+    private static class CountingUnwrapper
+            implements DataKeyUnwrapper
+    {
+        private int unwraps;
+
+        @Override
+        public int getWrappedKeyLength()
+        {
+            return 2;
+        }
+
+        @Override
+        public byte[] unwrap(byte[] wrapped) throws InvalidKeyException
+        {
+            unwraps++;
+            if (wrapped[0] == (byte) 0xff) {
+                throw new InvalidKeyException("Unknown wrapped data key");
+            }
+            return wrapped;
+        }
+    }
+
+    private final CountingUnwrapper unwrapper = new CountingUnwrapper();
+    private final AtomicLong nanos = new AtomicLong();
+
+    private DataKeyCache<String> newCache(int maxEntries, long ttlNanos, long maxUses)
+    {
+        return new DataKeyCache<>(unwrapper, dataKey -> BaseEncoding.base16().encode(dataKey), maxEntries, ttlNanos, maxUses, nanos::get);
+    }
+
+    @Test
+    public void testUnwrapsOncePerDistinctKey()
+    {
+        DataKeyCache<String> cache = newCache(10, 0, 0);
+        // The wrapped key is read at an offset of a larger value, as from a decoded value.
+        byte[] values = {0x01, 0x02, 0x03, 0x04, 0x01, 0x02};
+        String first = cache.get(values, 0);
+        assertEquals("0102", first);
+        assertEquals("0304", cache.get(values, 2));
+        assertSame(first, cache.get(values, 4));
+        assertSame(first, cache.get(new byte[] {0x01, 0x02}, 0));
+
+        assertEquals(2, unwrapper.unwraps);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testExpiresAfterTtl()
+    {
+        DataKeyCache<String> cache = newCache(10, 100, 0);
+        byte[] value = {0x01, 0x02};
+        cache.get(value, 0);
+        nanos.set(99);
+        cache.get(value, 0);
+        assertEquals(1, unwrapper.unwraps);
+        nanos.set(100);
+        cache.get(value, 0);
+        assertEquals(2, unwrapper.unwraps);
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void testExpiresAfterMaxUses()
+    {
+        DataKeyCache<String> cache = newCache(10, 0, 3);
+        byte[] value = {0x01, 0x02};
+        for (int i = 0; i < 7; i++) {
+            cache.get(value, 0);
+        }
+        assertEquals(3, unwrapper.unwraps);
+        assertEquals(2, cache.getExpirations());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted()
+    {
+        DataKeyCache<String> cache = newCache(2, 0, 0);
+        cache.get(new byte[] {0x01, 0x01}, 0);
+        cache.get(new byte[] {0x02, 0x02}, 0);
+        cache.get(new byte[] {0x01, 0x01}, 0);
+        cache.get(new byte[] {0x03, 0x03}, 0);
+        cache.get(new byte[] {0x01, 0x01}, 0);
+        assertEquals(3, unwrapper.unwraps);
+        cache.get(new byte[] {0x02, 0x02}, 0);
+        assertEquals(4, unwrapper.unwraps);
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void testUnwrapFailure()
+    {
+        DataKeyCache<String> cache = newCache(10, 0, 0);
+        try {
+            cache.get(new byte[] {(byte) 0xff, 0x00}, 0);
+            fail();
+        }
+        catch (DataException e) {
+            assertEquals("Wrapped data key can't be unwrapped", e.getMessage());
+        }
+    }
+}
@@ -18,17 +18,21 @@ package org.embulk.filter.decrypt;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.Region;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.datatype.guava.GuavaModule;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.io.BaseEncoding;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigLoader;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.ModelManager;
 import org.embulk.config.TaskSource;
+import org.embulk.spi.DataException;
 import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.Page;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.Schema;
 import org.embulk.spi.TestPageBuilderReader;
@@ -41,24 +45,52 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static org.embulk.spi.PageTestUtils.buildPage;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.isA;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
 import static org.junit.Assume.assumeThat;
+import static org.junit.Assume.assumeTrue;
 import static org.junit.internal.matchers.ThrowableCauseMatcher.hasCause;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 public class TestDecryptFilterPlugin
 {
@@ -75,6 +107,9 @@ public class TestDecryptFilterPlugin
     @Rule
     public ExpectedException thrown = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private DecryptFilterPlugin plugin;
 
     private Schema inputSchema;
@@ -138,7 +173,63 @@ public class TestDecryptFilterPlugin
 
     private void execute(String name)
     {
-        plugin.transaction(config(name), inputSchema, new Control());
+        execute(config(name));
+    }
+
+    private void execute(ConfigSource config)
+    {
+        plugin.transaction(config, inputSchema, new Control());
+    }
+
+    /**
+     * Makes the plugin, which must be a spy, use a spy of the S3 key provider, and returns the provider.
+     */
+    private S3KeyProvider spyS3KeyProvider()
+    {
+        S3KeyProvider keyProvider = spy(new S3KeyProvider());
+        doReturn(keyProvider).when(plugin).newKeyProvider(DecryptFilterPlugin.KeyType.S3);
+        return keyProvider;
+    }
+
+    private ConfigSource s3KeyCacheConfig(S3StubServer s3, File cacheDir, long ttl, boolean refresh)
+    {
+        ConfigSource config = config("s3_with_key_cache");
+        ConfigSource awsParams = config.getNested("aws_params")
+                .set("endpoint", s3.getEndpoint())
+                .set("key_cache_dir", cacheDir.getPath())
+                .set("key_cache_ttl", ttl)
+                .set("key_cache_refresh", refresh);
+        return config.setNested("aws_params", awsParams);
+    }
+
+    private static boolean isCipherAvailable(String transformation)
+    {
+        try {
+            Cipher.getInstance(transformation);
+            return true;
+        }
+        catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs {@code tasks} tasks one after another in a transaction, each of which decrypts {@code values}.
+     */
+    private List<DecryptPageOutput> runTasks(String name, int tasks, Object... values)
+    {
+        List<DecryptPageOutput> results = new ArrayList<>();
+        plugin.transaction(config(name), inputSchema, (taskSource, schema) -> {
+            outputSchema = schema;
+            for (int i = 0; i < tasks; i++) {
+                DecryptPageOutput task = (DecryptPageOutput) plugin.open(taskSource, inputSchema, schema, output);
+                results.add(task);
+                task.add(buildPage(runtime.getBufferAllocator(), inputSchema, values).get(0));
+                task.finish();
+                task.close();
+            }
+        });
+        return results;
     }
 
     private ArrayNode decrypt(Object... values) throws IOException
@@ -222,8 +313,8 @@ public class TestDecryptFilterPlugin
     @Test
     public void testDefaultInputEncodingShouldBeBase64()
     {
-        final DecryptFilterPlugin.PluginTask task =
-                DecryptFilterPlugin.CONFIG_MAPPER.map(config("default_input_encoding"), DecryptFilterPlugin.PluginTask.class);
+        final DecryptFilterPlugin.DecryptionSpec task =
+                DecryptFilterPlugin.CONFIG_MAPPER.map(config("default_input_encoding"), DecryptFilterPlugin.DecryptionSpec.class);
         assertEquals(task.getInputEncoding(), DecryptFilterPlugin.Encoder.BASE64);
     }
 
@@ -419,6 +510,640 @@ public class TestDecryptFilterPlugin
         assertEquals("Column should be decrypted", expected, arrayNode.get(0).get("should_be_decrypted").asText());
     }
 
+    @Test
+    public void testDecryptAES_256_GCMAlgorithmBase64InputEncoding() throws IOException
+    {
+        execute("algorithm_AES-256-GCM_input_encoding_Base64");
+        ArrayNode arrayNode = decrypt("AAECAwQFBgcICQoLyuZCYOEVgUmTS4i3W7ctQfLcMY/ZjA==");
+        assertEquals(arrayNode.size(), 1);
+        assertNotNull(arrayNode.get(0));
+        assertNotNull(arrayNode.get(0).get("should_be_decrypted"));
+        String expected = "secret";
+        assertEquals("Column should be decrypted", expected, arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptAES_256_GCMAlgorithmHexInputEncoding() throws IOException
+    {
+        execute("algorithm_AES-256-GCM_input_encoding_Hex");
+        ArrayNode arrayNode = decrypt("000102030405060708090A0BCAE64260E1158149934B88B75BB72D41F2DC318FD98C");
+        assertEquals(arrayNode.size(), 1);
+        assertNotNull(arrayNode.get(0));
+        assertNotNull(arrayNode.get(0).get("should_be_decrypted"));
+        String expected = "secret";
+        assertEquals("Column should be decrypted", expected, arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptAES_128_GCMAlgorithmBase64InputEncoding() throws IOException
+    {
+        execute("algorithm_AES-128-GCM_input_encoding_Base64");
+        // the same nonce twice in a row
+        ArrayNode arrayNode = decrypt("AAECAwQFBgcICQoLdt16mcVutVA3hBhHN/xVtY5Bp5JG1A==", "AAECAwQFBgcICQoLdt16mcVutVA3hBhHN/xVtY5Bp5JG1A==");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptChaCha20_Poly1305AlgorithmBase64InputEncoding() throws IOException
+    {
+        // ChaCha20-Poly1305 is available on Java 11 or later
+        assumeTrue(isCipherAvailable("ChaCha20-Poly1305"));
+        execute("algorithm_ChaCha20-Poly1305_input_encoding_Base64");
+        ArrayNode arrayNode = decrypt("AAECAwQFBgcICQoLdv9AgLIi/VWJvSqCgJg8dRZ1Ypm27A==", "AAECAwQFBgcICQoLdv9AgLIi/VWJvSqCgJg8dRZ1Ypm27A==");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testCipherIsReusedByLaterTaskOfTransaction() throws IOException
+    {
+        List<DecryptPageOutput> tasks = runTasks("algorithm_AES-256-CBC_input_encoding_Base64", 2, "gUzzC+nJSBLbPTAzJlbbMA==");
+        assertEquals(0, tasks.get(0).getCiphers().getReused());
+        assertEquals(1, tasks.get(1).getCiphers().getReused());
+        assertEquals(0, tasks.get(1).getCiphers().size());
+        ArrayNode arrayNode = MockPageOutputReader.readPageOutput(outputSchema, (TestPageBuilderReader.MockPageOutput) output);
+        assertEquals(2, arrayNode.size());
+        assertEquals("secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("secret", arrayNode.get(1).get("should_be_decrypted").asText());
+
+        // Dropped when the transaction has ended.
+        tasks = runTasks("algorithm_AES-256-CBC_input_encoding_Base64", 1, "gUzzC+nJSBLbPTAzJlbbMA==");
+        assertEquals(0, tasks.get(0).getCiphers().getReused());
+    }
+
+    @Test
+    public void testCipherIsReusedWithNonceOfPreviousTask() throws IOException
+    {
+        // ChaCha20-Poly1305 rejects initializing again with the nonce it is initialized with.
+        assumeTrue(isCipherAvailable("ChaCha20-Poly1305"));
+        List<DecryptPageOutput> tasks = runTasks("algorithm_ChaCha20-Poly1305_input_encoding_Base64", 2,
+                "AAECAwQFBgcICQoLdv9AgLIi/VWJvSqCgJg8dRZ1Ypm27A==");
+        assertEquals(1, tasks.get(1).getCiphers().getReused());
+        ArrayNode arrayNode = MockPageOutputReader.readPageOutput(outputSchema, (TestPageBuilderReader.MockPageOutput) output);
+        assertEquals("secret", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testTamperedGCMValue() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectCause(isA(AEADBadTagException.class));
+        execute("algorithm_AES-256-GCM_input_encoding_Base64");
+        decrypt("AAECAwQFBgcICQoLyuZCYOEVgUmTS4i3W7ctQfLcMY/ZjB==");
+    }
+
+    @Test
+    public void testGCMValueShorterThanNonce() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectMessage("Encrypted value is shorter than its 12-byte nonce");
+        execute("algorithm_AES-256-GCM_input_encoding_Base64");
+        decrypt("AAECAwQFBgc=");
+    }
+
+    @Test
+    public void testDecryptAES_256_CTRAlgorithmBase64InputEncoding() throws IOException
+    {
+        execute("algorithm_AES-256-CTR_input_encoding_Base64");
+        ArrayNode arrayNode = decrypt("cjVZqJwf");
+        assertEquals(arrayNode.size(), 1);
+        assertNotNull(arrayNode.get(0));
+        assertNotNull(arrayNode.get(0).get("should_be_decrypted"));
+        String expected = "secret";
+        assertEquals("Column should be decrypted", expected, arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptAES_128_CTRAlgorithmHexInputEncoding() throws IOException
+    {
+        execute("algorithm_AES-128-CTR_input_encoding_Hex");
+        ArrayNode arrayNode = decrypt("702582593EE9");
+        assertEquals(arrayNode.size(), 1);
+        assertNotNull(arrayNode.get(0));
+        assertNotNull(arrayNode.get(0).get("should_be_decrypted"));
+        String expected = "secret";
+        assertEquals("Column should be decrypted", expected, arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptAES_256_CTRWithIvPrefix() throws IOException
+    {
+        execute("iv_prefix_AES-256-CTR");
+        ArrayNode arrayNode = decrypt("AAECAwQFBgcICQoLDA0OD36uC8SuLw==", "AAECAwQFBgcICQoLDA0OD36uC8SuLw==");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptAES_256_CBCWithIvPrefix() throws IOException
+    {
+        execute("iv_prefix_AES-256-CBC");
+        ArrayNode arrayNode = decrypt("000102030405060708090A0B0C0D0E0F8FEB67C29BBF09617E561C27E9A99436");
+        assertEquals(arrayNode.size(), 1);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testIvPrefixWithoutIv()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Algorithm 'AES-256-ECB' doesn't use initialization vector. iv_prefix can't be enabled");
+        execute("iv_prefix_without_iv");
+    }
+
+    @Test
+    public void testDecryptWithIvColumn() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.STRING)
+                .add("iv", Types.STRING)
+                .build();
+        execute("iv_column");
+        ArrayNode arrayNode = decrypt(
+                "gUzzC+nJSBLbPTAzJlbbMA==", "yd1LszuCfrH7obFqAHTUYA==",
+                "j+tnwpu/CWF+Vhwn6amUNg==", "AAECAwQFBgcICQoLDA0ODw==");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+        assertEquals("IV column should be not decrypted", "yd1LszuCfrH7obFqAHTUYA==", arrayNode.get(0).get("iv").asText());
+    }
+
+    @Test
+    public void testDecryptWithIvColumnInParallel() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.STRING)
+                .add("iv", Types.STRING)
+                .build();
+        execute("iv_column_in_parallel");
+        Object[] values = new Object[200 * 2];
+        for (int i = 0; i < 200; i++) {
+            values[i * 2] = i % 2 == 0 ? "gUzzC+nJSBLbPTAzJlbbMA==" : "j+tnwpu/CWF+Vhwn6amUNg==";
+            values[i * 2 + 1] = i % 2 == 0 ? "yd1LszuCfrH7obFqAHTUYA==" : "AAECAwQFBgcICQoLDA0ODw==";
+        }
+        ArrayNode arrayNode = decrypt(values);
+        assertEquals(arrayNode.size(), 200);
+        for (int i = 0; i < 200; i++) {
+            assertEquals("Column should be decrypted", "secret", arrayNode.get(i).get("should_be_decrypted").asText());
+        }
+    }
+
+    @Test
+    public void testNullIvColumn() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.STRING)
+                .add("iv", Types.STRING)
+                .build();
+        thrown.expect(DataException.class);
+        thrown.expectMessage("Initialization vector in column 'iv' is null");
+        execute("iv_column");
+        decrypt("gUzzC+nJSBLbPTAzJlbbMA==", null);
+    }
+
+    @Test
+    public void testIvColumnWithCache()
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.STRING)
+                .add("iv", Types.STRING)
+                .build();
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("cache_size can't be used with iv_column");
+        execute("iv_column_with_cache");
+    }
+
+    @Test
+    public void testDecryptMultipleColumns() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("cbc", Types.STRING)
+                .add("ecb", Types.STRING)
+                .add("gcm", Types.STRING)
+                .add("plain", Types.STRING)
+                .build();
+        execute("multiple_columns");
+        ArrayNode arrayNode = decrypt(
+                "gUzzC+nJSBLbPTAzJlbbMA==", "08EE5C1F7A466C3E136D4569F4A88E8C", "AAECAwQFBgcICQoLyuZCYOEVgUmTS4i3W7ctQfLcMY/ZjA==", "don't decrypt me");
+        assertEquals(arrayNode.size(), 1);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("cbc").asText());
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("ecb").asText());
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("gcm").asText());
+        assertEquals("Column should be not decrypted", "don't decrypt me", arrayNode.get(0).get("plain").asText());
+    }
+
+    @Test
+    public void testDecryptMultipleColumnsInParallel() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("cbc", Types.STRING)
+                .add("ecb", Types.STRING)
+                .add("gcm", Types.STRING)
+                .build();
+        execute("multiple_columns_in_parallel");
+        Object[] values = new Object[100 * 3];
+        for (int i = 0; i < 100; i++) {
+            values[i * 3] = "gUzzC+nJSBLbPTAzJlbbMA==";
+            values[i * 3 + 1] = "08EE5C1F7A466C3E136D4569F4A88E8C";
+            values[i * 3 + 2] = "AAECAwQFBgcICQoLyuZCYOEVgUmTS4i3W7ctQfLcMY/ZjA==";
+        }
+        ArrayNode arrayNode = decrypt(values);
+        assertEquals(arrayNode.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Column should be decrypted", "secret", arrayNode.get(i).get("cbc").asText());
+            assertEquals("Column should be decrypted", "secret", arrayNode.get(i).get("ecb").asText());
+            assertEquals("Column should be decrypted", "secret", arrayNode.get(i).get("gcm").asText());
+        }
+    }
+
+    @Test
+    public void testDuplicatedColumns()
+    {
+        inputSchema = Schema.builder()
+                .add("cbc", Types.STRING)
+                .build();
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Column 'cbc' is decrypted by more than one entry of columns");
+        execute("duplicated_columns");
+    }
+
+    @Test
+    public void testColumnsWithColumnNames()
+    {
+        inputSchema = Schema.builder()
+                .add("cbc", Types.STRING)
+                .build();
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Field 'column_names' can't be set together with 'columns'");
+        execute("columns_with_column_names");
+    }
+
+    @Test
+    public void testDecryptWithKeyring() throws IOException
+    {
+        execute("keyring");
+        ArrayNode arrayNode = decrypt("AYFM8wvpyUgS2z0wMyZW2zA=", "AjYOq2c09aLx+e/FMVNhwwI=");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted with key 1", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted with key 2", "rotated", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testUnknownKeyId() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectMessage("Key id 3 is not in the keyring");
+        execute("keyring");
+        decrypt("A4FM8wvpyUgS2z0wMyZW2zA=");
+    }
+
+    @Test
+    public void testKeyringWithKeyHex()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Only one of key_hex and keyring can be set");
+        execute("keyring_with_key_hex");
+    }
+
+    @Test
+    public void testKeyringWithTooLargeKeyId()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Key id 256 in keyring doesn't fit in 1-byte key id");
+        execute("keyring_with_too_large_key_id");
+    }
+
+    @Test
+    public void testDecryptWithWrappedDataKey() throws IOException
+    {
+        execute("wrapped_data_key");
+        ArrayNode arrayNode = decrypt(
+                "hdwIVNSD7CBKCej2EEuHFLJoKuA3/o3Z1se+bk0MG8mNX/mwg0sDih2kvaQr7TJRRZq59dVVdBk=",
+                "hdwIVNSD7CBKCej2EEuHFLJoKuA3/o3Z1se+bk0MG8mNX/mwg0sDijYOq2c09aLx+e/FMVNhwwI=");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted with the unwrapped data key", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted with the unwrapped data key", "rotated", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testCorruptedWrappedDataKey() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectMessage("Wrapped data key can't be unwrapped");
+        execute("wrapped_data_key");
+        decrypt("htwIVNSD7CBKCej2EEuHFLJoKuA3/o3Z1se+bk0MG8mNX/mwg0sDih2kvaQr7TJRRZq59dVVdBk=");
+    }
+
+    @Test
+    public void testDataKeyIsUnwrappedOnce() throws IOException
+    {
+        Path keys = folder.newFile().toPath();
+        Files.write(keys, Collections.singletonList("00000001 0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF"));
+        FileDataKeyUnwrapper unwrapper = new FileDataKeyUnwrapper(keys, 4);
+
+        plugin = spy(plugin);
+        doReturn(unwrapper).when(plugin).newDataKeyUnwrapper(any(DecryptFilterPlugin.DecryptionSpec.class), any(String.class));
+        execute("wrapped_data_key");
+        ArrayNode arrayNode = decrypt("AAAAAR2kvaQr7TJRRZq59dVVdBk=", "AAAAAR2kvaQr7TJRRZq59dVVdBk=", "AAAAAR2kvaQr7TJRRZq59dVVdBk=");
+        assertEquals(arrayNode.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Column should be decrypted", "secret", arrayNode.get(i).get("should_be_decrypted").asText());
+        }
+        assertEquals("Data key should be unwrapped once", 1, unwrapper.getUnwraps());
+    }
+
+    @Test
+    public void testNegativeDataKeyMaxUses()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Field 'data_key_max_uses' must not be negative");
+        execute("wrapped_data_key_with_negative_max_uses");
+    }
+
+    @Test
+    public void testDecryptWithPassphrase() throws IOException
+    {
+        execute("passphrase");
+        // Encrypted by: openssl enc -aes-256-cbc -pass pass:embulk -base64
+        ArrayNode arrayNode = decrypt(
+                "U2FsdGVkX1/qlX3ertlJC8R8MvrUOGt7RiZNDTAvzw4=",
+                "U2FsdGVkX1/qrXQ6V9a8dHFyoym6xZy8Bye4wHDZa+Q=",
+                "U2FsdGVkX1/MVShreolTnKyY+ARLLfD56UVL3v/yMGU=");
+        assertEquals(arrayNode.size(), 3);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted with another salt", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted", "rotated", arrayNode.get(2).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptWithPassphraseAndPbkdf2() throws IOException
+    {
+        execute("passphrase_pbkdf2");
+        // Encrypted by: openssl enc -aes-256-cbc -pass pass:embulk -pbkdf2 -base64
+        ArrayNode arrayNode = decrypt("U2FsdGVkX188KvmBIZsYiyytAL5dopSd31sqvcAM7i8=");
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptWithPassphraseAndMd5() throws IOException
+    {
+        execute("passphrase_md5");
+        // Encrypted by: openssl enc -aes-128-cbc -pass pass:embulk -md md5 -base64
+        ArrayNode arrayNode = decrypt("U2FsdGVkX18vLrKR06aIsUGPCgL4r0eRnvjbGPcSlVs=");
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testDecryptWithPassphraseAndSaltHex() throws IOException
+    {
+        execute("passphrase_with_salt_hex");
+        // Encrypted by: openssl enc -aes-256-cbc -pass pass:embulk -pbkdf2 -S 0102030405060708 -base64
+        // The second value has the header which openssl 1.1 or earlier writes.
+        ArrayNode arrayNode = decrypt("pBDWA8YsXugttshwLRXcSw==", "U2FsdGVkX18BAgMEBQYHCKQQ1gPGLF7oLbbIcC0V3Es=");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testPassphraseWithoutSaltedHeader() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectMessage("Encrypted value doesn't start with 'Salted__'");
+        execute("passphrase");
+        decrypt("XaBAt/J3LNqKCVlWbu2E+gXaBAt/J3LNqKCVlWbu2E+g");
+    }
+
+    @Test
+    public void testPassphraseWithKeyHex()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Only one of key_hex, keyring and passphrase can be set");
+        execute("passphrase_with_key_hex");
+    }
+
+    private static final String[] TYPED_VALUES = {
+        "gUzzC+nJSBLbPTAzJlbbMA==",
+        "vTpVOqrrnpS/jAmekqEKew==",
+        "IYP+un9+gpZoA7DroWJeNQ==",
+        "5AGzKXCHGyPAxi6dZEdySg==",
+        "/Qop9O9tKQ6TUsh2Cld3B8BLCGivmO8SzNKuoT9Xhnw=",
+        "b0Ivt01N93VyeCRFoJTqoSnet9FydkBrg4LWgg91j+c=",
+    };
+
+    private Schema typedInputSchema()
+    {
+        return Schema.builder()
+                .add("name", Types.STRING)
+                .add("amount", Types.STRING)
+                .add("price", Types.STRING)
+                .add("active", Types.STRING)
+                .add("event_time", Types.STRING)
+                .add("payload", Types.STRING)
+                .build();
+    }
+
+    private void assertTypedValues(ArrayNode arrayNode)
+    {
+        assertEquals(Types.STRING, outputSchema.lookupColumn("name").getType());
+        assertEquals(Types.LONG, outputSchema.lookupColumn("amount").getType());
+        assertEquals(Types.DOUBLE, outputSchema.lookupColumn("price").getType());
+        assertEquals(Types.BOOLEAN, outputSchema.lookupColumn("active").getType());
+        assertEquals(Types.TIMESTAMP, outputSchema.lookupColumn("event_time").getType());
+        assertEquals(Types.JSON, outputSchema.lookupColumn("payload").getType());
+
+        assertEquals(arrayNode.size(), 1);
+        assertEquals("secret", arrayNode.get(0).get("name").asText());
+        assertEquals(12345L, arrayNode.get(0).get("amount").asLong());
+        assertEquals(-0.25d, arrayNode.get(0).get("price").asDouble(), 0);
+        assertEquals(true, arrayNode.get(0).get("active").asBoolean());
+        assertEquals(1516678496789L, arrayNode.get(0).get("event_time").asLong());
+        assertEquals("{\"a\":[1,2],\"b\":\"c\"}", arrayNode.get(0).get("payload").toString());
+    }
+
+    @Test
+    public void testOutputType() throws IOException
+    {
+        inputSchema = typedInputSchema();
+        execute("output_type");
+        assertTypedValues(decrypt((Object[]) TYPED_VALUES));
+    }
+
+    @Test
+    public void testOutputTypeWithCache() throws IOException
+    {
+        inputSchema = typedInputSchema();
+        execute(config("output_type").set("cache_size", 10));
+        assertTypedValues(decrypt((Object[]) TYPED_VALUES));
+    }
+
+    @Test
+    public void testOutputTypeInParallel() throws IOException
+    {
+        inputSchema = typedInputSchema();
+        execute(config("output_type").set("parallelism", 2));
+        assertTypedValues(decrypt((Object[]) TYPED_VALUES));
+    }
+
+    @Test
+    public void testOutputTypeWithTimestampFormat() throws IOException
+    {
+        execute("output_type_with_timestamp_format");
+        ArrayNode arrayNode = decrypt("BU3dF9mUzS5xHBVe1RrvAPc7af4jP9WyBcdkVuHkZmY=");
+        assertEquals("Timestamp without offset should be in timezone", 1516633200000L, arrayNode.get(0).get("should_be_decrypted").asLong());
+    }
+
+    @Test
+    public void testOutputTypeWithInvalidValue() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectMessage("Decrypted value of column 'should_be_decrypted' is not a valid long");
+        execute("output_type_long");
+        decrypt("cMjt2+THcbnlmAEQBK6Tlg==");
+    }
+
+    @Test
+    public void testOutputTypeOfNonStringColumn()
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.LONG)
+                .build();
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Column 'should_be_decrypted' must be a string column to be decrypted into output_type long");
+        execute("output_type_long");
+    }
+
+    @Test
+    public void testOutputTypeWithInvalidTimezone()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Unknown timezone 'Mars/Olympus_Mons'");
+        execute("output_type_with_invalid_timezone");
+    }
+
+    private static Value jsonOf(Object... keyValues)
+    {
+        Map<Value, Value> map = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            Object value = keyValues[i + 1];
+            map.put(ValueFactory.newString((String) keyValues[i]), value instanceof Value ? (Value) value : ValueFactory.newString((String) value));
+        }
+        return ValueFactory.newMap(map);
+    }
+
+    @Test
+    public void testDecryptJsonPaths() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("payload", Types.JSON)
+                .build();
+        execute("json_paths");
+        Value payload = jsonOf(
+                "id", ValueFactory.newInteger(1),
+                "user", jsonOf("name", "alice", "email", "gUzzC+nJSBLbPTAzJlbbMA=="),
+                "cards", ValueFactory.newArray(jsonOf("number", "gUzzC+nJSBLbPTAzJlbbMA=="), jsonOf("number", ValueFactory.newNil())),
+                "note", "gUzzC+nJSBLbPTAzJlbbMA==");
+        ArrayNode arrayNode = decrypt(payload);
+        assertEquals(arrayNode.size(), 1);
+        assertEquals("Fields at the JSON paths should be decrypted",
+                "{\"id\":1,\"user\":{\"name\":\"alice\",\"email\":\"secret\"},\"cards\":[{\"number\":\"secret\"},{\"number\":null}],"
+                        + "\"note\":\"gUzzC+nJSBLbPTAzJlbbMA==\"}",
+                arrayNode.get(0).get("payload").toString());
+    }
+
+    @Test
+    public void testJsonPathsOfStringColumn()
+    {
+        inputSchema = Schema.builder()
+                .add("payload", Types.STRING)
+                .build();
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Column 'payload' of json_paths must be a json column");
+        execute("json_paths");
+    }
+
+    @Test
+    public void testInvalidJsonPath()
+    {
+        inputSchema = Schema.builder()
+                .add("payload", Types.JSON)
+                .build();
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("JSON path 'user.email' of column 'payload' is invalid");
+        execute("json_paths_with_invalid_path");
+    }
+
+    @Test
+    public void testDecryptCompressedPlaintext() throws IOException
+    {
+        execute("plaintext_compression");
+        ArrayNode arrayNode = decrypt("ERzDTGxUxws3rIwDisAmOXuaofUrWVg+tp764/gRn/T2vS5Vfzgr641m1+57qPpo", null);
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted and decompressed", "compressed secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertNull("Null should stay null", arrayNode.get(1).get("should_be_decrypted"));
+    }
+
+    @Test
+    public void testDecompressedPlaintextLargerThanMaxSize() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectMessage("Decompressed value is larger than 8 bytes of max_decompressed_size");
+        execute("plaintext_compression_with_small_max_size");
+        decrypt("ERzDTGxUxws3rIwDisAmOXuaofUrWVg+tp764/gRn/T2vS5Vfzgr641m1+57qPpo");
+    }
+
+    @Test
+    public void testPlaintextNotCompressed() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectMessage("Decrypted value is not valid gzip data");
+        execute("plaintext_compression");
+        decrypt("gUzzC+nJSBLbPTAzJlbbMA==");
+    }
+
+    @Test
+    public void testDecryptInChunks() throws Exception
+    {
+        execute("streaming_threshold");
+        // Multibyte characters cross the boundaries of chunks.
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; large.length() < 100000; i++) {
+            large.append("secret ").append(i).append(" \u00e9\u6f22\ud83d\ude00 ");
+        }
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE,
+                new SecretKeySpec(BaseEncoding.base16().decode("098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05"), "AES"),
+                new IvParameterSpec(BaseEncoding.base16().decode("C9DD4BB33B827EB1FBA1B16A0074D460")));
+        String encrypted = BaseEncoding.base64().encode(cipher.doFinal(large.toString().getBytes(UTF_8)));
+
+        ArrayNode arrayNode = decrypt(encrypted, "gUzzC+nJSBLbPTAzJlbbMA==", null);
+        assertEquals(arrayNode.size(), 3);
+        assertEquals("Large value should be decrypted in chunks", large.toString(), arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Value after a large value should be decrypted", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+        assertNull("Null should stay null", arrayNode.get(2).get("should_be_decrypted"));
+    }
+
+    @Test
+    public void testInvalidValueInChunks() throws IOException
+    {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("com.google.common.io.BaseEncoding$DecodingException: Unrecognized character: *");
+        execute("streaming_threshold");
+        decrypt("gUzzC+nJSBLb*TAzJlbbMA==");
+    }
+
+    @Test
+    public void testNegativeStreamingThreshold()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Field 'streaming_threshold' must be 0 or larger");
+        execute(config("streaming_threshold").set("streaming_threshold", -1));
+    }
+
     @Test
     public void testOnlyDecryptTargetColumn() throws IOException
     {
@@ -438,6 +1163,303 @@ public class TestDecryptFilterPlugin
         assertEquals("Column should be not decrypted", "don't decrypt me", arrayNode.get(0).get("should_be_not_decrypted").asText());
     }
 
+    @Test
+    public void testDecryptWithCache() throws IOException
+    {
+        execute("cache_size");
+        ArrayNode arrayNode = decrypt("CO5cH3pGbD4TbUVp9KiOjA==", "CO5cH3pGbD4TbUVp9KiOjA==");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Cached column should be decrypted", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testNegativeCacheSize()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Field 'cache_size' must not be negative");
+        execute("negative_cache_size");
+    }
+
+    @Test
+    public void testDecryptInParallel() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.STRING)
+                .add("should_be_not_decrypted", Types.STRING)
+                .build();
+        execute("parallelism");
+        Object[] values = new Object[200 * 2];
+        for (int i = 0; i < 200; i++) {
+            values[i * 2] = i % 3 == 0 ? null : "gUzzC+nJSBLbPTAzJlbbMA==";
+            values[i * 2 + 1] = "row " + i;
+        }
+        ArrayNode arrayNode = decrypt(values);
+        assertEquals(arrayNode.size(), 200);
+        for (int i = 0; i < 200; i++) {
+            if (i % 3 == 0) {
+                assertNull("Null should stay null", arrayNode.get(i).get("should_be_decrypted"));
+            }
+            else {
+                assertEquals("Column should be decrypted", "secret", arrayNode.get(i).get("should_be_decrypted").asText());
+            }
+            assertEquals("Records should keep their order", "row " + i, arrayNode.get(i).get("should_be_not_decrypted").asText());
+        }
+    }
+
+    @Test
+    public void testDecryptInPipeline() throws IOException
+    {
+        execute("pipeline");
+        ArrayNode arrayNode = decrypt("gUzzC+nJSBLbPTAzJlbbMA==", "gUzzC+nJSBLbPTAzJlbbMA==");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted", "secret", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testMetricsAreRegisteredWhileTaskRuns() throws Exception
+    {
+        execute("algorithm_AES-256-CBC_input_encoding_Base64");
+        resultOutput.add(buildPage(runtime.getBufferAllocator(), inputSchema, "gUzzC+nJSBLbPTAzJlbbMA==", null, "gUzzC+nJSBLbPTAzJlbbMA==").get(0));
+
+        // Other tests may have left the metrics of their tasks registered.
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = null;
+        for (ObjectName registered : ((DecryptPageOutput) resultOutput).getMetrics().getRegisteredNames()) {
+            if ("\"should_be_decrypted\"".equals(registered.getKeyProperty("column"))) {
+                name = registered;
+            }
+        }
+        assertNotNull(name);
+        assertTrue(server.isRegistered(name));
+        assertEquals(2L, server.getAttribute(name, "Values"));
+        assertEquals(1L, server.getAttribute(name, "Nulls"));
+        assertEquals(32L, server.getAttribute(name, "CiphertextBytes"));
+        assertEquals(12L, server.getAttribute(name, "PlaintextBytes"));
+
+        resultOutput.finish();
+        resultOutput.close();
+        assertFalse("Metrics should be unregistered by close", server.isRegistered(name));
+    }
+
+    @Test
+    public void testMetricsOfParallelDecryption() throws Exception
+    {
+        execute(config("parallelism").set("cache_size", 0).set("jmx_metrics", false));
+        Object[] values = new Object[200];
+        Arrays.fill(values, "gUzzC+nJSBLbPTAzJlbbMA==");
+        values[0] = null;
+        resultOutput.add(buildPage(runtime.getBufferAllocator(), inputSchema, values).get(0));
+
+        DecryptionMetrics metrics = ((DecryptPageOutput) resultOutput).getMetrics();
+        assertEquals(200L, metrics.getRecords());
+        assertEquals(199L, metrics.column(0).getValues());
+        assertEquals(1L, metrics.column(0).getNulls());
+        assertEquals(199L * 6, metrics.column(0).getPlaintextBytes());
+        resultOutput.finish();
+        resultOutput.close();
+    }
+
+    @Test
+    public void testOnErrorNull() throws IOException
+    {
+        execute(config("algorithm_AES-256-CBC_input_encoding_Base64").set("on_error", "null").set("jmx_metrics", false));
+        DecryptionMetrics metrics = ((DecryptPageOutput) resultOutput).getMetrics();
+        // An invalid character, a length which is not a multiple of the block, and a wrong padding.
+        ArrayNode arrayNode = decrypt("gUzzC+nJSBLbPTAzJlbbMA==", "gUzzC+nJ*BLbPTAzJlbbMA==", "gUzzC+nJSBLbPTAzJlbb", "AAAAAAAAAAAAAAAAAAAAAA==", null);
+        assertEquals(5, arrayNode.size());
+        assertEquals("secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        for (int i = 1; i < 5; i++) {
+            assertNull(arrayNode.get(i).get("should_be_decrypted"));
+        }
+        assertEquals(3L, metrics.column(0).getErrors());
+        assertEquals(1L, metrics.column(0).getNulls());
+    }
+
+    @Test
+    public void testOnErrorSkip() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.STRING)
+                .add("id", Types.LONG)
+                .build();
+        execute(config("algorithm_AES-256-CBC_input_encoding_Base64").set("on_error", "skip").set("jmx_metrics", false));
+        DecryptionMetrics metrics = ((DecryptPageOutput) resultOutput).getMetrics();
+        ArrayNode arrayNode = decrypt("gUzzC+nJSBLbPTAzJlbbMA==", 1L, "AAAAAAAAAAAAAAAAAAAAAA==", 2L, "gUzzC+nJSBLb", 3L, null, 4L);
+        assertEquals(2, arrayNode.size());
+        assertEquals("secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals(1L, arrayNode.get(0).get("id").asLong());
+        assertNull(arrayNode.get(1).get("should_be_decrypted"));
+        assertEquals(4L, arrayNode.get(1).get("id").asLong());
+        assertEquals(4L, metrics.getRecords());
+        assertEquals(2L, metrics.getSkippedRecords());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testOnErrorSkipLeavesNoStringsOfSkippedRecords() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.STRING)
+                .add("name", Types.STRING)
+                .build();
+        execute(config("algorithm_AES-256-CBC_input_encoding_Base64").set("on_error", "skip"));
+        ArrayNode arrayNode = decrypt("gUzzC+nJSBLbPTAzJlbbMA==", "kept", "AAAAAAAAAAAAAAAAAAAAAA==", "dropped");
+        assertEquals(1, arrayNode.size());
+        assertEquals("kept", arrayNode.get(0).get("name").asText());
+        // The strings of the skipped record would count toward the size at which the page is flushed.
+        List<Page> pages = ((TestPageBuilderReader.MockPageOutput) output).pages;
+        assertEquals(1, pages.size());
+        assertEquals(2, pages.get(0).getStringReferences().size());
+        assertFalse(pages.get(0).getStringReferences().contains("dropped"));
+    }
+
+    @Test
+    public void testOnErrorPassthrough() throws IOException
+    {
+        execute(config("algorithm_AES-256-CBC_input_encoding_Base64").set("on_error", "passthrough"));
+        ArrayNode arrayNode = decrypt("gUzzC+nJSBLbPTAzJlbbMA==", "gUzzC+nJ*BLbPTAzJlbbMA==", "AAAAAAAAAAAAAAAAAAAAAA==");
+        assertEquals("secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("gUzzC+nJ*BLbPTAzJlbbMA==", arrayNode.get(1).get("should_be_decrypted").asText());
+        assertEquals("AAAAAAAAAAAAAAAAAAAAAA==", arrayNode.get(2).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testOnErrorWithParallelism() throws IOException
+    {
+        execute(config("parallelism").set("on_error", "null").set("jmx_metrics", false));
+        DecryptionMetrics metrics = ((DecryptPageOutput) resultOutput).getMetrics();
+        Object[] values = new Object[200];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 10 == 0 ? "AAAAAAAAAAAAAAAAAAAAAA==" : i % 10 == 1 ? "gUzzC+nJ" : "gUzzC+nJSBLbPTAzJlbbMA==";
+        }
+        ArrayNode arrayNode = decrypt(values);
+        assertEquals(200, arrayNode.size());
+        for (int i = 0; i < values.length; i++) {
+            if (i % 10 < 2) {
+                assertNull(arrayNode.get(i).get("should_be_decrypted"));
+            }
+            else {
+                assertEquals("secret", arrayNode.get(i).get("should_be_decrypted").asText());
+            }
+        }
+        assertEquals(40L, metrics.column(0).getErrors());
+    }
+
+    @Test
+    public void testInvalidValueIsThrownWithoutOnError() throws IOException
+    {
+        thrown.expect(DataException.class);
+        thrown.expectMessage("javax.crypto.BadPaddingException");
+        execute("algorithm_AES-256-CBC_input_encoding_Base64");
+        decrypt("gUzzC+nJSBLbPTAzJlbbMA==", "AAAAAAAAAAAAAAAAAAAAAA==");
+    }
+
+    @Test
+    public void testQuarantineFile() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("should_be_decrypted", Types.STRING)
+                .add("id", Types.LONG)
+                .build();
+        File quarantineDir = folder.newFolder();
+        execute(config("algorithm_AES-256-CBC_input_encoding_Base64")
+                .set("on_error", "skip")
+                .set("quarantine_path_prefix", new File(quarantineDir, "bad_").getPath()));
+        InvalidValueHandler invalidValues = ((DecryptPageOutput) resultOutput).getInvalidValues();
+        decrypt("gUzzC+nJSBLbPTAzJlbbMA==", 1L, "gUzzC+nJSBLb", 2L);
+
+        Path path = invalidValues.getQuarantine().getPath();
+        assertEquals(quarantineDir.toPath(), path.getParent());
+        assertTrue(path.getFileName().toString().startsWith("bad_"));
+        List<String> lines = Files.readAllLines(path, UTF_8);
+        assertEquals(1, lines.size());
+        JsonNode line = new ObjectMapper().readTree(lines.get(0));
+        assertEquals("should_be_decrypted", line.get("column").asText());
+        assertEquals("Encrypted value of 9 bytes can't be a ciphertext of AES-256-CBC", line.get("reason").asText());
+        assertEquals("gUzzC+nJSBLb", line.get("record").get("should_be_decrypted").asText());
+        assertEquals(2L, line.get("record").get("id").asLong());
+    }
+
+    @Test
+    public void testNoQuarantineFileWithoutInvalidValues() throws IOException
+    {
+        File quarantineDir = folder.newFolder();
+        execute(config("algorithm_AES-256-CBC_input_encoding_Base64")
+                .set("on_error", "null")
+                .set("quarantine_path_prefix", quarantineDir.getPath() + "/"));
+        decrypt("gUzzC+nJSBLbPTAzJlbbMA==");
+        assertEquals(0, quarantineDir.list().length);
+    }
+
+    @Test
+    public void testQuarantineFileWithOnErrorFail()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("quarantine_path_prefix can't be used with on_error: fail");
+        execute(config("algorithm_AES-256-CBC_input_encoding_Base64").set("quarantine_path_prefix", "/tmp/bad_"));
+    }
+
+    @Test
+    public void testOnErrorPassthroughWithOutputType()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("on_error: passthrough can't be used with output_type long");
+        execute(config("algorithm_AES-256-CBC_input_encoding_Base64").set("on_error", "passthrough").set("output_type", "long"));
+    }
+
+    @Test
+    public void testPageEventsWhileFlightRecorderRecords() throws Exception
+    {
+        // Starts a recording through the diagnostic commands, since this test is compiled for Java 8.
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName diagnosticCommand = new ObjectName("com.sun.management:type=DiagnosticCommand");
+        String[] signature = new String[] {String[].class.getName()};
+        try {
+            server.invoke(diagnosticCommand, "jfrStart", new Object[] {new String[] {"name=decrypt-test"}}, signature);
+        }
+        catch (JMException e) {
+            assumeNoException("Java Flight Recorder is not available", e);
+        }
+        try {
+            execute(config("algorithm_AES-256-CBC_input_encoding_Base64").set("jmx_metrics", false));
+            DecryptionMetrics metrics = ((DecryptPageOutput) resultOutput).getMetrics();
+            assertNotNull(DecryptPageEvent.begin(metrics));
+
+            resultOutput.add(buildPage(runtime.getBufferAllocator(), inputSchema, "gUzzC+nJSBLbPTAzJlbbMA==", null).get(0));
+            resultOutput.finish();
+            resultOutput.close();
+            assertEquals(2L, metrics.getRecords());
+        }
+        finally {
+            server.invoke(diagnosticCommand, "jfrStop", new Object[] {new String[] {"name=decrypt-test"}}, signature);
+        }
+    }
+
+    @Test
+    public void testPipelineFailureIsThrownByFinish()
+    {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("Unrecognized character: *");
+        execute("pipeline");
+        resultOutput.add(buildPage(runtime.getBufferAllocator(), inputSchema, "gUzzC+nJSBLb*TAzJlbbMA==").get(0));
+        try {
+            resultOutput.finish();
+        }
+        finally {
+            resultOutput.close();
+        }
+    }
+
+    @Test
+    public void testInvalidParallelism()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Field 'parallelism' must be 1 or larger");
+        execute("invalid_parallelism");
+    }
+
     @Test
     public void testBooleanColumnShouldBeNotDecrypted() throws IOException
     {
@@ -495,6 +1517,28 @@ public class TestDecryptFilterPlugin
         assertEquals("Column should be not decrypted", String.valueOf(now.getTime()), arrayNode.get(0).get("should_be_not_decrypted").asText());
     }
 
+    @Test
+    public void testColumnsAroundDecryptedColumnAreCopied() throws IOException
+    {
+        inputSchema = Schema.builder()
+                .add("id", Types.LONG)
+                .add("name", Types.STRING)
+                .add("should_be_decrypted", Types.STRING)
+                .add("price", Types.DOUBLE)
+                .add("active", Types.BOOLEAN)
+                .add("event_time", Types.TIMESTAMP)
+                .add("payload", Types.JSON)
+                .build();
+        execute("algorithm_AES-256-CBC_input_encoding_Base64");
+        ArrayNode arrayNode = decrypt(
+                1L, "alice", "gUzzC+nJSBLbPTAzJlbbMA==", 1.5d, true, Timestamp.ofEpochMilli(1000L), jsonOf("id", ValueFactory.newInteger(1)),
+                2L, null, null, 2.5d, false, null, null);
+        assertEquals(2, arrayNode.size());
+        assertEquals("{\"id\":1,\"name\":\"alice\",\"should_be_decrypted\":\"secret\",\"price\":1.5,\"active\":true,\"event_time\":1000,"
+                + "\"payload\":{\"id\":1}}", arrayNode.get(0).toString());
+        assertEquals("{\"id\":2,\"price\":2.5,\"active\":false}", arrayNode.get(1).toString());
+    }
+
     @Test
     public void testS3ForAlgorithmRequiredIV() throws IOException
     {
@@ -502,7 +1546,8 @@ public class TestDecryptFilterPlugin
         Map<String, String> keys = new HashMap<>();
         keys.put("key_hex", "098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05");
         keys.put("iv_hex", "C9DD4BB33B827EB1FBA1B16A0074D460");
-        doReturn(keys).when(plugin).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
+        S3KeyProvider keyProvider = spyS3KeyProvider();
+        doReturn(keys).when(keyProvider).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
         execute("s3_with_algorithm_required_iv");
         ArrayNode arrayNode = decrypt("gUzzC+nJSBLbPTAzJlbbMA==");
         assertEquals(arrayNode.size(), 1);
@@ -512,13 +1557,113 @@ public class TestDecryptFilterPlugin
         assertEquals("Column should be decrypted", expected, arrayNode.get(0).get("should_be_decrypted").asText());
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testS3WithKeyring() throws IOException
+    {
+        plugin = spy(plugin);
+        Map<String, String> keyring = new HashMap<>();
+        keyring.put("1", "098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05");
+        keyring.put("2", "0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF");
+        Map keys = new HashMap<>();
+        keys.put("keyring", keyring);
+        keys.put("iv_hex", "C9DD4BB33B827EB1FBA1B16A0074D460");
+        S3KeyProvider keyProvider = spyS3KeyProvider();
+        doReturn(keys).when(keyProvider).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
+        execute("s3_with_algorithm_required_iv");
+        ArrayNode arrayNode = decrypt("AYFM8wvpyUgS2z0wMyZW2zA=", "AjYOq2c09aLx+e/FMVNhwwI=");
+        assertEquals(arrayNode.size(), 2);
+        assertEquals("Column should be decrypted with key 1", "secret", arrayNode.get(0).get("should_be_decrypted").asText());
+        assertEquals("Column should be decrypted with key 2", "rotated", arrayNode.get(1).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testS3KeyFileWithNonStringKeyHex()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Field 'key_hex' in key file must be a string");
+        plugin = spy(plugin);
+        Map<String, Object> keys = new HashMap<>();
+        // An unquoted hex of digits only is loaded as a number.
+        keys.put("key_hex", 1234567890L);
+        keys.put("iv_hex", "C9DD4BB33B827EB1FBA1B16A0074D460");
+        S3KeyProvider keyProvider = spyS3KeyProvider();
+        doReturn(keys).when(keyProvider).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
+        execute("s3_with_algorithm_required_iv");
+    }
+
+    @Test
+    public void testS3KeyFileWithNonStringKeyInKeyring()
+    {
+        thrown.expectCause(hasCause(isA(ConfigException.class)));
+        thrown.expectMessage("Key '1' in keyring must be a string");
+        plugin = spy(plugin);
+        Map<Object, Object> keyring = new HashMap<>();
+        keyring.put(1, 1234567890L);
+        Map<String, Object> keys = new HashMap<>();
+        keys.put("keyring", keyring);
+        keys.put("iv_hex", "C9DD4BB33B827EB1FBA1B16A0074D460");
+        S3KeyProvider keyProvider = spyS3KeyProvider();
+        doReturn(keys).when(keyProvider).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
+        execute("s3_with_algorithm_required_iv");
+    }
+
+    @Test
+    public void testS3KeyCache() throws IOException
+    {
+        File cacheDir = new File(folder.getRoot(), "keys");
+        try (S3StubServer s3 = new S3StubServer("a_bucket", "a_path",
+                "key_hex: 098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05\n"
+                        + "iv_hex: C9DD4BB33B827EB1FBA1B16A0074D460\n")) {
+            execute(s3KeyCacheConfig(s3, cacheDir, 3600, false));
+            assertEquals("Key file should be retrieved", 1, s3.getRequests());
+
+            plugin = spy(plugin);
+            S3KeyProvider keyProvider = spyS3KeyProvider();
+            execute(s3KeyCacheConfig(s3, cacheDir, 3600, false));
+            assertEquals("Cached key file should be used", 1, s3.getRequests());
+            verify(keyProvider, never()).newS3Client(any(DecryptFilterPlugin.AWSParams.class));
+
+            execute(s3KeyCacheConfig(s3, cacheDir, 0, false));
+            assertEquals("Expired key file should be revalidated", 2, s3.getRequests());
+            assertEquals("Expired key file should be revalidated", 1, s3.getNotModified());
+
+            execute(s3KeyCacheConfig(s3, cacheDir, 3600, true));
+            assertEquals("Key file should be retrieved again", 3, s3.getRequests());
+            assertEquals("Key file should be retrieved again", 1, s3.getNotModified());
+        }
+
+        ArrayNode arrayNode = decrypt("XaBAt/J3LNqKCVlWbu2E+g==");
+        assertEquals("Column should be decrypted with cached key", "super", arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
+    @Test
+    public void testS3KeyCacheRetrievesModifiedKeyFile() throws IOException
+    {
+        File cacheDir = new File(folder.getRoot(), "keys");
+        try (S3StubServer s3 = new S3StubServer("a_bucket", "a_path",
+                "key_hex: 0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF\n"
+                        + "iv_hex: C9DD4BB33B827EB1FBA1B16A0074D460\n")) {
+            execute(s3KeyCacheConfig(s3, cacheDir, 0, false));
+            s3.setContent("key_hex: 098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05\n"
+                    + "iv_hex: C9DD4BB33B827EB1FBA1B16A0074D460\n");
+            execute(s3KeyCacheConfig(s3, cacheDir, 0, false));
+            assertEquals(2, s3.getRequests());
+            assertEquals(0, s3.getNotModified());
+        }
+
+        ArrayNode arrayNode = decrypt("XaBAt/J3LNqKCVlWbu2E+g==");
+        assertEquals("Column should be decrypted with modified key", "super", arrayNode.get(0).get("should_be_decrypted").asText());
+    }
+
     @Test
     public void testS3WithoutIVForAlgorithmNotRequiredIV() throws IOException
     {
         plugin = spy(plugin);
         Map<String, String> keys = new HashMap<>();
         keys.put("key_hex", "098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05");
-        doReturn(keys).when(plugin).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
+        S3KeyProvider keyProvider = spyS3KeyProvider();
+        doReturn(keys).when(keyProvider).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
         execute("s3_with_algorithm_not_required_iv");
         ArrayNode arrayNode = decrypt("CO5cH3pGbD4TbUVp9KiOjA==");
         assertEquals(arrayNode.size(), 1);
@@ -535,7 +1680,8 @@ public class TestDecryptFilterPlugin
         Map<String, String> keys = new HashMap<>();
         keys.put("key_hex", "098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05");
         keys.put("iv_hex", "C9DD4BB33B827EB1FBA1B16A0074D460");
-        doReturn(keys).when(plugin).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
+        S3KeyProvider keyProvider = spyS3KeyProvider();
+        doReturn(keys).when(keyProvider).retrieveKey(any(String.class), any(String.class), any(AmazonS3.class));
         execute("s3_with_algorithm_not_required_iv");
         ArrayNode arrayNode = decrypt("CO5cH3pGbD4TbUVp9KiOjA==");
         assertEquals(arrayNode.size(), 1);
@@ -549,8 +1695,8 @@ public class TestDecryptFilterPlugin
     public void testS3ConfiguredRegion()
     {
         ConfigSource configSource = config("s3_with_algorithm_required_iv");
-        final AmazonS3 s3Client = plugin.newS3Client(
-                DecryptFilterPlugin.CONFIG_MAPPER.map(configSource, DecryptFilterPlugin.PluginTask.class).getAWSParams().get());
+        final AmazonS3 s3Client = new S3KeyProvider().newS3Client(
+                DecryptFilterPlugin.CONFIG_MAPPER.map(configSource, DecryptFilterPlugin.DecryptionSpec.class).getAWSParams().get());
 
         // Should reflect the region configuration as is
         assertEquals(s3Client.getRegion(), Region.US_East_2);
@@ -561,8 +1707,8 @@ public class TestDecryptFilterPlugin
     {
         thrown.expectCause(hasCause(isA(ConfigException.class)));
         ConfigSource configSource = config("s3_with_invalid_region");
-        plugin.newS3Client(
-                DecryptFilterPlugin.CONFIG_MAPPER.map(configSource, DecryptFilterPlugin.PluginTask.class).getAWSParams().get());
+        new S3KeyProvider().newS3Client(
+                DecryptFilterPlugin.CONFIG_MAPPER.map(configSource, DecryptFilterPlugin.DecryptionSpec.class).getAWSParams().get());
     }
 
     @Test
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestDecryptionCache
+{
+    @Test
+    public void testLeastRecentlyUsedIsEvicted()
+    {
+        DecryptionCache cache = new DecryptionCache(2);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C");
+
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testHitReturnsSameInstance()
+    {
+        DecryptionCache cache = new DecryptionCache(2);
+        String plaintext = new String("secret");
+        cache.put("CO5cH3pGbD4TbUVp9KiOjA==", plaintext);
+        assertSame(plaintext, cache.get(new String("CO5cH3pGbD4TbUVp9KiOjA==")));
+    }
+
+    @Test
+    public void testLongValueIsNotCached()
+    {
+        DecryptionCache cache = new DecryptionCache(2);
+        StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i <= DecryptionCache.MAX_CACHED_LENGTH; i++) {
+            encoded.append('A');
+        }
+        cache.put(encoded.toString(), "large");
+        assertNull(cache.get(encoded.toString()));
+    }
+}
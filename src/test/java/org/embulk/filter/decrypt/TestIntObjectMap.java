@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestIntObjectMap
+{
+    @Test
+    public void testGrowsBeyondExpectedSize()
+    {
+        IntObjectMap<String> map = new IntObjectMap<>(1);
+        for (int i = -500; i < 500; i++) {
+            map.put(i * 7, "v" + i);
+        }
+        assertEquals(1000, map.size());
+        for (int i = -500; i < 500; i++) {
+            assertEquals("v" + i, map.get(i * 7));
+        }
+        assertNull(map.get(1));
+    }
+
+    @Test
+    public void testPutReplacesValue()
+    {
+        IntObjectMap<String> map = new IntObjectMap<>(2);
+        map.put(0, "a");
+        map.put(0, "b");
+        assertEquals(1, map.size());
+        assertEquals("b", map.get(0));
+    }
+}
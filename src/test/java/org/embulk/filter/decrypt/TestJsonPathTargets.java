@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TestJsonPathTargets
+{
+    private static final String ENCRYPTED_SECRET = "gUzzC+nJSBLbPTAzJlbbMA==";
+
+    @Test
+    public void testKeepsUnchangedBranches() throws Exception
+    {
+        JsonPathTargets targets = new JsonPathTargets("payload");
+        targets.add("$.user.email", 0);
+
+        Value other = ValueFactory.newArray(ValueFactory.newString(ENCRYPTED_SECRET));
+        Value root = ValueFactory.newMap(
+                ValueFactory.newString("other"), other,
+                ValueFactory.newString("user"), ValueFactory.newMap(ValueFactory.newString("email"), ValueFactory.newString(ENCRYPTED_SECRET)));
+        Map<Value, Value> decrypted = targets.decrypt(root, decryptors()).asMapValue().map();
+
+        assertSame(other, decrypted.get(ValueFactory.newString("other")));
+        assertEquals("secret", decrypted.get(ValueFactory.newString("user")).asMapValue().map()
+                .get(ValueFactory.newString("email")).asStringValue().asString());
+
+        Value withoutTarget = ValueFactory.newMap(ValueFactory.newString("email"), ValueFactory.newString(ENCRYPTED_SECRET));
+        assertSame(withoutTarget, targets.decrypt(withoutTarget, decryptors()));
+    }
+
+    @Test
+    public void testIndexAndWildcard() throws Exception
+    {
+        JsonPathTargets targets = new JsonPathTargets("payload");
+        targets.add("$[1]", 0);
+        targets.add("$[2].*", 0);
+
+        Value root = ValueFactory.newArray(
+                ValueFactory.newString(ENCRYPTED_SECRET),
+                ValueFactory.newString(ENCRYPTED_SECRET),
+                ValueFactory.newMap(ValueFactory.newString("a"), ValueFactory.newString(ENCRYPTED_SECRET)));
+        assertEquals("[\"" + ENCRYPTED_SECRET + "\",\"secret\",{\"a\":\"secret\"}]", targets.decrypt(root, decryptors()).toJson());
+    }
+
+    @Test
+    public void testNestedTargets()
+    {
+        JsonPathTargets targets = new JsonPathTargets("payload");
+        targets.add("$.user", 0);
+        try {
+            targets.add("$.user.email", 0);
+            fail();
+        }
+        catch (ConfigException e) {
+            assertEquals("JSON path '$.user.email' of column 'payload' is inside '$.user', which is decrypted as a whole", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFieldAndWildcardOverlap()
+    {
+        JsonPathTargets targets = new JsonPathTargets("payload");
+        targets.add("$.a", 0);
+        try {
+            targets.add("$.*", 0);
+            fail();
+        }
+        catch (ConfigException e) {
+            assertEquals("JSON path '$.*' of column 'payload' overlaps another JSON path with a wildcard at the same level", e.getMessage());
+        }
+
+        JsonPathTargets reversed = new JsonPathTargets("payload");
+        reversed.add("$[*]", 0);
+        try {
+            reversed.add("$[1]", 0);
+            fail();
+        }
+        catch (ConfigException e) {
+            assertEquals("JSON path '$[1]' of column 'payload' overlaps another JSON path with a wildcard at the same level", e.getMessage());
+        }
+    }
+
+    private static ValueDecryptor[] decryptors() throws Exception
+    {
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE,
+                new SecretKeySpec(BaseEncoding.base16().decode("098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05"), "AES"),
+                new IvParameterSpec(BaseEncoding.base16().decode("C9DD4BB33B827EB1FBA1B16A0074D460")));
+        return new ValueDecryptor[] {new ValueDecryptor(cipher, DecryptFilterPlugin.Encoder.BASE64)};
+    }
+}
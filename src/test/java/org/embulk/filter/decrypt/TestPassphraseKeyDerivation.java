@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import org.embulk.spi.DataException;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestPassphraseKeyDerivation
+{
+    private static final byte[] SALT = BaseEncoding.base16().decode("0102030405060708");
+
+    // Expected key and IV are printed by: openssl enc -aes-256-cbc -pass pass:embulk -S 0102030405060708 -P [-pbkdf2]
+    @Test
+    public void testEvpBytesToKey() throws GeneralSecurityException
+    {
+        PassphraseKeyDerivation derivation = new PassphraseKeyDerivation("embulk",
+                DecryptFilterPlugin.KeyDerivation.EVP_BYTES_TO_KEY, DecryptFilterPlugin.KeyDerivationDigest.SHA256, 1, 32, 16);
+        assertEquals("97F47071F4F2EE883A85964F03DCCCC72D47F6229E87A2DCD8694BBD9F95A7B3" + "00C03882BBA6422E133176C47561EE4D",
+                BaseEncoding.base16().encode(derivation.derive(SALT)));
+    }
+
+    @Test
+    public void testPbkdf2() throws GeneralSecurityException
+    {
+        PassphraseKeyDerivation derivation = new PassphraseKeyDerivation("embulk",
+                DecryptFilterPlugin.KeyDerivation.PBKDF2, DecryptFilterPlugin.KeyDerivationDigest.SHA256, 10000, 32, 16);
+        assertEquals("D5F6926090A58733B53648949BF86E4CFC44E65331FA838BFD3A31519E2B06E8" + "C09B675FB26915B46C2CD5D48212F666",
+                BaseEncoding.base16().encode(derivation.derive(SALT)));
+    }
+
+    @Test
+    public void testUnwrapDerivesFromSaltInHeader() throws GeneralSecurityException
+    {
+        PassphraseKeyDerivation derivation = new PassphraseKeyDerivation("embulk",
+                DecryptFilterPlugin.KeyDerivation.PBKDF2, DecryptFilterPlugin.KeyDerivationDigest.SHA256, 10000, 32, 16);
+        assertEquals(BaseEncoding.base16().encode(derivation.derive(SALT)),
+                BaseEncoding.base16().encode(derivation.unwrap(PassphraseKeyDerivation.header(SALT))));
+    }
+
+    @Test(expected = DataException.class)
+    public void testHeaderWithoutMagic() throws GeneralSecurityException
+    {
+        PassphraseKeyDerivation derivation = new PassphraseKeyDerivation("embulk",
+                DecryptFilterPlugin.KeyDerivation.EVP_BYTES_TO_KEY, DecryptFilterPlugin.KeyDerivationDigest.SHA256, 1, 32, 16);
+        derivation.unwrap(new byte[PassphraseKeyDerivation.HEADER_LENGTH]);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.DataException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TestPlaintextDecompressor
+{
+    private static final int MAX_SIZE = 1 << 20;
+
+    @Test
+    public void testGzipReusedAcrossValues() throws IOException
+    {
+        PlaintextDecompressor decompressor = new PlaintextDecompressor(DecryptFilterPlugin.PlaintextCompression.GZIP, MAX_SIZE);
+        byte[] large = text(200000);
+        byte[] small = text(10);
+        assertDecompressed(large, decompressor, gzip(large));
+        assertDecompressed(small, decompressor, gzip(small));
+        assertDecompressed(large, decompressor, gzip(large));
+    }
+
+    @Test(expected = DataException.class)
+    public void testGzipWithWrongCrc() throws IOException
+    {
+        byte[] compressed = gzip(text(100));
+        compressed[compressed.length - 8] ^= 1;
+        new PlaintextDecompressor(DecryptFilterPlugin.PlaintextCompression.GZIP, MAX_SIZE).decompress(compressed, compressed.length);
+    }
+
+    @Test
+    public void testZlibAndDeflate()
+    {
+        byte[] text = text(5000);
+        assertDecompressed(text, new PlaintextDecompressor(DecryptFilterPlugin.PlaintextCompression.ZLIB, MAX_SIZE), deflate(text, false));
+        assertDecompressed(text, new PlaintextDecompressor(DecryptFilterPlugin.PlaintextCompression.DEFLATE, MAX_SIZE), deflate(text, true));
+    }
+
+    @Test(expected = DataException.class)
+    public void testLargerThanMaxSize()
+    {
+        byte[] compressed = deflate(new byte[MAX_SIZE * 4], false);
+        new PlaintextDecompressor(DecryptFilterPlugin.PlaintextCompression.ZLIB, MAX_SIZE).decompress(compressed, compressed.length);
+    }
+
+    private static void assertDecompressed(byte[] expected, PlaintextDecompressor decompressor, byte[] compressed)
+    {
+        int length = decompressor.decompress(compressed, compressed.length);
+        assertArrayEquals(expected, Arrays.copyOf(decompressor.buffer(), length));
+    }
+
+    private static byte[] text(int length)
+    {
+        Random random = new Random(length);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return text;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean nowrap)
+    {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+}
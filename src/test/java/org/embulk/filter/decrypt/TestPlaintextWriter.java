@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.type.Types;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPlaintextWriter
+{
+    private static final Column COLUMN = new Column(0, "c", Types.STRING);
+
+    @Test
+    public void testParseLong()
+    {
+        PlaintextWriter.LongWriter writer = new PlaintextWriter.LongWriter(COLUMN);
+        for (String s : new String[] {"0", "-0", "+7", "12345", "-9223372036854775808", "9223372036854775807"}) {
+            assertEquals(Long.parseLong(s), writer.parse(bytes(s), s.length()));
+        }
+        for (String s : new String[] {"", "-", "1.0", " 1", "12x", "9223372036854775808", "-9223372036854775809"}) {
+            try {
+                writer.parse(bytes(s), s.length());
+                fail("'" + s + "' should not be parsed");
+            }
+            catch (DataException e) {
+                assertEquals("Decrypted value of column 'c' is not a valid long", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testParseDoubleSameAsDoubleParseDouble()
+    {
+        PlaintextWriter.DoubleWriter writer = new PlaintextWriter.DoubleWriter(COLUMN);
+        for (String s : new String[] {"0", "-0", "1.5", "-.5", "5.", "1e22", "1e23", "1E-5", "0.1", "0.30000000000000004",
+                "123456789012345", "1234567890123456", "1.7976931348623157e308", "4.9e-324", "NaN", "-Infinity"}) {
+            assertEquals(s, Double.doubleToLongBits(Double.parseDouble(s)), Double.doubleToLongBits(writer.parse(bytes(s), s.length())));
+        }
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            String s = (random.nextLong() % 1000000000000000L) + "e" + (random.nextInt(60) - 30);
+            assertEquals(s, Double.doubleToLongBits(Double.parseDouble(s)), Double.doubleToLongBits(writer.parse(bytes(s), s.length())));
+        }
+    }
+
+    @Test(expected = DataException.class)
+    public void testParseInvalidDouble()
+    {
+        new PlaintextWriter.DoubleWriter(COLUMN).parse(bytes("1e"), 2);
+    }
+
+    @Test
+    public void testParseBoolean()
+    {
+        PlaintextWriter.BooleanWriter writer = new PlaintextWriter.BooleanWriter(COLUMN);
+        assertTrue(writer.parse(bytes("TRUE"), 4));
+        assertTrue(writer.parse(bytes("yes"), 3));
+        assertFalse(writer.parse(bytes("Off"), 3));
+        assertFalse(writer.parse(bytes("0"), 1));
+    }
+
+    @Test(expected = DataException.class)
+    public void testParseInvalidJson()
+    {
+        new PlaintextWriter.JsonWriter(COLUMN, null).parse(bytes("[1] 2"), 5);
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(UTF_8);
+    }
+}
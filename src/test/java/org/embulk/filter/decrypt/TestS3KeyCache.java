@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class TestS3KeyCache
+{
+    private static final byte[] CONTENT = "key_hex: 098F6BCD4621D373CADE4E832627B4F60A9172716AE6428409885B8B829CCB05\n".getBytes(UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Clock at(long millis)
+    {
+        return Clock.fixed(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+    }
+
+    @Test
+    public void testFreshWithinTtl() throws IOException
+    {
+        Path dir = folder.getRoot().toPath().resolve("keys");
+        new S3KeyCache(dir, "id", 60, at(1_000_000)).write(CONTENT, "\"etag\"");
+
+        assertArrayEquals(CONTENT, new S3KeyCache(dir, "id", 60, at(1_059_999)).readFresh().get());
+        assertFalse(new S3KeyCache(dir, "id", 60, at(1_060_000)).readFresh().isPresent());
+        // Expired, but still there to be revalidated.
+        assertArrayEquals(CONTENT, new S3KeyCache(dir, "id", 60, at(1_060_000)).read().get());
+        assertEquals(Optional.of("\"etag\""), new S3KeyCache(dir, "id", 60, at(1_060_000)).readEtag());
+    }
+
+    @Test
+    public void testTouchRestartsTtl() throws IOException
+    {
+        Path dir = folder.getRoot().toPath();
+        new S3KeyCache(dir, "id", 60, at(1_000_000)).write(CONTENT, "\"etag\"");
+        new S3KeyCache(dir, "id", 60, at(1_100_000)).touch();
+        assertArrayEquals(CONTENT, new S3KeyCache(dir, "id", 60, at(1_100_000)).readFresh().get());
+    }
+
+    @Test
+    public void testMissing()
+    {
+        S3KeyCache cache = new S3KeyCache(folder.getRoot().toPath(), "id", 60);
+        assertFalse(cache.readFresh().isPresent());
+        assertFalse(cache.readEtag().isPresent());
+    }
+
+    @Test
+    public void testOwnerOnlyPermissions() throws IOException
+    {
+        Path dir = folder.getRoot().toPath().resolve("keys");
+        assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        new S3KeyCache(dir, "id", 60).write(CONTENT, "\"etag\"");
+
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir)));
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.resolve("id.yml"))));
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.resolve("id.etag"))));
+    }
+
+    @Test
+    public void testIdDependsOnLocation()
+    {
+        assertEquals(S3KeyCache.id("", "us-east-2", "bucket", "path"), S3KeyCache.id("", "us-east-2", "bucket", "path"));
+        assertNotEquals(S3KeyCache.id("", "us-east-2", "bucket", "path"), S3KeyCache.id("", "us-east-2", "bucket", "path2"));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.filter.decrypt;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestScratchDecoder
+{
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void testDecodeBase64SameAsEncoder()
+    {
+        ScratchDecoder decoder = new ScratchDecoder(DecryptFilterPlugin.Encoder.BASE64);
+        Random random = new Random(0);
+        for (int length = 0; length < 300; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String padded = BaseEncoding.base64().encode(bytes);
+            String omitted = BaseEncoding.base64().omitPadding().encode(bytes);
+            assertDecoded(decoder, DecryptFilterPlugin.Encoder.BASE64.decode(padded), padded);
+            assertDecoded(decoder, DecryptFilterPlugin.Encoder.BASE64.decode(omitted), omitted);
+        }
+    }
+
+    @Test
+    public void testDecodeHexSameAsEncoder()
+    {
+        ScratchDecoder decoder = new ScratchDecoder(DecryptFilterPlugin.Encoder.HEX);
+        Random random = new Random(0);
+        for (int length = 0; length < 300; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String encoded = BaseEncoding.base16().encode(bytes);
+            assertDecoded(decoder, DecryptFilterPlugin.Encoder.HEX.decode(encoded), encoded);
+        }
+    }
+
+    @Test
+    public void testValidLengthSameAsDecode()
+    {
+        ScratchDecoder base64 = new ScratchDecoder(DecryptFilterPlugin.Encoder.BASE64);
+        ScratchDecoder hex = new ScratchDecoder(DecryptFilterPlugin.Encoder.HEX);
+        Random random = new Random(0);
+        for (int length = 0; length < 100; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String padded = BaseEncoding.base64().encode(bytes);
+            assertEquals(length, base64.validLength(padded));
+            assertEquals(length, base64.validLength(BaseEncoding.base64().omitPadding().encode(bytes)));
+            assertEquals(length, hex.validLength(BaseEncoding.base16().encode(bytes)));
+        }
+        assertEquals(-1, base64.validLength("gUzzC+nJ*BLbPTAzJlbbMA=="));
+        assertEquals(-1, base64.validLength("gUzzC"));
+        assertEquals(-1, hex.validLength("814CF30"));
+        assertEquals(-1, hex.validLength("814cf30b"));
+    }
+
+    @Test
+    public void testBufferGrows()
+    {
+        ScratchDecoder decoder = new ScratchDecoder(DecryptFilterPlugin.Encoder.BASE64);
+        byte[] large = new byte[64 * 1024];
+        new Random(0).nextBytes(large);
+        assertDecoded(decoder, large, BaseEncoding.base64().encode(large));
+        assertDecoded(decoder, new byte[] {1, 2, 3}, "AQID");
+    }
+
+    @Test
+    public void testDecodeInChunksSameAsWhole()
+    {
+        Random random = new Random(0);
+        for (DecryptFilterPlugin.Encoder encoder : DecryptFilterPlugin.Encoder.values()) {
+            ScratchDecoder decoder = new ScratchDecoder(encoder);
+            for (int length : new int[] {0, 1, 2, 3, 100, 3000, 3001, 3002}) {
+                byte[] bytes = new byte[length];
+                random.nextBytes(bytes);
+                String encoded = encoder == DecryptFilterPlugin.Encoder.HEX
+                        ? BaseEncoding.base16().encode(bytes)
+                        : BaseEncoding.base64().encode(bytes);
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                final int end = decoder.end(encoded);
+                for (int start = 0; start < end; start += 1024) {
+                    int n = decoder.decodeChunk(encoded, start, Math.min(end, start + 1024));
+                    decoded.write(decoder.buffer(), 0, n);
+                }
+                assertArrayEquals(bytes, decoded.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidCharacterInChunk()
+    {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("com.google.common.io.BaseEncoding$DecodingException: Unrecognized character: *");
+        new ScratchDecoder(DecryptFilterPlugin.Encoder.BASE64).decodeChunk("gUzzC+nJSBLb*TAzJlbbMA==", 8, 16);
+    }
+
+    @Test
+    public void testInvalidBase64Character()
+    {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("com.google.common.io.BaseEncoding$DecodingException: Unrecognized character: *");
+        new ScratchDecoder(DecryptFilterPlugin.Encoder.BASE64).decode("gUzzC+nJSBLb*TAzJlbbMA==");
+    }
+
+    @Test
+    public void testInvalidBase64Length()
+    {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("com.google.common.io.BaseEncoding$DecodingException");
+        new ScratchDecoder(DecryptFilterPlugin.Encoder.BASE64).decode("gUzzC");
+    }
+
+    @Test
+    public void testLowerCaseHexIsInvalid()
+    {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("com.google.common.io.BaseEncoding$DecodingException: Unrecognized character: c");
+        new ScratchDecoder(DecryptFilterPlugin.Encoder.HEX).decode("814cf30b");
+    }
+
+    private static void assertDecoded(ScratchDecoder decoder, byte[] expected, String encoded)
+    {
+        int length = decoder.decode(encoded);
+        assertEquals(expected.length, length);
+        assertArrayEquals(expected, Arrays.copyOf(decoder.buffer(), length));
+    }
+}